@@ -25,7 +25,7 @@ case "$1" in
 			exit 1
 		fi
 
-		java -cp lib/commons-logging.jar:lib/com.noelios.restlet.ext.net.jar:lib/com.noelios.restlet.ext.servlet_2.5.jar:lib/com.noelios.restlet.ext.simple_3.1.jar:lib/com.noelios.restlet.jar:lib/icu4j.jar:lib/iri.jar:lib/jdom-1.0.jar:lib/jena.jar:lib/jldap.jar:lib/org.json.jar:lib/org.restlet.ext.json_2.0.jar:lib/org.restlet.ext.wadl_1.0.jar:lib/org.restlet.jar:lib/org.simpleframework.jar:lib/rome-0.9.jar:lib/xercesImpl.jar:collaborilla.jar \
+		java -cp lib/commons-logging.jar:lib/com.noelios.restlet.ext.net.jar:lib/com.noelios.restlet.ext.servlet_2.5.jar:lib/com.noelios.restlet.ext.simple_3.1.jar:lib/com.noelios.restlet.jar:lib/icu4j.jar:lib/iri.jar:lib/jdom-1.0.jar:lib/jena.jar:lib/jldap.jar:lib/org.json.jar:lib/org.restlet.ext.json_2.0.jar:lib/org.restlet.ext.wadl_1.0.jar:lib/org.restlet.jar:lib/org.simpleframework.jar:lib/rome-0.9.jar:lib/xercesImpl.jar:lib/ektorp/jackson-core-asl-1.6.1.jar:lib/ektorp/jackson-mapper-asl-1.6.1.jar:collaborilla.jar \
 			se.kth.nada.kmr.collaborilla.rest.CollaborillaApplication \
 			--config=$CONFIGFILE \
 			>>$LOGFILE 2>&1 &
@@ -0,0 +1,334 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Compact binary encoding of a CollaborillaDataSet, as an alternative to
+ * CollaborillaDataSet.toXML() and Java serialization.
+ * <p>
+ * Format (all numbers big-endian):
+ *
+ * <pre>
+ * header:  'C' 'D' 'S' version(1 byte)
+ * field:   tag(1 byte) length(4 bytes) payload(length bytes)
+ * end:     tag 0
+ * </pre>
+ *
+ * Strings are UTF-8, sets are a count(4 bytes) followed by length-prefixed
+ * strings, dates are milliseconds(8 bytes) and booleans one byte. Fields
+ * which are null are omitted. Unknown tags are skipped, so newer encoders may
+ * add fields without breaking older decoders.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public final class CollaborillaDataSetCodec {
+
+	/**
+	 * Media type of the encoding, used for content negotiation over HTTP.
+	 */
+	public static final String MEDIA_TYPE = "application/x-collaborilla-dataset";
+
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = { 'C', 'D', 'S' };
+
+	/**
+	 * Upper bound for a single field, protects the decoder against broken or
+	 * malicious input.
+	 */
+	private static final int MAX_FIELD_LENGTH = 16 * 1024 * 1024;
+
+	private static final int TAG_END = 0;
+
+	private static final int TAG_IDENTIFIER = 1;
+
+	private static final int TAG_LOCATIONS = 2;
+
+	private static final int TAG_ALIGNED_LOCATIONS = 3;
+
+	private static final int TAG_METADATA = 4;
+
+	private static final int TAG_REQUIRED_CONTAINERS = 5;
+
+	private static final int TAG_OPTIONAL_CONTAINERS = 6;
+
+	private static final int TAG_TIMESTAMP_CREATED = 7;
+
+	private static final int TAG_TIMESTAMP_MODIFIED = 8;
+
+	private static final int TAG_CONTAINER_REVISION = 9;
+
+	private static final int TAG_DESCRIPTION = 10;
+
+	private static final int TAG_TYPE = 11;
+
+	private static final int TAG_REVISION_NUMBER = 12;
+
+	private static final int TAG_REVISION_INFO = 13;
+
+	private static final int TAG_REVISION = 14;
+
+	private static final int TAG_MODIFIED_LOCALLY = 15;
+
+	private CollaborillaDataSetCodec() {
+	}
+
+	/**
+	 * @param dataSet
+	 *            Dataset to encode
+	 * @return The encoded dataset.
+	 */
+	public static byte[] encode(CollaborillaDataSet dataSet) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		try {
+			encode(dataSet, out);
+		} catch (IOException e) {
+			// does not happen with a ByteArrayOutputStream
+			throw new IllegalStateException(e.getMessage());
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes an encoded dataset to a stream. The stream is not closed.
+	 *
+	 * @param dataSet
+	 *            Dataset to encode
+	 * @param stream
+	 *            Output stream
+	 * @throws IOException
+	 */
+	public static void encode(CollaborillaDataSet dataSet, OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+
+		// reused for the payload of every field
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		DataOutputStream field = new DataOutputStream(buffer);
+
+		writeString(out, TAG_IDENTIFIER, dataSet.getIdentifier());
+		writeSet(out, buffer, field, TAG_LOCATIONS, dataSet.getLocations());
+		writeSet(out, buffer, field, TAG_ALIGNED_LOCATIONS, dataSet.getAlignedLocations());
+		writeString(out, TAG_METADATA, dataSet.getMetaData());
+		writeSet(out, buffer, field, TAG_REQUIRED_CONTAINERS, dataSet.getRequiredContainers());
+		writeSet(out, buffer, field, TAG_OPTIONAL_CONTAINERS, dataSet.getOptionalContainers());
+		writeDate(out, TAG_TIMESTAMP_CREATED, dataSet.getTimestampCreated());
+		writeDate(out, TAG_TIMESTAMP_MODIFIED, dataSet.getTimestampModified());
+		writeString(out, TAG_CONTAINER_REVISION, dataSet.getContainerRevision());
+		writeString(out, TAG_DESCRIPTION, dataSet.getDescription());
+		writeString(out, TAG_TYPE, dataSet.getType());
+		writeString(out, TAG_REVISION_NUMBER, dataSet.getRevisionNumber());
+		writeString(out, TAG_REVISION_INFO, dataSet.getRevisionInfo());
+		writeString(out, TAG_REVISION, dataSet.getRevision());
+		if (dataSet.isModifiedLocally()) {
+			out.writeByte(TAG_MODIFIED_LOCALLY);
+			out.writeInt(1);
+			out.writeByte(1);
+		}
+
+		out.writeByte(TAG_END);
+		out.flush();
+	}
+
+	/**
+	 * @param data
+	 *            Encoded dataset
+	 * @return The decoded dataset.
+	 * @throws IOException
+	 *             If the data is not a valid encoding.
+	 */
+	public static CollaborillaDataSet decode(byte[] data) throws IOException {
+		return decode(new ByteArrayInputStream(data));
+	}
+
+	/**
+	 * Reads an encoded dataset from a stream. Reading stops after the end tag,
+	 * the stream is not closed.
+	 *
+	 * @param stream
+	 *            Input stream
+	 * @return The decoded dataset.
+	 * @throws IOException
+	 *             If the data is not a valid encoding.
+	 */
+	public static CollaborillaDataSet decode(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (in.readByte() != MAGIC[i]) {
+				throw new IOException("Not an encoded dataset");
+			}
+		}
+		int version = in.readUnsignedByte();
+		if (version > VERSION) {
+			throw new IOException("Unsupported dataset encoding version " + version);
+		}
+
+		CollaborillaDataSet dataSet = new CollaborillaDataSet();
+		while (true) {
+			int tag;
+			try {
+				tag = in.readUnsignedByte();
+			} catch (EOFException e) {
+				throw new IOException("Truncated dataset encoding");
+			}
+			if (tag == TAG_END) {
+				break;
+			}
+
+			int length = in.readInt();
+			if (length < 0 || length > MAX_FIELD_LENGTH) {
+				throw new IOException("Invalid field length " + length);
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+
+			switch (tag) {
+			case TAG_IDENTIFIER:
+				dataSet.setIdentifier(toString(payload));
+				break;
+			case TAG_LOCATIONS:
+				dataSet.setLocations(toSet(payload));
+				break;
+			case TAG_ALIGNED_LOCATIONS:
+				dataSet.setAlignedLocations(toSet(payload));
+				break;
+			case TAG_METADATA:
+				dataSet.setMetaData(toString(payload));
+				break;
+			case TAG_REQUIRED_CONTAINERS:
+				dataSet.setRequiredContainers(toSet(payload));
+				break;
+			case TAG_OPTIONAL_CONTAINERS:
+				dataSet.setOptionalContainers(toSet(payload));
+				break;
+			case TAG_TIMESTAMP_CREATED:
+				dataSet.setTimestampCreated(toDate(payload));
+				break;
+			case TAG_TIMESTAMP_MODIFIED:
+				dataSet.setTimestampModified(toDate(payload));
+				break;
+			case TAG_CONTAINER_REVISION:
+				dataSet.setContainerRevision(toString(payload));
+				break;
+			case TAG_DESCRIPTION:
+				dataSet.setDescription(toString(payload));
+				break;
+			case TAG_TYPE:
+				dataSet.setType(toString(payload));
+				break;
+			case TAG_REVISION_NUMBER:
+				dataSet.setRevisionNumber(toString(payload));
+				break;
+			case TAG_REVISION_INFO:
+				dataSet.setRevisionInfo(toString(payload));
+				break;
+			case TAG_REVISION:
+				dataSet.setRevision(toString(payload));
+				break;
+			case TAG_MODIFIED_LOCALLY:
+				dataSet.setModifiedLocally(length > 0 && payload[0] != 0);
+				break;
+			default:
+				// field of a newer version, skipped
+				break;
+			}
+		}
+
+		return dataSet;
+	}
+
+	/* Encoding helpers */
+
+	private static void writeString(DataOutputStream out, int tag, String value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeByte(tag);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeSet(DataOutputStream out, ByteArrayOutputStream buffer, DataOutputStream field, int tag,
+			Set<String> values) throws IOException {
+		if (values == null) {
+			return;
+		}
+		buffer.reset();
+		field.writeInt(values.size());
+		Iterator<String> it = values.iterator();
+		while (it.hasNext()) {
+			String value = it.next();
+			byte[] bytes = (value != null) ? value.getBytes("UTF-8") : new byte[0];
+			field.writeInt(bytes.length);
+			field.write(bytes);
+		}
+		field.flush();
+		out.writeByte(tag);
+		out.writeInt(buffer.size());
+		buffer.writeTo(out);
+	}
+
+	private static void writeDate(DataOutputStream out, int tag, Date value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		out.writeByte(tag);
+		out.writeInt(8);
+		out.writeLong(value.getTime());
+	}
+
+	/* Decoding helpers */
+
+	private static String toString(byte[] payload) throws IOException {
+		return new String(payload, "UTF-8");
+	}
+
+	private static Date toDate(byte[] payload) throws IOException {
+		if (payload.length != 8) {
+			throw new IOException("Invalid date field");
+		}
+		return new Date(new DataInputStream(new ByteArrayInputStream(payload)).readLong());
+	}
+
+	private static Set<String> toSet(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		int count = in.readInt();
+		// every value needs at least its length prefix
+		if (count < 0 || count > payload.length / 4) {
+			throw new IOException("Invalid set size " + count);
+		}
+		Set<String> result = new HashSet<String>(count * 2);
+		for (int i = 0; i < count; i++) {
+			int length = in.readInt();
+			if (length < 0 || length > payload.length) {
+				throw new IOException("Invalid string length " + length);
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			result.add(new String(bytes, "UTF-8"));
+		}
+		return result;
+	}
+
+}
@@ -3,7 +3,9 @@
  */
 package se.kth.nada.kmr.collaborilla.client;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,6 +20,7 @@ import org.restlet.data.Preference;
 import org.restlet.data.Protocol;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
+import org.restlet.resource.InputRepresentation;
 import org.restlet.resource.ObjectRepresentation;
 import org.restlet.resource.Representation;
 
@@ -31,6 +34,8 @@ public class CollaborillaRestClient implements CollaborillaStatelessClient {
 	
 	Log log = LogFactory.getLog(CollaborillaRestClient.class);
 	
+	private static final MediaType BINARY_DATASET = new MediaType(CollaborillaDataSetCodec.MEDIA_TYPE);
+
 	private String root;
 	
 	public CollaborillaRestClient(String serviceRoot) {
@@ -41,13 +46,31 @@ public class CollaborillaRestClient implements CollaborillaStatelessClient {
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatelessClient#get(java.net.URI)
 	 */
 	public CollaborillaDataSet get(URI uri) {
+		return get(createResourceURI("element", uri), uri);
+	}
+
+	/**
+	 * Historical revisions are sent with long-lived cache headers, as they
+	 * never change.
+	 * 
+	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatelessClient#get(java.net.URI, int)
+	 */
+	public CollaborillaDataSet get(URI uri, int revision) {
 		String resourceURI = createResourceURI("element", uri);
+		if (revision > 0) {
+			resourceURI += "&rev=" + revision;
+		}
+		return get(resourceURI, uri);
+	}
+
+	private CollaborillaDataSet get(String resourceURI, URI uri) {
 		log.debug("Using HTTP GET for requesting data from " + resourceURI);
 		Request request = new Request(Method.GET, resourceURI);
 		ClientInfo clientInfo = new ClientInfo();
 		clientInfo.setAgent("Collaborilla Client " + Configuration.APPVERSION);
 		List<Preference<MediaType>> preferences = new ArrayList<Preference<MediaType>>();
-		preferences.add(new Preference<MediaType>(MediaType.APPLICATION_JAVA_OBJECT));
+		preferences.add(new Preference<MediaType>(BINARY_DATASET));
+		preferences.add(new Preference<MediaType>(MediaType.APPLICATION_JAVA_OBJECT, 0.5f));
 		clientInfo.setAcceptedMediaTypes(preferences);
 		request.setClientInfo(clientInfo);
 		Client client = new Client(Protocol.HTTP);
@@ -55,7 +78,18 @@ public class CollaborillaRestClient implements CollaborillaStatelessClient {
 		Representation rep = response.getEntity();
 		CollaborillaDataSet result = null;
 
-		if (rep != null) {
+		if (rep != null && BINARY_DATASET.equals(rep.getMediaType(), true)) {
+			try {
+				InputStream in = rep.getStream();
+				try {
+					result = CollaborillaDataSetCodec.decode(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				log.warn(e.getMessage());
+			}
+		} else if (rep != null) {
 			try {
 				result = new ObjectRepresentation<CollaborillaDataSet>(rep).getObject();
 			} catch (IllegalArgumentException e) {
@@ -80,8 +114,8 @@ public class CollaborillaRestClient implements CollaborillaStatelessClient {
 		ClientInfo clientInfo = new ClientInfo();
 		clientInfo.setAgent("Collaborilla Client " + Configuration.APPVERSION);
 		request.setClientInfo(clientInfo);
-		Representation rep = new ObjectRepresentation<CollaborillaDataSet>(dataSet);
-		rep.setMediaType(MediaType.APPLICATION_JAVA_OBJECT);
+		byte[] encoded = CollaborillaDataSetCodec.encode(dataSet);
+		Representation rep = new InputRepresentation(new ByteArrayInputStream(encoded), BINARY_DATASET, encoded.length);
 		request.setEntity(rep);
 		Client client = new Client(Protocol.HTTP);
 		Response response = client.handle(request);
@@ -109,11 +143,4 @@ public class CollaborillaRestClient implements CollaborillaStatelessClient {
 		throw new UnsupportedOperationException();
 	}
 
-	/**
-	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatelessClient#get(java.net.URI, int)
-	 */
-	public CollaborillaDataSet get(URI uri, int revision) {
-		throw new UnsupportedOperationException();
-	}
-
 }
\ No newline at end of file
@@ -28,6 +28,8 @@ import se.kth.nada.kmr.collaborilla.service.ServiceCommands;
 import se.kth.nada.kmr.collaborilla.service.Status;
 import se.kth.nada.kmr.collaborilla.util.Configuration;
 
+import com.novell.ldap.util.Base64;
+
 /**
  * Client class to communicate with CollaborillaService.
  * 
@@ -52,6 +54,16 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 
 	private BufferedReader in;
 
+	/**
+	 * Maximum number of unanswered pipelined requests. Prevents a deadlock
+	 * with the server when both sides' socket buffers are full.
+	 */
+	private static final int MAX_PIPELINE_DEPTH = 100;
+
+	private boolean pipelining = false;
+
+	private int pendingResponses = 0;
+
 	/**
 	 * Initializes the object. No timeout for responses from the server.
 	 * 
@@ -82,14 +94,52 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	}
 
 	private ResponseMessage sendRequest(String request) throws CollaborillaException {
-		String result = new String();
-		String tmp = null;
-		ResponseMessage answer = null;
+		// all answers to earlier requests have to be read first
+		flushPipeline();
 
 		try {
 			out.write(request + Configuration.LINEFEED);
 			out.flush();
+		} catch (IOException ioe) {
+			throw new CollaborillaException(ioe);
+		}
+
+		ResponseMessage answer = readResponse();
+
+		this.checkResponse(answer);
+
+		return answer;
+	}
+
+	/**
+	 * Sends a request without waiting for the response if pipelining is
+	 * enabled. Used for requests which do not return any data.
+	 */
+	private void sendPipelinedRequest(String request) throws CollaborillaException {
+		if (!pipelining) {
+			sendRequest(request);
+			return;
+		}
+
+		if (pendingResponses >= MAX_PIPELINE_DEPTH) {
+			flushPipeline();
+		}
+
+		try {
+			out.write(request + Configuration.LINEFEED);
+		} catch (IOException ioe) {
+			throw new CollaborillaException(ioe);
+		}
+
+		pendingResponses++;
+	}
+
+	private ResponseMessage readResponse() throws CollaborillaException {
+		String result = new String();
+		String tmp = null;
+		ResponseMessage answer = null;
 
+		try {
 			while ((tmp = in.readLine()) != null) {
 				if (result.length() > 0) {
 					result += Configuration.LINEFEED;
@@ -112,11 +162,82 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 			throw new CollaborillaException(ioe);
 		}
 
-		this.checkResponse(answer);
-
 		return answer;
 	}
 
+	/**
+	 * Enables or disables pipelining. If enabled, requests which modify the
+	 * entry are sent without waiting for the response of the server, the
+	 * responses are read and checked in one go as soon as a request returning
+	 * data is sent or flushPipeline() is called. An error status of a
+	 * pipelined request is therefore reported by one of these later calls.
+	 * 
+	 * @param pipelining
+	 *            True to enable pipelining.
+	 * @throws CollaborillaException
+	 *             If a pending request failed while disabling pipelining.
+	 */
+	public void setPipelining(boolean pipelining) throws CollaborillaException {
+		if (!pipelining) {
+			flushPipeline();
+		}
+		this.pipelining = pipelining;
+	}
+
+	/**
+	 * @return True if pipelining is enabled.
+	 */
+	public boolean isPipelining() {
+		return pipelining;
+	}
+
+	/**
+	 * Sends all pipelined requests and reads their responses. All responses
+	 * are read even if one of them signals an error, the first error is
+	 * thrown afterwards.
+	 * 
+	 * @throws CollaborillaException
+	 *             If one of the pipelined requests failed.
+	 */
+	public void flushPipeline() throws CollaborillaException {
+		if (pendingResponses == 0) {
+			return;
+		}
+
+		try {
+			out.flush();
+		} catch (IOException ioe) {
+			pendingResponses = 0;
+			throw new CollaborillaException(ioe);
+		}
+
+		CollaborillaException firstError = null;
+
+		while (pendingResponses > 0) {
+			ResponseMessage answer;
+			try {
+				answer = readResponse();
+			} catch (CollaborillaException ce) {
+				// the connection is not usable anymore
+				pendingResponses = 0;
+				throw ce;
+			}
+			pendingResponses--;
+
+			try {
+				checkResponse(answer);
+			} catch (CollaborillaException ce) {
+				if (firstError == null) {
+					firstError = ce;
+				}
+			}
+		}
+
+		if (firstError != null) {
+			throw firstError;
+		}
+	}
+
 	private ResponseMessage parseResponse(String response) {
 		ResponseMessage result = new ResponseMessage();
 		String statusMessage = null;
@@ -176,6 +297,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	public void connect() throws CollaborillaException {
 		try {
 			socket = new Socket(serverHost, serverPort);
+			pendingResponses = 0;
 
 			if (responseTimeOut != -1) {
 				socket.setSoTimeout(this.responseTimeOut * 1000);
@@ -198,24 +320,50 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#disconnect()
 	 */
 	public void disconnect() throws CollaborillaException {
+		Exception failure = null;
 		try {
 			if (isConnected()) {
 				sendRequest(ServiceCommands.CMD_QUIT);
 			}
-
-			if (out != null) {
-				out.close();
+		} catch (Exception e) {
+			// e.g. a failed pipelined request, the connection is closed anyway
+			failure = e;
+		} finally {
+			try {
+				if (out != null) {
+					out.close();
+				}
+			} catch (IOException ioe) {
+				if (failure == null) {
+					failure = ioe;
+				}
 			}
 
-			if (in != null) {
-				in.close();
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException ioe) {
+				if (failure == null) {
+					failure = ioe;
+				}
 			}
 
-			if (socket != null) {
-				socket.close();
+			try {
+				if (socket != null) {
+					socket.close();
+				}
+			} catch (IOException ioe) {
+				if (failure == null) {
+					failure = ioe;
+				}
 			}
-		} catch (Exception e) {
-			throw new CollaborillaException(e);
+		}
+
+		if (failure instanceof CollaborillaException) {
+			throw (CollaborillaException) failure;
+		} else if (failure != null) {
+			throw new CollaborillaException(failure);
 		}
 	}
 
@@ -372,7 +520,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#addLocation(java.lang.String)
 	 */
 	public void addLocation(String url) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_ADD + " " + ServiceCommands.ATTR_LOCATION + " "
+		sendPipelinedRequest(ServiceCommands.CMD_ADD + " " + ServiceCommands.ATTR_LOCATION + " "
 				+ url);
 	}
 
@@ -380,7 +528,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#removeLocation(java.lang.String)
 	 */
 	public void removeLocation(String url) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_LOCATION + " "
+		sendPipelinedRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_LOCATION + " "
 				+ url);
 	}
 
@@ -427,7 +575,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#addRequiredContainer(java.lang.String)
 	 */
 	public void addRequiredContainer(String uri) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_ADD + " " + ServiceCommands.ATTR_REQUIRED_CONTAINER + " "
+		sendPipelinedRequest(ServiceCommands.CMD_ADD + " " + ServiceCommands.ATTR_REQUIRED_CONTAINER + " "
 				+ uri);
 	}
 
@@ -435,7 +583,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#removeRequiredContainer(java.lang.String)
 	 */
 	public void removeRequiredContainer(String uri) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_REQUIRED_CONTAINER + " "
+		sendPipelinedRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_REQUIRED_CONTAINER + " "
 				+ uri);
 	}
 
@@ -482,7 +630,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#addOptionalContainer(java.lang.String)
 	 */
 	public void addOptionalContainer(String uri) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_ADD + " " + ServiceCommands.ATTR_OPTIONAL_CONTAINER + " "
+		sendPipelinedRequest(ServiceCommands.CMD_ADD + " " + ServiceCommands.ATTR_OPTIONAL_CONTAINER + " "
 				+ uri);
 	}
 
@@ -490,7 +638,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#removeOptionalContainer(java.lang.String)
 	 */
 	public void removeOptionalContainer(String uri) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_OPTIONAL_CONTAINER + " "
+		sendPipelinedRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_OPTIONAL_CONTAINER + " "
 				+ uri);
 	}
 
@@ -514,7 +662,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#setMetaData(java.lang.String)
 	 */
 	public void setMetaData(String metaData) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_SET + " " + ServiceCommands.ATTR_METADATA
+		sendPipelinedRequest(ServiceCommands.CMD_SET + " " + ServiceCommands.ATTR_METADATA
 				+ " " + LDAPStringHelper.encode(metaData));
 	}
 
@@ -522,7 +670,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#removeMetaData()
 	 */
 	public void removeMetaData() throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_METADATA);
+		sendPipelinedRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_METADATA);
 	}
 
 	/**
@@ -539,7 +687,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#setContainerRevision(java.lang.String)
 	 */
 	public void setContainerRevision(String containerRevision) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_SET + " " + ServiceCommands.ATTR_CONTAINER_REVISION
+		sendPipelinedRequest(ServiceCommands.CMD_SET + " " + ServiceCommands.ATTR_CONTAINER_REVISION
 				+ " " + containerRevision);
 	}
 
@@ -563,7 +711,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#setDescription(java.lang.String)
 	 */
 	public void setDescription(String desc) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_SET + " " + ServiceCommands.ATTR_DESCRIPTION + " "
+		sendPipelinedRequest(ServiceCommands.CMD_SET + " " + ServiceCommands.ATTR_DESCRIPTION + " "
 				+ LDAPStringHelper.encode(desc));
 	}
 
@@ -571,7 +719,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#removeDescription()
 	 */
 	public void removeDescription() throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_DESCRIPTION);
+		sendPipelinedRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_DESCRIPTION);
 	}
 	
 	/**
@@ -594,7 +742,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#setType(java.lang.String)
 	 */
 	public void setType(String type) throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_SET + " " + ServiceCommands.ATTR_TYPE + " "
+		sendPipelinedRequest(ServiceCommands.CMD_SET + " " + ServiceCommands.ATTR_TYPE + " "
 				+ LDAPStringHelper.encode(type));
 	}
 
@@ -602,7 +750,7 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 	 * @see se.kth.nada.kmr.collaborilla.client.CollaborillaStatefulClient#removeType()
 	 */
 	public void removeType() throws CollaborillaException {
-		sendRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_TYPE);
+		sendPipelinedRequest(ServiceCommands.CMD_DEL + " " + ServiceCommands.ATTR_TYPE);
 	}
 
 	/**
@@ -645,6 +793,50 @@ public final class CollaborillaServiceClient implements CollaborillaStatefulClie
 		return CollaborillaDataSet.decodeXML(xml);
 	}
 	
+	/**
+	 * Retrieves the dataset in the binary encoding, which is smaller and
+	 * faster to decode than the XML of getDataSet().
+	 * 
+	 * @return A DataSet object.
+	 * @throws CollaborillaException
+	 */
+	public CollaborillaDataSet getDataSetBinary() throws CollaborillaException {
+		ResponseMessage resp = sendRequest(ServiceCommands.CMD_GET + " "
+				+ ServiceCommands.ATTR_DATASET + " " + ServiceCommands.PARAM_BINARY);
+
+		if (resp.responseData.length == 0) {
+			return null;
+		}
+
+		try {
+			return CollaborillaDataSetCodec.decode(Base64.decode(resp.responseData[0]));
+		} catch (IOException e) {
+			throw new CollaborillaException(e);
+		}
+	}
+	
+	/**
+	 * Returns the URIs of all entries which reference a container, independent
+	 * of the currently selected URI.
+	 * 
+	 * @param uri
+	 *            URI of the container.
+	 * @param includeOptional
+	 *            Include entries which reference it as optional container.
+	 * @return Set of URIs.
+	 * @throws CollaborillaException
+	 */
+	public Set<String> getReferrers(String uri, boolean includeOptional) throws CollaborillaException {
+		String request = ServiceCommands.CMD_GET + " " + ServiceCommands.ATTR_REFERRERS + " " + uri;
+		if (includeOptional) {
+			request += " " + ServiceCommands.PARAM_ALL;
+		}
+
+		ResponseMessage resp = sendRequest(request);
+
+		return CollaborillaDataSet.stringArrayToSet(resp.responseData);
+	}
+
 	/**
 	 * Retrieves all information into a serializable object.
 	 * 
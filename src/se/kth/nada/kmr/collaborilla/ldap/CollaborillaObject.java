@@ -8,12 +8,23 @@ package se.kth.nada.kmr.collaborilla.ldap;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSet;
 
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
 import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPModification;
 
 /**
  * Provides methods to directly access and manipulate entries and fields needed
@@ -26,7 +37,22 @@ import com.novell.ldap.LDAPException;
  * @see LDAPObject
  */
 public class CollaborillaObject extends LDAPObject implements Cloneable {
+
+	/**
+	 * Attributes which are needed to build a CollaborillaDataSet.
+	 */
+	private static final String[] DATASET_ATTRIBUTES = { CollaborillaObjectConstants.LOCATION,
+			CollaborillaObjectConstants.CONTAINERREVISION, CollaborillaObjectConstants.DESCRIPTION,
+			CollaborillaObjectConstants.METADATA, CollaborillaObjectConstants.OPTIONALCONTAINER,
+			CollaborillaObjectConstants.REQUIREDCONTAINER, CollaborillaObjectConstants.TYPE,
+			CollaborillaObjectConstants.DATECREATED, CollaborillaObjectConstants.DATEMODIFIED };
 	
+	/**
+	 * How often we try to increment the revision counter if other clients
+	 * create revisions concurrently.
+	 */
+	private static final int MAX_REVISION_ATTEMPTS = 10;
+
 	private int revision = 0;
 
 	private String serverDN;
@@ -60,13 +86,47 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 		this.serverDN = serverDN;
 		this.setAccessUri(uri);
 
+		if (create) {
+			// a replica may not know the entry yet, we must not create it twice
+			this.ldapAccess.beginPrimaryReads();
+		}
+
+		try {
+			this.createIfNecessary(uri, create);
+		} finally {
+			if (create) {
+				this.ldapAccess.endPrimaryReads();
+			}
+		}
+	}
+
+	/**
+	 * Creates the entry if it does not exist yet.
+	 * 
+	 * @param uri
+	 *            URI
+	 * @param create
+	 *            False if a missing entry should result in NO_SUCH_OBJECT
+	 * @throws LDAPException
+	 */
+	private void createIfNecessary(String uri, boolean create) throws LDAPException {
+		EntryBloomFilter filter = EntryBloomFilter.getInstance(this.serverDN);
+
+		// entries which certainly do not exist are not looked up
+		if (!create && !filter.mightContain(uri)) {
+			throw new LDAPException("NO SUCH OBJECT", LDAPException.NO_SUCH_OBJECT, LDAPException
+					.resultCodeToString(LDAPException.NO_SUCH_OBJECT), this.baseDN);
+		}
+
 		if (!this.entryExists()) {
 			if (create) {
 				this.createEntryWithContainer(LDAPStringHelper.dnToParentDN(this.baseDN),
 						CollaborillaObjectConstants.OBJECTCLASS, CollaborillaObjectConstants.INFONODETYPE,
 						CollaborillaObjectConstants.INFONODE);
 				this.addAttribute(CollaborillaObjectConstants.URI, uri);
+				filter.add(uri);
 			} else {
+				filter.reportFalsePositive();
 				throw new LDAPException("NO SUCH OBJECT", LDAPException.NO_SUCH_OBJECT, LDAPException
 						.resultCodeToString(LDAPException.NO_SUCH_OBJECT), this.baseDN);
 			}
@@ -110,18 +170,46 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	 * DN, URI and the revision into consideration for creating a Base DN.
 	 */
 	private void updateBaseDN() {
+		this.baseDN = entryDN(this.serverDN, this.uri, this.revision);
+	}
+
+	/**
+	 * Builds the DN of the LDAP entry of a URI.
+	 * 
+	 * @param serverDN
+	 *            Server Distinctive Name (DN)
+	 * @param uri
+	 *            URI
+	 * @param revision
+	 *            Revision number, 0 for the current revision
+	 * @return Base DN
+	 */
+	static String entryDN(String serverDN, String uri, int revision) {
 		String tmpDN = CollaborillaObjectConstants.INFONODETYPE
 				+ "="
 				+ CollaborillaObjectConstants.INFONODE
 				+ ","
-				+ LDAPStringHelper.uriToBaseDN(CollaborillaObjectConstants.ROOT, this.serverDN, this.uri,
+				+ LDAPStringHelper.uriToBaseDN(CollaborillaObjectConstants.ROOT, serverDN, uri,
 						CollaborillaObjectConstants.INFOCONTAINERTYPE);
 
-		if (this.revision > 0) {
-			tmpDN = CollaborillaObjectConstants.INFONODETYPE + "=" + this.revision + "," + tmpDN;
+		if (revision > 0) {
+			tmpDN = CollaborillaObjectConstants.INFONODETYPE + "=" + revision + "," + tmpDN;
 		}
 
-		this.baseDN = tmpDN;
+		return tmpDN;
+	}
+
+	/**
+	 * Returns the DN of the most recent entry, independent of the currently
+	 * selected revision.
+	 * 
+	 * @return DN of the info node
+	 */
+	private String getInfoNodeDN() {
+		if (this.revision > 0) {
+			return LDAPStringHelper.dnToParentDN(this.baseDN);
+		}
+		return this.baseDN;
 	}
 
 	/**
@@ -235,17 +323,21 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	}
 
 	/**
-	 * Returns the number of revisions in the LDAP directory.
+	 * Returns the number of revisions in the LDAP directory. The number is
+	 * read from the counter attribute of the most recent entry; entries which
+	 * have been created before the counter was introduced are counted.
 	 * 
 	 * @return Number of available revisions
 	 * @throws LDAPException
 	 */
 	public int getRevisionCount() throws LDAPException {
-		if (this.revision == 0) {
-			return this.childCount(LDAPConnection.SCOPE_ONE);
-		} else {
-			return this.childCount(LDAPStringHelper.dnToParentDN(this.baseDN), LDAPConnection.SCOPE_ONE);
+		String[] counter = this.readAttribute(this.getInfoNodeDN(), CollaborillaObjectConstants.REVISIONCOUNT);
+
+		if (counter != null) {
+			return Integer.parseInt(counter[0]);
 		}
+
+		return this.childCount(this.getInfoNodeDN(), LDAPConnection.SCOPE_ONE);
 	}
 
 	/**
@@ -295,10 +387,102 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	 */
 	public void createRevision() throws LDAPException {
 		this.setRevision(0);
-		int revisionNumber = this.getRevisionCount() + 1;
+
+		this.ldapAccess.checkConnection();
+		this.createRevision(this.ldapAccess.ldapConnection.read(this.baseDN));
+	}
+
+	/**
+	 * Copies an already read version of the most recent entry into a new
+	 * revision. The current revision has to be 0.
+	 * 
+	 * @param currentEntry
+	 *            The most recent entry with all attributes
+	 * @throws LDAPException
+	 */
+	private void createRevision(LDAPEntry currentEntry) throws LDAPException {
+		int revisionNumber = this.allocateRevisionNumber(getAttributeValue(currentEntry,
+				CollaborillaObjectConstants.REVISIONCOUNT));
 		String destDN = CollaborillaObjectConstants.INFONODETYPE + "=" + revisionNumber + "," + this.baseDN;
 
-		this.copyEntry(this.baseDN, destDN);
+		// the counter belongs to the most recent entry only
+		LDAPAttributeSet attributeSet = (LDAPAttributeSet) currentEntry.getAttributeSet().clone();
+		attributeSet.remove(new LDAPAttribute(CollaborillaObjectConstants.REVISIONCOUNT));
+
+		this.copyEntry(new LDAPEntry(currentEntry.getDN(), attributeSet), destDN);
+	}
+
+	/**
+	 * Increments the revision counter of the most recent entry and returns the
+	 * new value. The increment is done by deleting the old and adding the new
+	 * value in one modify request; the request fails if another client
+	 * incremented the counter in the meantime, in which case we retry with
+	 * the new value.
+	 * 
+	 * @param knownCount
+	 *            Counter value as read by the caller, or null to read it
+	 * @return Number of the revision to be created
+	 * @throws LDAPException
+	 */
+	private int allocateRevisionNumber(String knownCount) throws LDAPException {
+		// the counter has to be read from the server we write to
+		this.ldapAccess.beginPrimaryReads();
+		try {
+			return this.allocateRevisionNumberOnPrimary(knownCount);
+		} finally {
+			this.ldapAccess.endPrimaryReads();
+		}
+	}
+
+	private int allocateRevisionNumberOnPrimary(String knownCount) throws LDAPException {
+		String infoDN = this.getInfoNodeDN();
+		String currentCount = knownCount;
+		boolean counterRead = (knownCount != null);
+
+		for (int attempt = 0; attempt < MAX_REVISION_ATTEMPTS; attempt++) {
+			if (!counterRead) {
+				String[] counter = this.readAttribute(infoDN, CollaborillaObjectConstants.REVISIONCOUNT);
+				currentCount = (counter != null) ? counter[0] : null;
+			}
+			counterRead = false;
+
+			LDAPModification[] modifications;
+			int nextRevision;
+
+			if (currentCount == null) {
+				// no counter yet, we initialize it with the existing revisions
+				nextRevision = this.childCount(infoDN, LDAPConnection.SCOPE_ONE) + 1;
+				modifications = new LDAPModification[] { new LDAPModification(LDAPModification.ADD,
+						new LDAPAttribute(CollaborillaObjectConstants.REVISIONCOUNT, String.valueOf(nextRevision))) };
+			} else {
+				nextRevision = Integer.parseInt(currentCount) + 1;
+				modifications = new LDAPModification[] {
+						new LDAPModification(LDAPModification.DELETE, new LDAPAttribute(
+								CollaborillaObjectConstants.REVISIONCOUNT, currentCount)),
+						new LDAPModification(LDAPModification.ADD, new LDAPAttribute(
+								CollaborillaObjectConstants.REVISIONCOUNT, String.valueOf(nextRevision))) };
+			}
+
+			try {
+				this.ldapAccess.checkConnection();
+				this.ldapAccess.ldapConnection.modify(infoDN, modifications);
+				this.ldapAccess.markWrite();
+				return nextRevision;
+			} catch (LDAPException e) {
+				int code = e.getResultCode();
+				if ((code == LDAPException.NO_SUCH_ATTRIBUTE) || (code == LDAPException.ATTRIBUTE_OR_VALUE_EXISTS)) {
+					// somebody else was faster, try again
+					continue;
+				}
+				if ((code == LDAPException.UNDEFINED_ATTRIBUTE_TYPE) || (code == LDAPException.OBJECT_CLASS_VIOLATION)) {
+					// the directory schema does not know the counter yet
+					return this.childCount(infoDN, LDAPConnection.SCOPE_ONE) + 1;
+				}
+				throw e;
+			}
+		}
+
+		throw new LDAPException("Unable to allocate a revision number", LDAPException.BUSY, (String) null, infoDN);
 	}
 
 	/**
@@ -335,6 +519,9 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 		this.createRevision();
 		this.removeAllAttributes();
 		this.copyAttributes(this.getRevisionDN(rev), this.baseDN);
+		this.invalidateLocationIndex();
+		this.getReferenceIndex().setReferences(this.uri, toList(this.getRequiredContainers()),
+				toList(this.getOptionalContainers()));
 	}
 
 	/*
@@ -362,65 +549,154 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	 * @throws LDAPException
 	 */
 	public String[] getAlignedLocation() throws LDAPException {
-		String[] result = null;
-		String parentURI = this.uri;
-		String originalURI = this.uri;
+		String[] result = this.readAttribute(CollaborillaObjectConstants.LOCATION);
+
+		if (result == null) {
+			result = this.getAlignedLocationFromParents();
+		}
 
-		result = this.readAttribute(CollaborillaObjectConstants.LOCATION);
+		return result;
+	}
+
+	/**
+	 * Constructs Locations by querying the entries of the parent URIs. The
+	 * current URI and revision are kept.
+	 * 
+	 * @return Array of URLs
+	 * @throws LDAPException
+	 *             NO_SUCH_ATTRIBUTE if no parent entry has a Location.
+	 */
+	private String[] getAlignedLocationFromParents() throws LDAPException {
+		String[] result = alignLocationFromParents(this.ldapAccess, this.serverDN, this.uri);
 
 		if (result == null) {
-			// FLOW
-			//
-			// 1 check if we can go one level higher, if not -> throw
-			// NO_SUCH_ATTRIBUTE
-			// 2 one level up, increase level counter
-			// 3 get location
-			// 4 if NO_SUCH_ATTRIBUTE or NO_SUCH_OBJECT -> 1 (one level up)
-			// 5 if we get a location:
-			// 5.1 get last part of URI depending on the level counter
-			// 5.2 loop through the returned URL and append 5.1
-			// 6 return result
-
-			while ((parentURI = LDAPStringHelper.getParentURI(parentURI)) != null) {
-				try {
-					this.setAccessUri(parentURI);
-					result = this.readAttribute(CollaborillaObjectConstants.LOCATION);
-				} catch (LDAPException e) {
-					if ((e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)
-							|| (e.getResultCode() == LDAPException.NO_SUCH_OBJECT)) {
-						continue;
-					} else {
-						this.setAccessUri(originalURI);
-						throw e;
-					}
-				}
+			throw new LDAPException("NO SUCH ATTRIBUTE", LDAPException.NO_SUCH_ATTRIBUTE,
+					"Unable to construct a URL from parent entries", this.baseDN);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Resolves the URLs of the most recent entry of a URI through the location
+	 * index, without the existence check of the constructor. Only URIs which
+	 * are not in the index are read from the directory, so repeated lookups
+	 * are served from memory.
+	 * 
+	 * @param dir
+	 *            LDAP connection
+	 * @param serverDN
+	 *            Server Distinctive Name (DN)
+	 * @param uri
+	 *            URI
+	 * @param aligned
+	 *            Construct URLs from the parent URIs if the entry has no
+	 *            Location, as getAlignedLocation() does.
+	 * @return Array of URLs or null if none could be found.
+	 * @throws LDAPException
+	 */
+	public static String[] resolveLocation(LDAPAccess dir, String serverDN, String uri, boolean aligned)
+			throws LDAPException {
+		String[] result = readIndexedLocation(dir, serverDN, uri);
 
-				if (result != null) {
-					String append = originalURI.substring(parentURI.length(), originalURI.length());
+		if (result == null && aligned) {
+			result = alignLocationFromParents(dir, serverDN, uri);
+		}
 
-					for (int i = 0; i < result.length; i++) {
-						if (result[i].endsWith("/") && append.startsWith("/")) {
-							result[i] = result[i].substring(0, result[i].length() - 1);
-						}
+		return result;
+	}
 
-						result[i] += append;
+	// FLOW
+	//
+	// 1 check if we can go one level higher, if not -> return null
+	// 2 one level up
+	// 3 get location from the index or from the directory
+	// 4 if there is none -> 1 (one level up)
+	// 5 if we get a location:
+	// 5.1 get last part of URI depending on the level
+	// 5.2 loop through the returned URL and append 5.1
+	// 6 return result
+	private static String[] alignLocationFromParents(LDAPAccess dir, String serverDN, String uri)
+			throws LDAPException {
+		String parentURI = uri;
+
+		while ((parentURI = LDAPStringHelper.getParentURI(parentURI)) != null) {
+			String[] result = readIndexedLocation(dir, serverDN, parentURI);
+
+			if (result != null) {
+				String append = uri.substring(parentURI.length(), uri.length());
+
+				for (int i = 0; i < result.length; i++) {
+					if (result[i].endsWith("/") && append.startsWith("/")) {
+						result[i] = result[i].substring(0, result[i].length() - 1);
 					}
 
-					this.setAccessUri(originalURI);
-
-					return result;
+					result[i] += append;
 				}
+
+				return result;
 			}
+		}
 
-			this.setAccessUri(originalURI);
+		return null;
+	}
 
-			throw new LDAPException("NO SUCH ATTRIBUTE", LDAPException.NO_SUCH_ATTRIBUTE,
-					"Unable to construct a URL from parent entries", this.baseDN);
+	/**
+	 * Returns the Location of the most recent entry of a URI from the index,
+	 * reads it from the directory if the URI is not indexed yet.
+	 * 
+	 * @return A copy of the URLs or null if the entry does not exist or has no
+	 *         Location.
+	 */
+	private static String[] readIndexedLocation(LDAPAccess dir, String serverDN, String uri) throws LDAPException {
+		LocationIndex index = LocationIndex.getInstance(serverDN);
+		LocationIndex.Entry cached = index.get(uri);
+
+		if (cached != null) {
+			return cached.getLocations();
+		}
+
+		String[] result = null;
+		try {
+			LDAPEntry entry = dir.read(entryDN(serverDN, uri, 0),
+					new String[] { CollaborillaObjectConstants.LOCATION });
+			result = getAttributeValues(entry, CollaborillaObjectConstants.LOCATION);
+		} catch (LDAPException e) {
+			if ((e.getResultCode() != LDAPException.NO_SUCH_ATTRIBUTE)
+					&& (e.getResultCode() != LDAPException.NO_SUCH_OBJECT)) {
+				throw e;
+			}
+		}
+
+		if (result != null && result.length == 0) {
+			result = null;
 		}
+		index.put(uri, result);
 
 		return result;
 	}
 
+	/**
+	 * @return The reverse index of container references of this directory
+	 *         tree, has to be updated after every modification of the
+	 *         containers.
+	 */
+	private ContainerReferenceIndex getReferenceIndex() {
+		return ContainerReferenceIndex.getInstance(this.serverDN);
+	}
+
+	private static List<String> toList(String[] values) {
+		return (values != null) ? Arrays.asList(values) : null;
+	}
+
+	/**
+	 * Removes the current URI from the location index, has to be called after
+	 * every modification of the Location attribute.
+	 */
+	private void invalidateLocationIndex() {
+		LocationIndex.getInstance(this.serverDN).invalidate(this.uri);
+	}
+
 	/**
 	 * Adds a new URL field to the LDAP entry.
 	 * 
@@ -431,6 +707,7 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	public void addLocation(String url) throws LDAPException {
 		this.handleWriteAttempt();
 		this.addAttribute(CollaborillaObjectConstants.LOCATION, url);
+		this.invalidateLocationIndex();
 	}
 
 	/**
@@ -445,6 +722,7 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	public void modifyLocation(String oldUrl, String newUrl) throws LDAPException {
 		this.handleWriteAttempt();
 		this.modifyAttribute(CollaborillaObjectConstants.LOCATION, oldUrl, newUrl);
+		this.invalidateLocationIndex();
 	}
 
 	/**
@@ -457,6 +735,7 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	public void removeLocation(String url) throws LDAPException {
 		this.handleWriteAttempt();
 		this.removeAttribute(CollaborillaObjectConstants.LOCATION, url);
+		this.invalidateLocationIndex();
 	}
 
 	/*
@@ -485,6 +764,7 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	public void addRequiredContainer(String uri) throws LDAPException {
 		this.handleWriteAttempt();
 		this.addAttribute(CollaborillaObjectConstants.REQUIREDCONTAINER, uri);
+		this.getReferenceIndex().addReference(this.uri, uri, false);
 	}
 
 	/**
@@ -499,6 +779,8 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	public void modifyRequiredContainer(String oldUri, String newUri) throws LDAPException {
 		this.handleWriteAttempt();
 		this.modifyAttribute(CollaborillaObjectConstants.REQUIREDCONTAINER, oldUri, newUri);
+		this.getReferenceIndex().removeReference(this.uri, oldUri, false);
+		this.getReferenceIndex().addReference(this.uri, newUri, false);
 	}
 
 	/**
@@ -511,6 +793,7 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	public void removeRequiredContainer(String uri) throws LDAPException {
 		this.handleWriteAttempt();
 		this.removeAttribute(CollaborillaObjectConstants.REQUIREDCONTAINER, uri);
+		this.getReferenceIndex().removeReference(this.uri, uri, false);
 	}
 
 	/*
@@ -539,6 +822,7 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	public void addOptionalContainer(String uri) throws LDAPException {
 		this.handleWriteAttempt();
 		this.addAttribute(CollaborillaObjectConstants.OPTIONALCONTAINER, uri);
+		this.getReferenceIndex().addReference(this.uri, uri, true);
 	}
 
 	/**
@@ -553,6 +837,8 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	public void modifyOptionalContainer(String oldUri, String newUri) throws LDAPException {
 		this.handleWriteAttempt();
 		this.modifyAttribute(CollaborillaObjectConstants.OPTIONALCONTAINER, oldUri, newUri);
+		this.getReferenceIndex().removeReference(this.uri, oldUri, true);
+		this.getReferenceIndex().addReference(this.uri, newUri, true);
 	}
 
 	/**
@@ -565,6 +851,7 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	public void removeOptionalContainer(String uri) throws LDAPException {
 		this.handleWriteAttempt();
 		this.removeAttribute(CollaborillaObjectConstants.OPTIONALCONTAINER, uri);
+		this.getReferenceIndex().removeReference(this.uri, uri, true);
 	}
 
 	/*
@@ -785,105 +1072,56 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 	 */
 	public CollaborillaDataSet getDataSet() throws LDAPException {
 		CollaborillaDataSet data = new CollaborillaDataSet();
-		
-		try {
-			data.setAlignedLocations(CollaborillaDataSet.stringArrayToSet(getAlignedLocation()));
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
-		}
-		
-		try {
-			data.setContainerRevision(getContainerRevision());
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
-		}
-		
-		try {
-			data.setDescription(getDescription());
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
+
+		// one request for all attributes, including the operational timestamps
+		LDAPEntry entry = this.readEntry(this.baseDN, DATASET_ATTRIBUTES);
+
+		String[] locations = getAttributeValues(entry, CollaborillaObjectConstants.LOCATION);
+		if (locations != null) {
+			data.setLocations(CollaborillaDataSet.stringArrayToSet(locations));
+			data.setAlignedLocations(CollaborillaDataSet.stringArrayToSet(locations));
+		} else {
+			try {
+				data.setAlignedLocations(CollaborillaDataSet.stringArrayToSet(getAlignedLocationFromParents()));
+			} catch (LDAPException e) {
+				if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
+					throw e;
+				}
 			}
 		}
-		
+
 		data.setIdentifier(getAccessUri());
-		
-		try {
-			data.setLocations(CollaborillaDataSet.stringArrayToSet(getLocation()));
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
-		}
-		
-		try {
-			//data.setMetaData(LDAPStringHelper.decode(getMetaData()));
-			data.setMetaData(getMetaData());
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
-		}
-		
-		try {
-			data.setOptionalContainers(CollaborillaDataSet.stringArrayToSet(getOptionalContainers()));
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
-		}
-		
-		try {
-			data.setRequiredContainers(CollaborillaDataSet.stringArrayToSet(getRequiredContainers()));
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
-		}
-		
-		try {
-			data.setRevisionInfo(getRevisionInfo());
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
-		}
-		
+		data.setContainerRevision(getAttributeValue(entry, CollaborillaObjectConstants.CONTAINERREVISION));
+		data.setDescription(getAttributeValue(entry, CollaborillaObjectConstants.DESCRIPTION));
+		data.setMetaData(getAttributeValue(entry, CollaborillaObjectConstants.METADATA));
+		data.setOptionalContainers(CollaborillaDataSet.stringArrayToSet(getAttributeValues(entry,
+				CollaborillaObjectConstants.OPTIONALCONTAINER)));
+		data.setRequiredContainers(CollaborillaDataSet.stringArrayToSet(getAttributeValues(entry,
+				CollaborillaObjectConstants.REQUIREDCONTAINER)));
+		data.setType(getAttributeValue(entry, CollaborillaObjectConstants.TYPE));
+
+		// the revision info is currently the description, see getRevisionInfo()
+		data.setRevisionInfo(data.getDescription());
 		data.setRevisionNumber(Integer.toString(getRevision()));
-		
-		try {
-			data.setTimestampCreated(getTimestampCreated());
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
-		}
-		
-		try {
-			data.setTimestampModified(getTimestampModified());
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
+
+		String created = getAttributeValue(entry, CollaborillaObjectConstants.DATECREATED);
+		if (created != null) {
+			data.setTimestampCreated(LDAPStringHelper.parseTimestamp(created));
 		}
-		
-		try {
-			data.setType(getType());
-		} catch (LDAPException e) {
-			if (!(e.getResultCode() == LDAPException.NO_SUCH_ATTRIBUTE)) {
-				throw e;
-			}
+
+		String modified = getAttributeValue(entry, CollaborillaObjectConstants.DATEMODIFIED);
+		if (modified != null) {
+			data.setTimestampModified(LDAPStringHelper.parseTimestamp(modified));
 		}
-		
+
 		return data;
 	}
 
 	/**
-	 * Sets all relevant fields in the directory with the values of a given dataset.
+	 * Sets all relevant fields in the directory with the values of a given
+	 * dataset. The current state is saved as a new revision, afterwards the
+	 * difference between the stored entry and the dataset is written with a
+	 * single modify request.
 	 * 
 	 * @param dataset A Collaborilla dataset.
 	 * @throws LDAPException
@@ -900,91 +1138,130 @@ public class CollaborillaObject extends LDAPObject implements Cloneable {
 				throw new IllegalArgumentException("Identifier must not be null");
 			}
 		}
-		
+
+		this.setRevision(0);
+
+		// read the current state once, it is used for the revision and the diff
+		this.ldapAccess.checkConnection();
+		LDAPEntry currentEntry = this.ldapAccess.ldapConnection.read(this.baseDN);
+
 		// save the old data
-		System.out.println("createRevision() ->");
-		createRevision();
-		System.out.println("<- createRevision()");
-		
-		// remove (almost) everything
-		System.out.println("removeAllAttributes() ->");
-		removeAllAttributes();
-		System.out.println("<- removeAllAttributes()");
-		
-		if (dataset.getContainerRevision() != null) {
-			System.out.println("setContainerRevision() ->");
-			setContainerRevision(dataset.getContainerRevision());
-			System.out.println("<- setContainerRevision()");
-		}
-		
-		if (dataset.getDescription() != null) {
-			setDescription(dataset.getDescription());
+		this.createRevision(currentEntry);
+
+		Map<String, String[]> newValues = new HashMap<String, String[]>();
+		putValue(newValues, CollaborillaObjectConstants.CONTAINERREVISION, dataset.getContainerRevision());
+		putValue(newValues, CollaborillaObjectConstants.DESCRIPTION, dataset.getDescription());
+		putValue(newValues, CollaborillaObjectConstants.METADATA, dataset.getMetaData());
+		putValue(newValues, CollaborillaObjectConstants.TYPE, dataset.getType());
+		putValues(newValues, CollaborillaObjectConstants.LOCATION, toASCIILocations(dataset.getLocations()));
+		putValues(newValues, CollaborillaObjectConstants.REQUIREDCONTAINER, dataset.getRequiredContainers());
+		putValues(newValues, CollaborillaObjectConstants.OPTIONALCONTAINER, dataset.getOptionalContainers());
+
+		List<LDAPModification> modifications = new ArrayList<LDAPModification>();
+
+		// attributes which are not part of the dataset anymore are removed
+		Iterator attributes = currentEntry.getAttributeSet().iterator();
+		while (attributes.hasNext()) {
+			LDAPAttribute attribute = (LDAPAttribute) attributes.next();
+			String name = attribute.getName();
+
+			if (isProtectedAttribute(name)) {
+				continue;
+			}
+
+			String[] values = getValues(newValues, name);
+			if (values == null) {
+				modifications.add(new LDAPModification(LDAPModification.DELETE, new LDAPAttribute(name)));
+			} else if (!sameValues(attribute.getStringValueArray(), values)) {
+				modifications.add(new LDAPModification(LDAPModification.REPLACE, new LDAPAttribute(name, values)));
+			}
 		}
-		
-		if (dataset.getLocations() != null) {
-			Iterator it = dataset.getLocations().iterator();
-			while (it.hasNext()) {
-				String location = (String) it.next();
-				try {
-					System.out.println("addLocation() ->");
-					try {
-						URI asciiURI = new URI(location);
-						location = asciiURI.toASCIIString();
-					} catch (URISyntaxException e) {
-					}
-					addLocation(location);
-					System.out.println("<- addLocation()");
-				} catch (LDAPException e) {
-					if (!(e.getResultCode() == LDAPException.ATTRIBUTE_OR_VALUE_EXISTS)) {
-						throw e;
-					}
-				}
+
+		// new attributes are added
+		Iterator<Map.Entry<String, String[]>> newAttributes = newValues.entrySet().iterator();
+		while (newAttributes.hasNext()) {
+			Map.Entry<String, String[]> newAttribute = newAttributes.next();
+			if (currentEntry.getAttribute(newAttribute.getKey()) == null) {
+				modifications.add(new LDAPModification(LDAPModification.ADD, new LDAPAttribute(newAttribute.getKey(),
+						newAttribute.getValue())));
 			}
 		}
-		
-		if (dataset.getMetaData() != null) {
-			System.out.println("setMetadata() ->");
-			setMetaData(dataset.getMetaData());
-			System.out.println("<- setMetadata()");
+
+		if (!modifications.isEmpty()) {
+			this.ldapAccess.ldapConnection.modify(this.baseDN, modifications
+					.toArray(new LDAPModification[modifications.size()]));
+			this.ldapAccess.markWrite();
+			this.invalidateLocationIndex();
+			this.getReferenceIndex().setReferences(this.uri, dataset.getRequiredContainers(),
+					dataset.getOptionalContainers());
 		}
-		
-		if (dataset.getRequiredContainers() != null) {
-			Iterator it = dataset.getRequiredContainers().iterator();
-			while (it.hasNext()) {
-				String container = (String) it.next();
-				try {
-					System.out.println("addRequiredContainers() ->");
-					addRequiredContainer(container);
-					System.out.println("<- addRequiredContainers()");
-				} catch (LDAPException e) {
-					if (!(e.getResultCode() == LDAPException.ATTRIBUTE_OR_VALUE_EXISTS)) {
-						throw e;
-					}
-				}
-			}
+	}
+
+	/**
+	 * Attributes which identify the entry and are never touched by
+	 * setDataSet().
+	 */
+	private boolean isProtectedAttribute(String name) {
+		return name.equalsIgnoreCase(this.entryAttributeType) || name.equalsIgnoreCase(CollaborillaObjectConstants.URI)
+				|| name.equalsIgnoreCase("objectclass")
+				|| name.equalsIgnoreCase(CollaborillaObjectConstants.REVISIONCOUNT);
+	}
+
+	private static void putValue(Map<String, String[]> map, String attribute, String value) {
+		if (value != null) {
+			map.put(attribute, new String[] { value });
 		}
-		
-		if (dataset.getOptionalContainers() != null) {
-			Iterator it = dataset.getOptionalContainers().iterator();
-			while (it.hasNext()) {
-				String container = (String) it.next();
-				try {
-					System.out.println("addOptionalContainers() ->");
-					addOptionalContainer(container);
-					System.out.println("<- addOptionalContainers()");
-				} catch (LDAPException e) {
-					if (!(e.getResultCode() == LDAPException.ATTRIBUTE_OR_VALUE_EXISTS)) {
-						throw e;
-					}
-				}
+	}
+
+	private static void putValues(Map<String, String[]> map, String attribute, Set<String> values) {
+		if (values != null && !values.isEmpty()) {
+			map.put(attribute, values.toArray(new String[values.size()]));
+		}
+	}
+
+	/**
+	 * Looks up an attribute case-insensitively, LDAP servers may return
+	 * attribute names in a different case.
+	 */
+	private static String[] getValues(Map<String, String[]> map, String attribute) {
+		Iterator<Map.Entry<String, String[]>> it = map.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, String[]> entry = it.next();
+			if (entry.getKey().equalsIgnoreCase(attribute)) {
+				return entry.getValue();
 			}
 		}
-		
-		if (dataset.getType() != null) {
-			System.out.println("setType() ->");
-			setType(dataset.getType());
-			System.out.println("<- setType()");
+		return null;
+	}
+
+	private static boolean sameValues(String[] oldValues, String[] newValues) {
+		if (oldValues == null) {
+			return false;
+		}
+		return new HashSet<String>(Arrays.asList(oldValues)).equals(new HashSet<String>(Arrays.asList(newValues)));
+	}
+
+	/**
+	 * Converts locations to their ASCII representation if they are valid
+	 * URIs.
+	 */
+	private static Set<String> toASCIILocations(Set<String> locations) {
+		if (locations == null) {
+			return null;
+		}
+
+		Set<String> result = new HashSet<String>();
+		Iterator<String> it = locations.iterator();
+		while (it.hasNext()) {
+			String location = it.next();
+			try {
+				location = new URI(location).toASCIIString();
+			} catch (URISyntaxException e) {
+			}
+			result.add(location);
 		}
+
+		return result;
 	}
 
-}
\ No newline at end of file
+}
@@ -95,4 +95,14 @@ public final class CollaborillaObjectConstants {
 
 	public static final String CONTAINERREVISION = PREFIX + "ContainerRevision";
 
+	/*
+	 * Revision Attributes
+	 */
+
+	/**
+	 * Number of the latest revision. Only set on the most recent entry, never
+	 * on the revisions themselves.
+	 */
+	public static final String REVISIONCOUNT = PREFIX + "RevisionCount";
+
 }
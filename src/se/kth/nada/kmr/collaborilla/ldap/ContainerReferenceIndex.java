@@ -0,0 +1,410 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.ldap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
+
+/**
+ * In-memory reverse index from container URIs to the URIs of the entries
+ * which reference them as required or optional container.
+ * <p>
+ * The index is built by a scan over the most recent entries of the directory,
+ * the results are processed while they arrive. Modifications done through
+ * CollaborillaObject update the index immediately; entries which are modified
+ * while a scan is running are read again before the new index replaces the
+ * old one. Modifications by other processes are picked up by periodic scans.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public class ContainerReferenceIndex {
+
+	/**
+	 * Containers referenced by one entry.
+	 */
+	private static class References {
+
+		Set<String> required = new HashSet<String>();
+
+		Set<String> optional = new HashSet<String>();
+
+		boolean isEmpty() {
+			return required.isEmpty() && optional.isEmpty();
+		}
+
+	}
+
+	/**
+	 * Forward and reverse maps, replaced as a whole after a scan.
+	 */
+	private static class Maps {
+
+		Map<String, References> references = new HashMap<String, References>();
+
+		Map<String, Set<String>> requiredBy = new HashMap<String, Set<String>>();
+
+		Map<String, Set<String>> optionalBy = new HashMap<String, Set<String>>();
+
+		void add(String element, String container, boolean optional) {
+			References refs = references.get(element);
+			if (refs == null) {
+				refs = new References();
+				references.put(element, refs);
+			}
+			if ((optional ? refs.optional : refs.required).add(container)) {
+				Map<String, Set<String>> reverse = optional ? optionalBy : requiredBy;
+				Set<String> elements = reverse.get(container);
+				if (elements == null) {
+					elements = new HashSet<String>();
+					reverse.put(container, elements);
+				}
+				elements.add(element);
+			}
+		}
+
+		void remove(String element, String container, boolean optional) {
+			References refs = references.get(element);
+			if (refs == null || !(optional ? refs.optional : refs.required).remove(container)) {
+				return;
+			}
+			if (refs.isEmpty()) {
+				references.remove(element);
+			}
+			Map<String, Set<String>> reverse = optional ? optionalBy : requiredBy;
+			Set<String> elements = reverse.get(container);
+			if (elements != null) {
+				elements.remove(element);
+				if (elements.isEmpty()) {
+					reverse.remove(container);
+				}
+			}
+		}
+
+		void replace(String element, Collection<String> required, Collection<String> optional) {
+			References old = references.get(element);
+			if (old != null) {
+				for (String container : new HashSet<String>(old.required)) {
+					remove(element, container, false);
+				}
+				for (String container : new HashSet<String>(old.optional)) {
+					remove(element, container, true);
+				}
+			}
+			if (required != null) {
+				for (String container : required) {
+					add(element, container, false);
+				}
+			}
+			if (optional != null) {
+				for (String container : optional) {
+					add(element, container, true);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Time to wait before a failed initial scan is repeated.
+	 */
+	private static final long RETRY_DELAY = 60 * 1000;
+
+	/**
+	 * Number of search results which are transferred at once during a scan.
+	 */
+	private static final int SCAN_BATCH_SIZE = 500;
+
+	private static final String SCAN_FILTER = "(&(" + CollaborillaObjectConstants.INFONODETYPE + "="
+			+ CollaborillaObjectConstants.INFONODE + ")(|(" + CollaborillaObjectConstants.REQUIREDCONTAINER + "=*)("
+			+ CollaborillaObjectConstants.OPTIONALCONTAINER + "=*)))";
+
+	private static final String[] SCAN_ATTRIBUTES = { CollaborillaObjectConstants.URI,
+			CollaborillaObjectConstants.REQUIREDCONTAINER, CollaborillaObjectConstants.OPTIONALCONTAINER };
+
+	private static Map<String, ContainerReferenceIndex> instances = new HashMap<String, ContainerReferenceIndex>();
+
+	private String serverDN;
+
+	private Maps maps = new Maps();
+
+	private boolean loaded = false;
+
+	// entries modified during a scan, null if no scan is running
+	private Set<String> modifiedDuringScan;
+
+	private Timer scanner;
+
+	private LDAPConnectionPool scanPool;
+
+	private long refreshInterval;
+
+	private ContainerReferenceIndex(String serverDN) {
+		this.serverDN = serverDN;
+	}
+
+	/**
+	 * Returns the index for a specific directory tree.
+	 *
+	 * @param serverDN
+	 *            Server Distinctive Name (DN)
+	 * @return Shared index instance
+	 */
+	public static synchronized ContainerReferenceIndex getInstance(String serverDN) {
+		ContainerReferenceIndex index = instances.get(serverDN);
+		if (index == null) {
+			index = new ContainerReferenceIndex(serverDN);
+			instances.put(serverDN, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Starts the initial scan in the background and repeats it periodically.
+	 *
+	 * @param pool
+	 *            Pool from which the connection for a scan is borrowed
+	 * @param refreshInterval
+	 *            Time in milliseconds between two scans, 0 or less scans only
+	 *            once.
+	 */
+	public synchronized void start(LDAPConnectionPool pool, long refreshInterval) {
+		if (scanner != null) {
+			return;
+		}
+		this.scanPool = pool;
+		this.refreshInterval = refreshInterval;
+		this.scanner = new Timer("container-reference-index", true);
+		scheduleScan(0);
+	}
+
+	private synchronized void scheduleScan(long delay) {
+		if (scanner == null) {
+			return;
+		}
+		scanner.schedule(new TimerTask() {
+			public void run() {
+				boolean success = scan();
+				if (refreshInterval > 0) {
+					scheduleScan(refreshInterval);
+				} else if (!success) {
+					scheduleScan(RETRY_DELAY);
+				}
+			}
+		}, delay);
+	}
+
+	/**
+	 * Stops the periodic scans.
+	 */
+	public synchronized void stop() {
+		if (scanner != null) {
+			scanner.cancel();
+			scanner = null;
+		}
+	}
+
+	private boolean scan() {
+		LDAPConnectionPool pool;
+		synchronized (this) {
+			pool = scanPool;
+		}
+		LDAPAccess dir;
+		try {
+			dir = pool.borrow();
+		} catch (LDAPException e) {
+			return false;
+		}
+		try {
+			rebuild(dir);
+			return true;
+		} catch (LDAPException e) {
+			return false;
+		} finally {
+			pool.release(dir);
+		}
+	}
+
+	/**
+	 * Scans the directory and replaces the content of the index.
+	 *
+	 * @param dir
+	 *            LDAP connection
+	 * @throws LDAPException
+	 *             If the scan fails, the index is not changed in this case.
+	 */
+	public void rebuild(LDAPAccess dir) throws LDAPException {
+		synchronized (this) {
+			modifiedDuringScan = new HashSet<String>();
+		}
+
+		Maps scanned = new Maps();
+		try {
+			LDAPSearchConstraints constraints = new LDAPSearchConstraints();
+			constraints.setMaxResults(0);
+			constraints.setBatchSize(SCAN_BATCH_SIZE);
+			String base = CollaborillaObjectConstants.INFOCONTAINERTYPE + "=" + CollaborillaObjectConstants.ROOT + ","
+					+ serverDN;
+			LDAPSearchResults results = dir.search(base, LDAPConnection.SCOPE_SUB, SCAN_FILTER, SCAN_ATTRIBUTES,
+					false, constraints);
+			while (results.hasMore()) {
+				LDAPEntry entry = results.next();
+				String uri = LDAPObject.getAttributeValue(entry, CollaborillaObjectConstants.URI);
+				if (uri != null) {
+					scanned.replace(uri, toList(LDAPObject.getAttributeValues(entry,
+							CollaborillaObjectConstants.REQUIREDCONTAINER)), toList(LDAPObject.getAttributeValues(
+							entry, CollaborillaObjectConstants.OPTIONALCONTAINER)));
+				}
+			}
+
+			// entries which were modified in the meantime may be outdated
+			while (true) {
+				Set<String> modified;
+				synchronized (this) {
+					if (modifiedDuringScan.isEmpty()) {
+						maps = scanned;
+						loaded = true;
+						modifiedDuringScan = null;
+						return;
+					}
+					modified = modifiedDuringScan;
+					modifiedDuringScan = new HashSet<String>();
+				}
+				for (String uri : modified) {
+					reread(dir, scanned, uri);
+				}
+			}
+		} finally {
+			synchronized (this) {
+				modifiedDuringScan = null;
+			}
+		}
+	}
+
+	private void reread(LDAPAccess dir, Maps target, String uri) throws LDAPException {
+		String[] attributes = { CollaborillaObjectConstants.REQUIREDCONTAINER,
+				CollaborillaObjectConstants.OPTIONALCONTAINER };
+		try {
+			LDAPEntry entry = dir.read(CollaborillaObject.entryDN(serverDN, uri, 0), attributes);
+			target.replace(uri, toList(LDAPObject.getAttributeValues(entry,
+					CollaborillaObjectConstants.REQUIREDCONTAINER)), toList(LDAPObject.getAttributeValues(entry,
+					CollaborillaObjectConstants.OPTIONALCONTAINER)));
+		} catch (LDAPException e) {
+			if (e.getResultCode() != LDAPException.NO_SUCH_OBJECT) {
+				throw e;
+			}
+			target.replace(uri, null, null);
+		}
+	}
+
+	private static Collection<String> toList(String[] values) {
+		if (values == null) {
+			return null;
+		}
+		return Arrays.asList(values);
+	}
+
+	/**
+	 * @return True if the first scan has finished.
+	 */
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Returns the entries which reference a container.
+	 *
+	 * @param container
+	 *            URI of the container
+	 * @param includeOptional
+	 *            Include entries which reference the container as optional
+	 *            container
+	 * @return Sorted set of URIs, or null if the index has not been loaded yet.
+	 */
+	public synchronized Set<String> getReferrers(String container, boolean includeOptional) {
+		if (!loaded) {
+			return null;
+		}
+		Set<String> result = new TreeSet<String>();
+		Set<String> required = maps.requiredBy.get(container);
+		if (required != null) {
+			result.addAll(required);
+		}
+		if (includeOptional) {
+			Set<String> optional = maps.optionalBy.get(container);
+			if (optional != null) {
+				result.addAll(optional);
+			}
+		}
+		return Collections.unmodifiableSet(result);
+	}
+
+	/**
+	 * @return Number of entries which reference at least one container.
+	 */
+	public synchronized int size() {
+		return maps.references.size();
+	}
+
+	/**
+	 * Records a new container reference of an entry.
+	 */
+	public synchronized void addReference(String element, String container, boolean optional) {
+		maps.add(element, container, optional);
+		entryModified(element);
+	}
+
+	/**
+	 * Records the removal of a container reference of an entry.
+	 */
+	public synchronized void removeReference(String element, String container, boolean optional) {
+		maps.remove(element, container, optional);
+		entryModified(element);
+	}
+
+	/**
+	 * Replaces all container references of an entry.
+	 *
+	 * @param required
+	 *            Required containers, may be null
+	 * @param optional
+	 *            Optional containers, may be null
+	 */
+	public synchronized void setReferences(String element, Collection<String> required, Collection<String> optional) {
+		maps.replace(element, required, optional);
+		entryModified(element);
+	}
+
+	private void entryModified(String element) {
+		if (modifiedDuringScan != null) {
+			modifiedDuringScan.add(element);
+		}
+	}
+
+	/**
+	 * Removes all entries, the index has to be scanned again.
+	 */
+	public synchronized void clear() {
+		maps = new Maps();
+		loaded = false;
+	}
+
+}
@@ -0,0 +1,536 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.ldap;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
+
+/**
+ * Bloom filter over the URIs of all existing entries. If the filter says that
+ * a URI is not contained, the entry does not exist and the lookup can be
+ * answered without asking the directory.
+ * <p>
+ * The filter is built by a scan over all info nodes and kept up to date by
+ * periodic searches for entries created since the last scan; entries created
+ * through CollaborillaObject are added immediately. Entries created by other
+ * processes are therefore unknown for up to one refresh interval. All scans
+ * read from the primary server, as a lagging replica would hide new entries.
+ * The searches for new entries overlap with the previous ones by a safety
+ * margin, to catch entries which became visible after entries with a newer
+ * creation timestamp had already been seen. Removed
+ * entries stay in the filter until the next full scan, they only increase the
+ * false positive rate. As long as the first scan has not finished every URI
+ * is reported as possibly existing.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public class EntryBloomFilter {
+
+	/**
+	 * Bit array with a fixed number of hash functions.
+	 */
+	private static class Bits {
+
+		AtomicLongArray words;
+
+		long bitCount;
+
+		int hashFunctions;
+
+		AtomicLong entries = new AtomicLong();
+
+		Bits(long expectedEntries, double falsePositiveRate, long maxBytes) {
+			expectedEntries = Math.max(1, expectedEntries);
+			double ln2 = Math.log(2);
+			long bits = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+			bits = Math.max(64, Math.min(bits, maxBytes * 8));
+			// AtomicLongArray is indexed by int
+			bits = Math.min(bits, (long) Integer.MAX_VALUE * 64);
+			int wordCount = (int) ((bits + 63) / 64);
+			this.words = new AtomicLongArray(wordCount);
+			this.bitCount = (long) wordCount * 64;
+			this.hashFunctions = Math.max(1, Math.min(16, (int) Math.round((double) bitCount / expectedEntries * ln2)));
+		}
+
+		void add(String uri) {
+			long h1 = hash(uri);
+			long h2 = mix(h1) | 1;
+			boolean changed = false;
+			for (int i = 0; i < hashFunctions; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long old;
+				while (((old = words.get(word)) & mask) == 0) {
+					if (words.compareAndSet(word, old, old | mask)) {
+						changed = true;
+						break;
+					}
+				}
+			}
+			// URIs which are added again (e.g. by a refresh) are not counted
+			if (changed) {
+				entries.incrementAndGet();
+			}
+		}
+
+		boolean mightContain(String uri) {
+			long h1 = hash(uri);
+			long h2 = mix(h1) | 1;
+			for (int i = 0; i < hashFunctions; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return False positive rate derived from the share of set bits.
+		 */
+		double getFalsePositiveRate() {
+			long set = 0;
+			for (int i = 0; i < words.length(); i++) {
+				set += Long.bitCount(words.get(i));
+			}
+			return Math.pow((double) set / bitCount, hashFunctions);
+		}
+
+		/**
+		 * FNV-1a over the characters of the string.
+		 */
+		private static long hash(String s) {
+			long h = 0xcbf29ce484222325L;
+			for (int i = 0; i < s.length(); i++) {
+				h ^= s.charAt(i);
+				h *= 0x100000001b3L;
+			}
+			return h;
+		}
+
+		/**
+		 * Finalizer of MurmurHash3, derives the second hash from the first.
+		 */
+		private static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb93fe53e1a7bL;
+			h ^= h >>> 33;
+			return h;
+		}
+
+	}
+
+	/**
+	 * Default number of entries the filter is sized for.
+	 */
+	public static final long DEFAULT_EXPECTED_ENTRIES = 1000000;
+
+	/**
+	 * Default false positive rate at the expected number of entries.
+	 */
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	/**
+	 * Default upper limit of the memory used by one filter.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * Number of search results which are transferred at once during a scan.
+	 */
+	private static final int SCAN_BATCH_SIZE = 1000;
+
+	/**
+	 * Minimum overlap of a search for new entries with the previous search.
+	 */
+	private static final long MIN_REFRESH_MARGIN = 60 * 1000;
+
+	private static final String SCAN_FILTER = "(" + CollaborillaObjectConstants.INFONODETYPE + "="
+			+ CollaborillaObjectConstants.INFONODE + ")";
+
+	private static final String[] SCAN_ATTRIBUTES = { CollaborillaObjectConstants.URI,
+			CollaborillaObjectConstants.DATECREATED };
+
+	private static Map<String, EntryBloomFilter> instances = new HashMap<String, EntryBloomFilter>();
+
+	private static long expectedEntries = DEFAULT_EXPECTED_ENTRIES;
+
+	private static double falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+
+	private static long maxBytes = DEFAULT_MAX_BYTES;
+
+	private String serverDN;
+
+	// null until the first scan has finished
+	private volatile Bits bits;
+
+	// newest creation timestamp seen, start of the next delta search
+	private String newestTimestamp;
+
+	// entries created during a full scan, null if no scan is running
+	private Set<String> createdDuringScan;
+
+	private Timer scanner;
+
+	private LDAPConnectionPool scanPool;
+
+	private long refreshMargin = MIN_REFRESH_MARGIN;
+
+	private AtomicLong lookups = new AtomicLong();
+
+	private AtomicLong negatives = new AtomicLong();
+
+	private AtomicLong falsePositives = new AtomicLong();
+
+	private EntryBloomFilter(String serverDN) {
+		this.serverDN = serverDN;
+	}
+
+	/**
+	 * Returns the filter for a specific directory tree.
+	 *
+	 * @param serverDN
+	 *            Server Distinctive Name (DN)
+	 * @return Shared filter instance
+	 */
+	public static synchronized EntryBloomFilter getInstance(String serverDN) {
+		EntryBloomFilter filter = instances.get(serverDN);
+		if (filter == null) {
+			filter = new EntryBloomFilter(serverDN);
+			instances.put(serverDN, filter);
+		}
+		return filter;
+	}
+
+	/**
+	 * Sets the size of filters which are built from now on. The number of
+	 * bits is calculated from the expected number of entries and the false
+	 * positive rate, but limited by the maximum memory. If a scan finds more
+	 * entries than expected the next filter is sized for the found number.
+	 *
+	 * @param entries
+	 *            Expected number of entries
+	 * @param fpp
+	 *            False positive rate at the expected number of entries
+	 * @param bytes
+	 *            Maximum memory of one filter in bytes
+	 */
+	public static synchronized void setSize(long entries, double fpp, long bytes) {
+		if (fpp <= 0 || fpp >= 1) {
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+		}
+		expectedEntries = entries;
+		falsePositiveRate = fpp;
+		maxBytes = bytes;
+	}
+
+	private static synchronized Bits createBits(long minEntries) {
+		return new Bits(Math.max(expectedEntries, minEntries), falsePositiveRate, maxBytes);
+	}
+
+	/**
+	 * Starts the initial scan in the background.
+	 *
+	 * @param pool
+	 *            Pool from which the connection for a scan is borrowed
+	 * @param refreshInterval
+	 *            Time in milliseconds between two searches for new entries
+	 * @param rebuildInterval
+	 *            Time in milliseconds between two full scans, 0 or less
+	 *            disables them.
+	 */
+	public synchronized void start(LDAPConnectionPool pool, long refreshInterval, long rebuildInterval) {
+		if (scanner != null) {
+			return;
+		}
+		scanPool = pool;
+		refreshMargin = Math.max(MIN_REFRESH_MARGIN, refreshInterval);
+		scanner = new Timer("entry-bloom-filter", true);
+
+		// also retries the initial scan until it succeeds
+		scanner.schedule(new TimerTask() {
+			public void run() {
+				scan(!isLoaded());
+			}
+		}, 0, Math.max(1000, refreshInterval));
+
+		if (rebuildInterval > 0) {
+			scanner.schedule(new TimerTask() {
+				public void run() {
+					scan(true);
+				}
+			}, rebuildInterval, rebuildInterval);
+		}
+	}
+
+	/**
+	 * Stops the scans, the current filter is kept.
+	 */
+	public synchronized void stop() {
+		if (scanner != null) {
+			scanner.cancel();
+			scanner = null;
+		}
+	}
+
+	private void scan(boolean full) {
+		LDAPConnectionPool pool;
+		synchronized (this) {
+			pool = scanPool;
+		}
+		LDAPAccess dir;
+		try {
+			dir = pool.borrow();
+		} catch (LDAPException e) {
+			return;
+		}
+		try {
+			if (full) {
+				rebuild(dir);
+			} else {
+				refresh(dir);
+			}
+		} catch (LDAPException e) {
+			// tried again with the next run
+		} finally {
+			pool.release(dir);
+		}
+	}
+
+	/**
+	 * Scans all entries and replaces the filter.
+	 *
+	 * @param dir
+	 *            LDAP connection
+	 * @throws LDAPException
+	 *             If the scan fails, the filter is not changed in this case.
+	 */
+	public void rebuild(LDAPAccess dir) throws LDAPException {
+		long previousEntries;
+		synchronized (this) {
+			createdDuringScan = new HashSet<String>();
+			previousEntries = (bits != null) ? bits.entries.get() : 0;
+		}
+
+		try {
+			Bits scanned = createBits(previousEntries * 3 / 2);
+			String newest = search(dir, SCAN_FILTER, scanned, null);
+
+			synchronized (this) {
+				for (String uri : createdDuringScan) {
+					scanned.add(uri);
+				}
+				bits = scanned;
+				if (newest != null) {
+					newestTimestamp = newest;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				createdDuringScan = null;
+			}
+		}
+	}
+
+	/**
+	 * Adds the entries which have been created since the last scan, minus a
+	 * safety margin of at least one refresh interval.
+	 *
+	 * @param dir
+	 *            LDAP connection
+	 * @throws LDAPException
+	 */
+	public void refresh(LDAPAccess dir) throws LDAPException {
+		Bits current;
+		String newest;
+		long margin;
+		synchronized (this) {
+			current = bits;
+			newest = newestTimestamp;
+			margin = refreshMargin;
+		}
+		if (current == null || newest == null) {
+			return;
+		}
+
+		// entries which are already contained are not counted again
+		String since = newest;
+		Date newestDate = LDAPStringHelper.parseTimestamp(newest);
+		if (newestDate != null) {
+			since = LDAPStringHelper.formatTimestamp(new Date(newestDate.getTime() - margin));
+		}
+
+		String filter = "(&" + SCAN_FILTER + "(" + CollaborillaObjectConstants.DATECREATED + ">=" + since + "))";
+		newest = search(dir, filter, current, newest);
+
+		synchronized (this) {
+			if (bits == current && newest != null && newest.compareTo(newestTimestamp) > 0) {
+				newestTimestamp = newest;
+			}
+		}
+	}
+
+	/**
+	 * Adds the URIs of all matching entries to the filter. The search is sent
+	 * to the primary server.
+	 *
+	 * @return The newest creation timestamp of the found entries.
+	 */
+	private String search(LDAPAccess dir, String filter, Bits target, String newest) throws LDAPException {
+		LDAPSearchConstraints constraints = new LDAPSearchConstraints();
+		constraints.setMaxResults(0);
+		constraints.setBatchSize(SCAN_BATCH_SIZE);
+		String base = CollaborillaObjectConstants.INFOCONTAINERTYPE + "=" + CollaborillaObjectConstants.ROOT + ","
+				+ serverDN;
+
+		dir.beginPrimaryReads();
+		try {
+			LDAPSearchResults results = dir.search(base, LDAPConnection.SCOPE_SUB, filter, SCAN_ATTRIBUTES, false,
+					constraints);
+
+			while (results.hasMore()) {
+				LDAPEntry entry = results.next();
+				String uri = LDAPObject.getAttributeValue(entry, CollaborillaObjectConstants.URI);
+				if (uri != null) {
+					target.add(uri);
+				}
+				String created = LDAPObject.getAttributeValue(entry, CollaborillaObjectConstants.DATECREATED);
+				if (created != null && (newest == null || created.compareTo(newest) > 0)) {
+					newest = created;
+				}
+			}
+		} finally {
+			dir.endPrimaryReads();
+		}
+
+		return newest;
+	}
+
+	/**
+	 * Adds a URI, has to be called whenever an entry is created.
+	 *
+	 * @param uri
+	 *            URI
+	 */
+	public synchronized void add(String uri) {
+		if (bits != null) {
+			bits.add(uri);
+		}
+		if (createdDuringScan != null) {
+			createdDuringScan.add(uri);
+		}
+	}
+
+	/**
+	 * Checks whether an entry may exist.
+	 *
+	 * @param uri
+	 *            URI
+	 * @return False if the entry does not exist for sure.
+	 */
+	public boolean mightContain(String uri) {
+		Bits current = bits;
+		if (current == null) {
+			return true;
+		}
+		lookups.incrementAndGet();
+		if (current.mightContain(uri)) {
+			return true;
+		}
+		negatives.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Counts a URI which passed the filter but does not exist.
+	 */
+	public void reportFalsePositive() {
+		if (bits != null) {
+			falsePositives.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return True if the first scan has finished.
+	 */
+	public boolean isLoaded() {
+		return bits != null;
+	}
+
+	/**
+	 * @return Approximate number of distinct URIs in the current filter.
+	 */
+	public long getEntryCount() {
+		Bits current = bits;
+		return (current != null) ? current.entries.get() : 0;
+	}
+
+	/**
+	 * @return Memory of the current filter in bytes.
+	 */
+	public long getSizeInBytes() {
+		Bits current = bits;
+		return (current != null) ? current.bitCount / 8 : 0;
+	}
+
+	/**
+	 * @return Number of hash functions of the current filter.
+	 */
+	public int getHashFunctionCount() {
+		Bits current = bits;
+		return (current != null) ? current.hashFunctions : 0;
+	}
+
+	/**
+	 * @return Expected false positive rate of the current filter, calculated
+	 *         from its fill level.
+	 */
+	public double getExpectedFalsePositiveRate() {
+		Bits current = bits;
+		return (current != null) ? current.getFalsePositiveRate() : 1;
+	}
+
+	/**
+	 * @return Number of lookups since the start.
+	 */
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return Number of lookups which were answered without the directory.
+	 */
+	public long getNegativeCount() {
+		return negatives.get();
+	}
+
+	/**
+	 * @return Number of lookups which passed the filter, but the entry did not
+	 *         exist.
+	 */
+	public long getFalsePositiveCount() {
+		return falsePositives.get();
+	}
+
+}
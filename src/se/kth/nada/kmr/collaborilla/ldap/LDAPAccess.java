@@ -11,14 +11,22 @@ import java.io.IOException;
 import java.security.Security;
 import javax.security.auth.callback.*;
 import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPJSSESecureSocketFactory;
 import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
 import com.novell.security.sasl.*;
 
 /**
  * Manages a connection to an LDAP server. Several binding (authentication)
  * methods are supported. Created to be used from other classes which need
  * straight-forward LDAP access.
+ * <p>
+ * If a replica set is configured the read methods of this class are routed to
+ * the replicas, all other requests go to the primary server. After a write
+ * reads go to the primary server for the stickiness time of the replica set,
+ * so that a client always sees its own modifications.
  * 
  * @author Hannes Ebner
  * @version $Id$
@@ -101,6 +109,12 @@ public class LDAPAccess {
 
 	private int bindingMethod;
 
+	private LDAPReplicaSet replicaSet;
+
+	private long primaryReadsUntil = 0;
+
+	private int primaryReadDepth = 0;
+
 	/*
 	 * Constructors
 	 */
@@ -304,4 +318,154 @@ public class LDAPAccess {
 		}
 	}
 
-}
\ No newline at end of file
+	/*
+	 * Read routing
+	 */
+
+	/**
+	 * Sets the replicas which are used for read requests.
+	 * 
+	 * @param replicaSet
+	 *            Replica set, null to read from the primary server only
+	 */
+	public void setReplicaSet(LDAPReplicaSet replicaSet) {
+		this.replicaSet = replicaSet;
+	}
+
+	/**
+	 * @return The replicas which are used for read requests, or null.
+	 */
+	public LDAPReplicaSet getReplicaSet() {
+		return this.replicaSet;
+	}
+
+	/**
+	 * Has to be called after a write request, reads are sent to the primary
+	 * server for the stickiness time of the replica set afterwards.
+	 */
+	public void markWrite() {
+		if (this.replicaSet != null && this.replicaSet.getStickiness() > 0) {
+			this.primaryReadsUntil = System.currentTimeMillis() + this.replicaSet.getStickiness();
+		}
+	}
+
+	/**
+	 * @return Time until reads are sent to the primary server, in milliseconds
+	 *         since the epoch.
+	 */
+	public long getPrimaryReadsUntil() {
+		return this.primaryReadsUntil;
+	}
+
+	/**
+	 * Carries the read-your-writes state over from another connection of the
+	 * same session.
+	 * 
+	 * @param time
+	 *            Time until reads are sent to the primary server, in
+	 *            milliseconds since the epoch.
+	 */
+	public void setPrimaryReadsUntil(long time) {
+		this.primaryReadsUntil = time;
+	}
+
+	/**
+	 * Sends all reads to the primary server until endPrimaryReads() is called.
+	 * Used by operations which have to read and write consistently.
+	 */
+	public void beginPrimaryReads() {
+		this.primaryReadDepth++;
+	}
+
+	/**
+	 * @see #beginPrimaryReads()
+	 */
+	public void endPrimaryReads() {
+		this.primaryReadDepth--;
+	}
+
+	/**
+	 * Executes a read request on a replica if possible, otherwise on the
+	 * primary server.
+	 * 
+	 * @param operation
+	 *            Read request
+	 * @return Result of the request
+	 * @throws LDAPException
+	 */
+	public <T> T executeRead(LDAPReplicaSet.ReadOperation<T> operation) throws LDAPException {
+		if (this.replicaSet != null && this.primaryReadDepth <= 0
+				&& System.currentTimeMillis() >= this.primaryReadsUntil) {
+			try {
+				return this.replicaSet.execute(operation);
+			} catch (LDAPException e) {
+				if (e.getResultCode() != LDAPException.UNAVAILABLE) {
+					throw e;
+				}
+				// no replica available, we fall back to the primary server
+			}
+		}
+
+		this.checkConnection();
+		return operation.execute(this.ldapConnection);
+	}
+
+	/**
+	 * Reads an entry, routed to a replica if possible.
+	 * 
+	 * @param dn
+	 *            Distinctive Name (DN) of the entry
+	 * @param attributes
+	 *            Names of the attributes, null for all attributes
+	 * @return The entry
+	 * @throws LDAPException
+	 */
+	public LDAPEntry read(final String dn, final String[] attributes) throws LDAPException {
+		return this.executeRead(new LDAPReplicaSet.ReadOperation<LDAPEntry>() {
+			public LDAPEntry execute(LDAPConnection connection) throws LDAPException {
+				return connection.read(dn, attributes);
+			}
+		});
+	}
+
+	/**
+	 * Performs a search, routed to a replica if possible. Searches on replicas
+	 * wait until all results are received, so that the connection can be given
+	 * back before the results are processed.
+	 * 
+	 * @param base
+	 *            Base DN of the search
+	 * @param scope
+	 *            Scope, one of LDAPConnection.SCOPE_*
+	 * @param filter
+	 *            Search filter
+	 * @param attributes
+	 *            Names of the attributes to return, null for all attributes
+	 * @param typesOnly
+	 *            Return only attribute names
+	 * @param constraints
+	 *            Search constraints, may be null
+	 * @return Search results
+	 * @throws LDAPException
+	 */
+	public LDAPSearchResults search(final String base, final int scope, final String filter,
+			final String[] attributes, final boolean typesOnly, final LDAPSearchConstraints constraints)
+			throws LDAPException {
+		return this.executeRead(new LDAPReplicaSet.ReadOperation<LDAPSearchResults>() {
+			public LDAPSearchResults execute(LDAPConnection connection) throws LDAPException {
+				if (connection == ldapConnection) {
+					if (constraints == null) {
+						return connection.search(base, scope, filter, attributes, typesOnly);
+					}
+					return connection.search(base, scope, filter, attributes, typesOnly, constraints);
+				}
+
+				LDAPSearchConstraints replicaConstraints = (constraints != null) ? (LDAPSearchConstraints) constraints
+						.clone() : connection.getSearchConstraints();
+				replicaConstraints.setBatchSize(0);
+				return connection.search(base, scope, filter, attributes, typesOnly, replicaConstraints);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,348 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.ldap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.novell.ldap.LDAPException;
+
+/**
+ * Bounded pool of bound LDAPAccess objects. At most maxSize connections exist
+ * at the same time; a caller which cannot get a connection within the borrow
+ * timeout receives an LDAPException with the result code BUSY. Idle
+ * connections are validated before they are handed out and closed after the
+ * idle timeout, as long as more than minSize connections are open.
+ * <p>
+ * Every borrowed connection has to be given back with release() or, if it
+ * turned out to be broken, with invalidate().
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public class LDAPConnectionPool {
+
+	/**
+	 * Idle connection and the time it was returned to the pool.
+	 */
+	private static class IdleConnection {
+
+		LDAPAccess connection;
+
+		long idleSince;
+
+		IdleConnection(LDAPAccess connection) {
+			this.connection = connection;
+			this.idleSince = System.currentTimeMillis();
+		}
+
+	}
+
+	private String ldapHost;
+
+	private String ldapLoginDN;
+
+	private String ldapPassword;
+
+	private int minSize;
+
+	private int maxSize;
+
+	private long borrowTimeout;
+
+	private long idleTimeout;
+
+	private Semaphore permits;
+
+	private Timer evictor;
+
+	private volatile LDAPReplicaSet replicaSet;
+
+	// the following fields are guarded by "this"
+
+	private LinkedList<IdleConnection> idle = new LinkedList<IdleConnection>();
+
+	private int activeCount = 0;
+
+	private int waitingCount = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Initializes the pool and opens minSize connections.
+	 *
+	 * @param host
+	 *            Hostname or IP address of the LDAP server
+	 * @param loginDN
+	 *            Login DN
+	 * @param password
+	 *            Password
+	 * @param minSize
+	 *            Number of connections which are kept open even if idle
+	 * @param maxSize
+	 *            Maximum number of open connections
+	 * @param borrowTimeout
+	 *            Maximum time in milliseconds to wait for a free connection
+	 * @param idleTimeout
+	 *            Time in milliseconds after which idle connections are closed,
+	 *            0 disables eviction
+	 */
+	public LDAPConnectionPool(String host, String loginDN, String password, int minSize, int maxSize,
+			long borrowTimeout, long idleTimeout) {
+		this.ldapHost = host;
+		this.ldapLoginDN = loginDN;
+		this.ldapPassword = password;
+		this.maxSize = Math.max(1, maxSize);
+		this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+		this.borrowTimeout = borrowTimeout;
+		this.idleTimeout = idleTimeout;
+		this.permits = new Semaphore(this.maxSize, true);
+
+		for (int i = 0; i < this.minSize; i++) {
+			try {
+				idle.add(new IdleConnection(createConnection()));
+			} catch (LDAPException e) {
+				// the server may not be up yet, connections are created on demand
+				break;
+			}
+		}
+
+		if (idleTimeout > 0) {
+			evictor = new Timer("ldap-pool-evictor", true);
+			long period = Math.max(1000, idleTimeout / 2);
+			evictor.schedule(new TimerTask() {
+				public void run() {
+					evictIdleConnections();
+				}
+			}, period, period);
+		}
+	}
+
+	/**
+	 * Takes a connection from the pool, waits at most the borrow timeout if
+	 * all connections are in use.
+	 *
+	 * @return Bound LDAPAccess object.
+	 * @throws LDAPException
+	 *             BUSY if no connection became available in time, or the error
+	 *             which occured while connecting to the server.
+	 */
+	public LDAPAccess borrow() throws LDAPException {
+		synchronized (this) {
+			if (closed) {
+				throw new LDAPException("Connection pool closed", LDAPException.UNAVAILABLE, (String) null);
+			}
+			waitingCount++;
+		}
+
+		boolean acquired = false;
+		try {
+			acquired = permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			synchronized (this) {
+				waitingCount--;
+			}
+		}
+
+		if (!acquired) {
+			throw new LDAPException("No LDAP connection available", LDAPException.BUSY, (String) null);
+		}
+
+		try {
+			LDAPAccess connection = takeValidIdleConnection();
+			if (connection == null) {
+				connection = createConnection();
+			}
+			connection.setReplicaSet(replicaSet);
+			connection.setPrimaryReadsUntil(0);
+			synchronized (this) {
+				activeCount++;
+			}
+			return connection;
+		} catch (LDAPException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException re) {
+			permits.release();
+			throw re;
+		}
+	}
+
+	/**
+	 * Gives a connection back to the pool.
+	 *
+	 * @param connection
+	 *            Connection obtained by borrow().
+	 */
+	public void release(LDAPAccess connection) {
+		if (connection == null) {
+			return;
+		}
+
+		boolean discard;
+		synchronized (this) {
+			activeCount--;
+			discard = closed;
+			if (!discard) {
+				idle.addFirst(new IdleConnection(connection));
+			}
+		}
+
+		if (discard) {
+			disconnect(connection);
+		}
+		permits.release();
+	}
+
+	/**
+	 * Closes a broken connection instead of returning it to the pool.
+	 *
+	 * @param connection
+	 *            Connection obtained by borrow().
+	 */
+	public void invalidate(LDAPAccess connection) {
+		if (connection == null) {
+			return;
+		}
+
+		synchronized (this) {
+			activeCount--;
+		}
+
+		disconnect(connection);
+		permits.release();
+	}
+
+	/**
+	 * Closes all idle connections and stops the eviction timer. Connections
+	 * which are still borrowed are closed when they are released.
+	 */
+	public void close() {
+		LinkedList<IdleConnection> toClose;
+
+		synchronized (this) {
+			closed = true;
+			toClose = idle;
+			idle = new LinkedList<IdleConnection>();
+		}
+
+		if (evictor != null) {
+			evictor.cancel();
+		}
+
+		for (Iterator<IdleConnection> it = toClose.iterator(); it.hasNext();) {
+			disconnect(it.next().connection);
+		}
+	}
+
+	/**
+	 * Sets the replicas which are used by the pooled connections for reads.
+	 * 
+	 * @param replicaSet
+	 *            Replica set, null to read from the primary server only
+	 */
+	public void setReplicaSet(LDAPReplicaSet replicaSet) {
+		this.replicaSet = replicaSet;
+	}
+
+	/**
+	 * @return Number of connections currently borrowed.
+	 */
+	public synchronized int getActiveCount() {
+		return activeCount;
+	}
+
+	/**
+	 * @return Number of open connections waiting in the pool.
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return Number of callers waiting for a connection.
+	 */
+	public synchronized int getWaitingCount() {
+		return waitingCount;
+	}
+
+	/**
+	 * @return Maximum number of open connections.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the most recently used idle connection which is still alive.
+	 * Dead connections are closed on the way.
+	 *
+	 * @return Connection or null if no valid idle connection exists.
+	 */
+	private LDAPAccess takeValidIdleConnection() {
+		while (true) {
+			IdleConnection candidate;
+			synchronized (this) {
+				if (idle.isEmpty()) {
+					return null;
+				}
+				candidate = idle.removeFirst();
+			}
+
+			if (isValid(candidate.connection)) {
+				return candidate.connection;
+			}
+
+			disconnect(candidate.connection);
+		}
+	}
+
+	/**
+	 * Closes connections which have been idle for longer than the idle timeout,
+	 * keeping at least minSize connections open.
+	 */
+	private void evictIdleConnections() {
+		LinkedList<LDAPAccess> toClose = new LinkedList<LDAPAccess>();
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			// the least recently used connections are at the end of the list
+			while (idle.size() > minSize && now - idle.getLast().idleSince > idleTimeout) {
+				toClose.add(idle.removeLast().connection);
+			}
+		}
+
+		for (Iterator<LDAPAccess> it = toClose.iterator(); it.hasNext();) {
+			disconnect(it.next());
+		}
+	}
+
+	private LDAPAccess createConnection() throws LDAPException {
+		LDAPAccess connection = new LDAPAccess(ldapHost, ldapLoginDN, ldapPassword);
+		connection.bind();
+		return connection;
+	}
+
+	private static boolean isValid(LDAPAccess connection) {
+		return connection.ldapConnection.isBound() && connection.ldapConnection.isConnectionAlive();
+	}
+
+	private static void disconnect(LDAPAccess connection) {
+		try {
+			connection.disconnect();
+		} catch (LDAPException e) {
+			// we don't care, the connection is not used anymore
+		}
+	}
+
+}
@@ -14,6 +14,7 @@ import se.kth.nada.kmr.collaborilla.util.Configuration;
 
 import com.novell.ldap.LDAPAttribute;
 import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPConnection;
 import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
 import com.novell.ldap.LDAPModification;
@@ -235,11 +236,8 @@ public class LDAPObject implements Cloneable {
 		/* lets look for all entries */
 		String searchFilter = "(objectclass=*)";
 
-		this.ldapAccess.checkConnection();
-
 		/* perform the search */
-		LDAPSearchResults searchResults = this.ldapAccess.ldapConnection.search(dn, searchScope, searchFilter, null,
-				true);
+		LDAPSearchResults searchResults = this.ldapAccess.search(dn, searchScope, searchFilter, null, true, null);
 
 		/*
 		 * we cannot determine the result count automatically, so we have to
@@ -272,6 +270,7 @@ public class LDAPObject implements Cloneable {
 	public void deleteEntry(String dn) throws LDAPException {
 		this.ldapAccess.checkConnection();
 		this.ldapAccess.ldapConnection.delete(dn);
+		this.ldapAccess.markWrite();
 	}
 
 	/**
@@ -304,6 +303,7 @@ public class LDAPObject implements Cloneable {
 		this.ldapAccess.checkConnection();
 		this.ldapAccess.ldapConnection.rename(oldDN, entryAttributeType + "=" + LDAPStringHelper.dnToEntryID(newDN),
 				LDAPStringHelper.dnToParentDN(newDN), true);
+		this.ldapAccess.markWrite();
 	}
 
 	/**
@@ -329,6 +329,7 @@ public class LDAPObject implements Cloneable {
 	public void renameEntry(String oldDN, String newRDN) throws LDAPException {
 		this.ldapAccess.checkConnection();
 		this.ldapAccess.ldapConnection.rename(oldDN, newRDN, true);
+		this.ldapAccess.markWrite();
 	}
 
 	/**
@@ -359,7 +360,25 @@ public class LDAPObject implements Cloneable {
 
 		/* read original entry with all attributes */
 		LDAPEntry sourceLdapEntry = this.ldapAccess.ldapConnection.read(sourceDN);
-		LDAPAttributeSet attributeSet = sourceLdapEntry.getAttributeSet();
+
+		this.copyEntry(sourceLdapEntry, destDN);
+	}
+
+	/**
+	 * Copies an already read entry to another location in the tree. The
+	 * Container path (parent/superior) of the destination DN has to exist.
+	 * 
+	 * @param sourceLdapEntry
+	 *            Entry with all attributes which should be copied
+	 * @param destDN
+	 *            Distinctive Name (DN) to which the entry should be copied to
+	 * @throws LDAPException
+	 */
+	public void copyEntry(LDAPEntry sourceLdapEntry, String destDN) throws LDAPException {
+		this.ldapAccess.checkConnection();
+
+		/* work on a copy, the source entry stays untouched */
+		LDAPAttributeSet attributeSet = (LDAPAttributeSet) sourceLdapEntry.getAttributeSet().clone();
 
 		/* remove old CN */
 		attributeSet.remove(new LDAPAttribute(entryAttributeType));
@@ -370,6 +389,7 @@ public class LDAPObject implements Cloneable {
 		/* create new entry and add it to the directory */
 		LDAPEntry newEntry = new LDAPEntry(destDN, attributeSet);
 		this.ldapAccess.ldapConnection.add(newEntry);
+		this.ldapAccess.markWrite();
 	}
 
 	/**
@@ -465,6 +485,7 @@ public class LDAPObject implements Cloneable {
 
 		/* add the new entry to the directory */
 		this.ldapAccess.ldapConnection.add(newEntry);
+		this.ldapAccess.markWrite();
 	}
 
 	/**
@@ -561,11 +582,9 @@ public class LDAPObject implements Cloneable {
 	 * @throws LDAPException
 	 */
 	public boolean entryExists(String dn) throws LDAPException {
-		this.ldapAccess.checkConnection();
-
 		try {
-			/* read the whole entry */
-			this.ldapAccess.ldapConnection.read(dn);
+			/* read the entry without attributes */
+			this.ldapAccess.read(dn, new String[] { LDAPConnection.NO_ATTRS });
 		} catch (LDAPException e) {
 			/* if this exception is triggered the entry does not exist */
 			if (e.getResultCode() == LDAPException.NO_SUCH_OBJECT) {
@@ -640,10 +659,8 @@ public class LDAPObject implements Cloneable {
 	public String[] readAttribute(String dn, String attribute) throws LDAPException {
 		String[] attrArray = { attribute };
 
-		this.ldapAccess.checkConnection();
-
 		/* read the whole entry */
-		LDAPEntry ldapEntry = this.ldapAccess.ldapConnection.read(dn, attrArray);
+		LDAPEntry ldapEntry = this.ldapAccess.read(dn, attrArray);
 
 		/* we extract the attributes */
 		LDAPAttributeSet ldapAttributeSet = ldapEntry.getAttributeSet();
@@ -665,6 +682,60 @@ public class LDAPObject implements Cloneable {
 		return ldapAttribute.getStringValueArray();
 	}
 
+	/**
+	 * Reads several attributes of a specific entry with a single request.
+	 * 
+	 * @param dn
+	 *            Distinctive Name (DN) of the entry
+	 * @param attributes
+	 *            Names of the attributes, operational attributes have to be
+	 *            named explicitly
+	 * @return The entry with the requested attributes
+	 * @throws LDAPException
+	 */
+	public LDAPEntry readEntry(String dn, String[] attributes) throws LDAPException {
+		return this.ldapAccess.read(dn, attributes);
+	}
+
+	/**
+	 * Returns the value(s) of an attribute of an already read entry.
+	 * 
+	 * @param entry
+	 *            LDAP entry
+	 * @param attribute
+	 *            Name of the attribute
+	 * @return String array with the attribute values or null if the attribute
+	 *         does not exist
+	 */
+	public static String[] getAttributeValues(LDAPEntry entry, String attribute) {
+		LDAPAttribute ldapAttribute = entry.getAttributeSet().getAttribute(attribute);
+
+		if (ldapAttribute == null) {
+			return null;
+		}
+
+		return ldapAttribute.getStringValueArray();
+	}
+
+	/**
+	 * Returns the first value of an attribute of an already read entry.
+	 * 
+	 * @param entry
+	 *            LDAP entry
+	 * @param attribute
+	 *            Name of the attribute
+	 * @return First value or null if the attribute does not exist
+	 */
+	public static String getAttributeValue(LDAPEntry entry, String attribute) {
+		String[] values = getAttributeValues(entry, attribute);
+
+		if (values == null || values.length == 0) {
+			return null;
+		}
+
+		return values[0];
+	}
+
 	/**
 	 * Adds an attribute to the current entry.
 	 * 
@@ -700,6 +771,7 @@ public class LDAPObject implements Cloneable {
 
 		/* submit the modification to the directory */
 		this.ldapAccess.ldapConnection.modify(dn, modification);
+		this.ldapAccess.markWrite();
 	}
 
 	/**
@@ -745,6 +817,7 @@ public class LDAPObject implements Cloneable {
 
 		/* submit the modification to the server */
 		this.ldapAccess.ldapConnection.modify(dn, modification);
+		this.ldapAccess.markWrite();
 	}
 
 	/**
@@ -778,9 +851,10 @@ public class LDAPObject implements Cloneable {
 			LDAPAttribute attribute = (LDAPAttribute) allAttributes.next();
 			String attributeName = attribute.getName();
 
-			/* if the attribute is part of the RDN we skip the mod */
+			/* if the attribute is part of the RDN or the revision counter we skip the mod */
 			if (attributeName.equalsIgnoreCase(this.entryAttributeType) ||
 					attributeName.equalsIgnoreCase(CollaborillaObjectConstants.URI) ||
+					attributeName.equalsIgnoreCase(CollaborillaObjectConstants.REVISIONCOUNT) ||
 					attributeName.equalsIgnoreCase("objectclass")) {
 				continue;
 			}
@@ -793,6 +867,7 @@ public class LDAPObject implements Cloneable {
 
 			/* submit the modification to the server */
 			this.ldapAccess.ldapConnection.modify(dn, modification);
+			this.ldapAccess.markWrite();
 		}
 	}
 
@@ -867,6 +942,7 @@ public class LDAPObject implements Cloneable {
 
 		/* submit the modification to the server */
 		this.ldapAccess.ldapConnection.modify(dn, modification);
+		this.ldapAccess.markWrite();
 	}
 
 	/**
@@ -889,8 +965,9 @@ public class LDAPObject implements Cloneable {
 		LDAPEntry sourceLdapEntry = this.ldapAccess.ldapConnection.read(sourceDN);
 		LDAPAttributeSet attributeSet = sourceLdapEntry.getAttributeSet();
 
-		/* remove old CN */
+		/* remove old CN and the revision counter */
 		attributeSet.remove(new LDAPAttribute(entryAttributeType));
+		attributeSet.remove(new LDAPAttribute(CollaborillaObjectConstants.REVISIONCOUNT));
 		Iterator allAttributes = attributeSet.iterator();
 
 		/* iterate through the attributes and modify the destination */
@@ -902,6 +979,7 @@ public class LDAPObject implements Cloneable {
 
 			/* modify entry */
 			this.ldapAccess.ldapConnection.modify(destDN, modification);
+			this.ldapAccess.markWrite();
 		}
 	}
 
@@ -0,0 +1,288 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.ldap;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+
+/**
+ * Set of read-only replicas of the LDAP directory. Read requests are sent to
+ * the healthy replica with the least outstanding requests; a replica which
+ * fails with a connection error is taken out of rotation until a periodic
+ * health check succeeds again. If no replica is able to serve a request an
+ * LDAPException with the result code UNAVAILABLE is thrown and the caller is
+ * expected to fall back to the primary server.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public class LDAPReplicaSet {
+
+	/**
+	 * A read request which can be executed on any connection.
+	 */
+	public interface ReadOperation<T> {
+
+		T execute(LDAPConnection connection) throws LDAPException;
+
+	}
+
+	/**
+	 * One replica with its own connection pool.
+	 */
+	private static class Replica {
+
+		String host;
+
+		LDAPConnectionPool pool;
+
+		AtomicInteger outstanding = new AtomicInteger();
+
+		volatile boolean healthy = true;
+
+		Replica(String host, LDAPConnectionPool pool) {
+			this.host = host;
+			this.pool = pool;
+		}
+
+	}
+
+	private Replica[] replicas;
+
+	private long stickiness;
+
+	private Timer healthChecker;
+
+	private AtomicInteger rotation = new AtomicInteger();
+
+	/**
+	 * Initializes the replica set and starts the health checks.
+	 *
+	 * @param hosts
+	 *            Hostnames or IP addresses of the replicas
+	 * @param loginDN
+	 *            Login DN
+	 * @param password
+	 *            Password
+	 * @param poolMin
+	 *            Number of connections per replica kept open even if idle
+	 * @param poolMax
+	 *            Maximum number of connections per replica
+	 * @param borrowTimeout
+	 *            Maximum time in milliseconds to wait for a free connection
+	 * @param idleTimeout
+	 *            Time in milliseconds after which idle connections are closed
+	 * @param healthCheckInterval
+	 *            Time in milliseconds between two health checks
+	 * @param stickiness
+	 *            Time in milliseconds after a write during which a client
+	 *            reads from the primary server, 0 disables read-your-writes
+	 */
+	public LDAPReplicaSet(String[] hosts, String loginDN, String password, int poolMin, int poolMax,
+			long borrowTimeout, long idleTimeout, long healthCheckInterval, long stickiness) {
+		this.stickiness = stickiness;
+		this.replicas = new Replica[hosts.length];
+		for (int i = 0; i < hosts.length; i++) {
+			replicas[i] = new Replica(hosts[i], new LDAPConnectionPool(hosts[i], loginDN, password, poolMin, poolMax,
+					borrowTimeout, idleTimeout));
+		}
+
+		if (healthCheckInterval > 0) {
+			healthChecker = new Timer("ldap-replica-healthcheck", true);
+			healthChecker.schedule(new TimerTask() {
+				public void run() {
+					checkHealth();
+				}
+			}, healthCheckInterval, healthCheckInterval);
+		}
+	}
+
+	/**
+	 * Executes a read request on the least busy healthy replica. Replicas
+	 * which fail with a connection error are marked unhealthy and the next
+	 * replica is tried.
+	 *
+	 * @param operation
+	 *            Read request
+	 * @return Result of the request
+	 * @throws LDAPException
+	 *             UNAVAILABLE if no replica could serve the request, BUSY if
+	 *             the connection pools of the remaining replicas were
+	 *             exhausted, or any other error returned by a replica (e.g.
+	 *             NO_SUCH_OBJECT).
+	 */
+	public <T> T execute(ReadOperation<T> operation) throws LDAPException {
+		boolean[] tried = new boolean[replicas.length];
+		LDAPException saturated = null;
+
+		for (int attempt = 0; attempt < replicas.length; attempt++) {
+			int index = selectReplica(tried);
+			if (index == -1) {
+				break;
+			}
+			tried[index] = true;
+
+			Replica replica = replicas[index];
+			replica.outstanding.incrementAndGet();
+			try {
+				LDAPAccess connection;
+				try {
+					connection = replica.pool.borrow();
+				} catch (LDAPException e) {
+					if (e.getResultCode() == LDAPException.BUSY) {
+						// our pool is saturated, the replica itself is fine
+						saturated = e;
+						continue;
+					}
+					if (!isConnectionFailure(e.getResultCode())) {
+						throw e;
+					}
+					replica.healthy = false;
+					continue;
+				}
+
+				try {
+					T result = operation.execute(connection.ldapConnection);
+					replica.pool.release(connection);
+					return result;
+				} catch (LDAPException e) {
+					if (!isConnectionFailure(e.getResultCode())) {
+						// request-level error (e.g. NO_SUCH_OBJECT), the
+						// connection is still usable
+						replica.pool.release(connection);
+						throw e;
+					}
+					replica.pool.invalidate(connection);
+					replica.healthy = false;
+				} catch (RuntimeException re) {
+					replica.pool.invalidate(connection);
+					throw re;
+				}
+			} finally {
+				replica.outstanding.decrementAndGet();
+			}
+		}
+
+		if (saturated != null) {
+			throw saturated;
+		}
+		throw new LDAPException("No LDAP replica available", LDAPException.UNAVAILABLE, (String) null);
+	}
+
+	/**
+	 * @return Time in milliseconds after a write during which reads go to the
+	 *         primary server.
+	 */
+	public long getStickiness() {
+		return stickiness;
+	}
+
+	/**
+	 * @return Number of replicas.
+	 */
+	public int size() {
+		return replicas.length;
+	}
+
+	/**
+	 * @return Number of replicas which are currently in rotation.
+	 */
+	public int getHealthyCount() {
+		int count = 0;
+		for (int i = 0; i < replicas.length; i++) {
+			if (replicas[i].healthy) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Stops the health checks and closes all connections.
+	 */
+	public void close() {
+		if (healthChecker != null) {
+			healthChecker.cancel();
+		}
+		for (int i = 0; i < replicas.length; i++) {
+			replicas[i].pool.close();
+		}
+	}
+
+	/**
+	 * Returns the healthy replica with the least outstanding requests which
+	 * has not been tried yet. Equally loaded replicas are used in turns.
+	 *
+	 * @return Index of the replica or -1 if no replica is left.
+	 */
+	private int selectReplica(boolean[] tried) {
+		int start = (rotation.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+		int best = -1;
+		int bestLoad = Integer.MAX_VALUE;
+
+		for (int i = 0; i < replicas.length; i++) {
+			int index = (start + i) % replicas.length;
+			if (tried[index] || !replicas[index].healthy) {
+				continue;
+			}
+			int load = replicas[index].outstanding.get();
+			if (load < bestLoad) {
+				best = index;
+				bestLoad = load;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Reads the root DSE of every replica and updates its health state.
+	 */
+	private void checkHealth() {
+		for (int i = 0; i < replicas.length; i++) {
+			Replica replica = replicas[i];
+			LDAPAccess connection = null;
+			try {
+				connection = replica.pool.borrow();
+				connection.ldapConnection.read("", new String[] { "namingContexts" });
+				replica.pool.release(connection);
+				connection = null;
+				replica.healthy = true;
+			} catch (LDAPException e) {
+				replica.healthy = false;
+			} finally {
+				if (connection != null) {
+					replica.pool.invalidate(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return True if the result code indicates that the replica itself is not
+	 *         usable, as opposed to an error caused by the request.
+	 */
+	private static boolean isConnectionFailure(int resultCode) {
+		switch (resultCode) {
+		case LDAPException.CONNECT_ERROR:
+		case LDAPException.SERVER_DOWN:
+		case LDAPException.UNAVAILABLE:
+		case LDAPException.BUSY:
+		case LDAPException.LDAP_TIMEOUT:
+		case LDAPException.UNWILLING_TO_PERFORM:
+		case LDAPException.OTHER:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+}
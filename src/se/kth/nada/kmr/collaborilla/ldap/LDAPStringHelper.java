@@ -406,4 +406,18 @@ public class LDAPStringHelper {
 		return date;
 	}
 
+	/**
+	 * Creates an X.208 formatted timestamp from a Date object.
+	 * 
+	 * @param date
+	 *            Date object.
+	 * @return X.208 formatted timestamp in UTC.
+	 * @see #parseTimestamp(String)
+	 */
+	public static String formatTimestamp(Date date) {
+		DateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+		formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return formatter.format(date);
+	}
+
 }
\ No newline at end of file
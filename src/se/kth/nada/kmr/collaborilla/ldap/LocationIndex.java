@@ -0,0 +1,267 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.ldap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory index of the Location attributes of the most recent entries,
+ * organized as a trie over the "/" separated segments of the URIs. Both
+ * entries with locations and entries without locations (or entries which do
+ * not exist at all) are remembered, so that the resolution of aligned
+ * locations does not have to ask the directory for every parent URI.
+ * <p>
+ * Entries expire after a configurable time to pick up modifications done by
+ * other processes; modifications done through CollaborillaObject invalidate
+ * the respective entry immediately.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public class LocationIndex {
+
+	/**
+	 * Result of a lookup.
+	 */
+	public static class Entry {
+
+		private String[] locations;
+
+		Entry(String[] locations) {
+			this.locations = locations;
+		}
+
+		/**
+		 * @return A copy of the locations, or null if the URI has no location.
+		 */
+		public String[] getLocations() {
+			if (locations == null) {
+				return null;
+			}
+			String[] result = new String[locations.length];
+			System.arraycopy(locations, 0, result, 0, locations.length);
+			return result;
+		}
+
+		/**
+		 * @return True if the URI has at least one location.
+		 */
+		public boolean hasLocations() {
+			return locations != null;
+		}
+
+	}
+
+	/**
+	 * Node of the trie, represents one URI segment.
+	 */
+	private static class Node {
+
+		Map<String, Node> children;
+
+		Entry entry;
+
+		long expires;
+
+	}
+
+	/**
+	 * Default time to live of an entry in milliseconds.
+	 */
+	public static final long DEFAULT_TTL = 60 * 1000;
+
+	/**
+	 * Maximum number of entries before the whole index is dropped.
+	 */
+	private static final int MAX_ENTRIES = 100000;
+
+	private static Map<String, LocationIndex> instances = new HashMap<String, LocationIndex>();
+
+	private static long timeToLive = DEFAULT_TTL;
+
+	private Node root = new Node();
+
+	private int entryCount = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * Returns the index for a specific directory tree.
+	 *
+	 * @param serverDN
+	 *            Server Distinctive Name (DN)
+	 * @return Shared index instance
+	 */
+	public static synchronized LocationIndex getInstance(String serverDN) {
+		LocationIndex index = instances.get(serverDN);
+		if (index == null) {
+			index = new LocationIndex();
+			instances.put(serverDN, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Sets the time to live of new entries.
+	 *
+	 * @param ttl
+	 *            Time in milliseconds, 0 or less disables the index.
+	 */
+	public static synchronized void setTimeToLive(long ttl) {
+		timeToLive = ttl;
+	}
+
+	private static synchronized long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Looks up the locations of a URI.
+	 *
+	 * @param uri
+	 *            URI
+	 * @return The cached state or null if the URI is not in the index.
+	 */
+	public synchronized Entry get(String uri) {
+		Node node = findNode(uri, false);
+
+		if (node == null || node.entry == null) {
+			misses++;
+			return null;
+		}
+
+		if (node.expires < System.currentTimeMillis()) {
+			node.entry = null;
+			entryCount--;
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return node.entry;
+	}
+
+	/**
+	 * Remembers the locations of a URI.
+	 *
+	 * @param uri
+	 *            URI
+	 * @param locations
+	 *            Locations of the URI, null or empty if it has none.
+	 */
+	public synchronized void put(String uri, String[] locations) {
+		long ttl = getTimeToLive();
+		if (ttl <= 0) {
+			return;
+		}
+
+		if (entryCount >= MAX_ENTRIES) {
+			clear();
+		}
+
+		Node node = findNode(uri, true);
+		if (node.entry == null) {
+			entryCount++;
+		}
+
+		String[] copy = null;
+		if (locations != null && locations.length > 0) {
+			copy = new String[locations.length];
+			System.arraycopy(locations, 0, copy, 0, locations.length);
+		}
+
+		node.entry = new Entry(copy);
+		node.expires = System.currentTimeMillis() + ttl;
+	}
+
+	/**
+	 * Removes a URI from the index. Must be called whenever the locations of
+	 * the URI are modified.
+	 *
+	 * @param uri
+	 *            URI
+	 */
+	public synchronized void invalidate(String uri) {
+		Node node = findNode(uri, false);
+		if (node != null && node.entry != null) {
+			node.entry = null;
+			entryCount--;
+		}
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear() {
+		root = new Node();
+		entryCount = 0;
+	}
+
+	/**
+	 * @return Number of URIs in the index, including expired ones.
+	 */
+	public synchronized int size() {
+		return entryCount;
+	}
+
+	/**
+	 * @return Number of successful lookups.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return Number of lookups which had to go to the directory.
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Walks down the trie along the segments of the URI.
+	 *
+	 * @param create
+	 *            Create missing nodes.
+	 * @return The node of the URI or null if it does not exist and create is
+	 *         false.
+	 */
+	private Node findNode(String uri, boolean create) {
+		Node node = root;
+		int start = 0;
+
+		while (start <= uri.length()) {
+			int end = uri.indexOf('/', start);
+			if (end == -1) {
+				end = uri.length();
+			}
+
+			String segment = uri.substring(start, end);
+			Node child = (node.children != null) ? node.children.get(segment) : null;
+
+			if (child == null) {
+				if (!create) {
+					return null;
+				}
+				if (node.children == null) {
+					node.children = new HashMap<String, Node>();
+				}
+				child = new Node();
+				node.children.put(segment, child);
+			}
+
+			node = child;
+			start = end + 1;
+		}
+
+		return node;
+	}
+
+}
@@ -0,0 +1,468 @@
+package se.kth.nada.kmr.collaborilla.ldap;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Extracts the few properties needed for the feeds (title, description,
+ * purpose, context and author name) from RDF/XML metadata without building an
+ * RDF model. The document is streamed through a SAX parser and only the
+ * statements with one of the interesting predicates are kept.
+ * <p>
+ * The supported RDF/XML syntax covers node elements with rdf:about, rdf:ID
+ * and rdf:nodeID, property attributes, rdf:resource, rdf:parseType="Resource"
+ * and "Literal", nested node elements, containers with rdf:li, xml:lang and
+ * xml:base.
+ *
+ * @author Hannes Ebner
+ */
+public class MetadataFieldExtractor {
+
+	static Log log = LogFactory.getLog(MetadataFieldExtractor.class);
+
+	public static final String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+	public static final String XML = "http://www.w3.org/XML/1998/namespace";
+
+	public static final String DC = "http://purl.org/dc/elements/1.1/";
+
+	public static final String ULM = "http://kmr.nada.kth.se/rdf/ulm#";
+
+	public static final String FOAF = "http://xmlns.com/foaf/0.1/";
+
+	public static final String DC_TITLE = DC + "title";
+
+	public static final String DC_DESCRIPTION = DC + "description";
+
+	public static final String DC_CREATOR = DC + "creator";
+
+	public static final String ULM_PURPOSE = ULM + "purpose";
+
+	public static final String ULM_CONTEXT = ULM + "context";
+
+	public static final String FOAF_NAME = FOAF + "name";
+
+	private static final String RDF_FIRST_MEMBER = RDF + "_1";
+
+	private static final Set<String> PREDICATES = new HashSet<String>();
+
+	static {
+		PREDICATES.add(DC_TITLE);
+		PREDICATES.add(DC_DESCRIPTION);
+		PREDICATES.add(DC_CREATOR);
+		PREDICATES.add(ULM_PURPOSE);
+		PREDICATES.add(ULM_CONTEXT);
+		PREDICATES.add(FOAF_NAME);
+		PREDICATES.add(RDF_FIRST_MEMBER);
+	}
+
+	private static SAXParserFactory parserFactory;
+
+	/**
+	 * A statement with one of the interesting predicates.
+	 */
+	private static class Statement {
+
+		String subject;
+
+		String predicate;
+
+		String object;
+
+		String language;
+
+		boolean literal;
+
+		Statement(String subject, String predicate, String object, String language, boolean literal) {
+			this.subject = subject;
+			this.predicate = predicate;
+			this.object = object;
+			this.language = language;
+			this.literal = literal;
+		}
+
+	}
+
+	private List<Statement> statements = new ArrayList<Statement>();
+
+	private String uri;
+
+	/**
+	 * Parses the metadata of an entry.
+	 *
+	 * @param rdfXml
+	 *            RDF/XML document
+	 * @param uri
+	 *            URI of the described resource, also used as base URI
+	 * @throws SAXException
+	 *             If the document cannot be parsed.
+	 */
+	public MetadataFieldExtractor(String rdfXml, String uri) throws SAXException {
+		this.uri = uri;
+		try {
+			SAXParser parser = getParserFactory().newSAXParser();
+			InputSource source = new InputSource(new StringReader(rdfXml));
+			source.setSystemId(uri);
+			parser.parse(source, new RDFHandler(uri));
+		} catch (ParserConfigurationException e) {
+			throw new SAXException(e);
+		} catch (IOException e) {
+			throw new SAXException(e);
+		}
+	}
+
+	private static synchronized SAXParserFactory getParserFactory() {
+		if (parserFactory == null) {
+			parserFactory = SAXParserFactory.newInstance();
+			parserFactory.setNamespaceAware(true);
+			parserFactory.setValidating(false);
+			try {
+				parserFactory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+				parserFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			} catch (Exception e) {
+				log.debug("Unable to disable external entities: " + e.getMessage());
+			}
+		}
+		return parserFactory;
+	}
+
+	/**
+	 * Returns the title in the requested language. Falls back to an English
+	 * title, then to a title without language, then to a title in any other
+	 * language and finally to the URI.
+	 */
+	public String getTitle(String language) {
+		String none = null;
+		String fallback = null;
+		String other = null;
+		for (Statement s : statements) {
+			if (!s.literal || !DC_TITLE.equals(s.predicate) || !uri.equals(s.subject)) {
+				continue;
+			}
+			boolean aLNull = s.language == null || s.language.length() == 0;
+			if (aLNull) {
+				none = s.object;
+			} else if (s.language.equals(language)) {
+				return s.object;
+			} else if (s.language.equals("en")) {
+				fallback = s.object;
+			} else {
+				other = s.object;
+			}
+		}
+		if (fallback != null) {
+			return fallback;
+		} else if (none != null) {
+			return none;
+		}
+		if (other != null) {
+			return other;
+		}
+
+		return uri;
+	}
+
+	public String getDescription(String language) {
+		return getPropertyAlt(DC_DESCRIPTION, language);
+	}
+
+	public String getPurpose(String language) {
+		return getPropertyAlt(ULM_PURPOSE, language);
+	}
+
+	public String getContext(String language) {
+		return getPropertyAlt(ULM_CONTEXT, language);
+	}
+
+	/**
+	 * Returns the value of a property in the requested language. If the value
+	 * is a resource it is expected to be an rdf:Alt and its default (first)
+	 * member is returned.
+	 */
+	public String getPropertyAlt(String property, String language) {
+		String result = null;
+		for (Statement s : statements) {
+			if (!property.equals(s.predicate) || !uri.equals(s.subject)) {
+				continue;
+			}
+			if (s.literal) {
+				if (s.language != null && s.language.equals(language)) {
+					result = s.object;
+				}
+			} else {
+				result = getValue(s.object, RDF_FIRST_MEMBER);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the foaf:name of the first dc:creator found in the document.
+	 */
+	public String getAuthorName() {
+		for (Statement s : statements) {
+			if (DC_CREATOR.equals(s.predicate)) {
+				return getValue(s.object, FOAF_NAME);
+			}
+		}
+		return null;
+	}
+
+	private String getValue(String subject, String predicate) {
+		for (Statement s : statements) {
+			if (predicate.equals(s.predicate) && subject.equals(s.subject)) {
+				return s.object;
+			}
+		}
+		return null;
+	}
+
+	private void addStatement(String subject, String predicate, String object, String language, boolean literal) {
+		if (PREDICATES.contains(predicate)) {
+			statements.add(new Statement(subject, predicate, object, language, literal));
+		}
+	}
+
+	/**
+	 * Turns the SAX events of an RDF/XML document into statements.
+	 */
+	private class RDFHandler extends DefaultHandler {
+
+		/**
+		 * Element on the stack, either a node or a property element.
+		 */
+		private class Frame {
+
+			boolean node;
+
+			/** Subject of a node element or of the node a property belongs to */
+			String subject;
+
+			String predicate;
+
+			String language;
+
+			String base;
+
+			/** Object of a property element, if it is a resource */
+			String object;
+
+			/** parseType="Resource": children are properties of object */
+			boolean resourceType;
+
+			/** Counter for rdf:li */
+			int members = 0;
+
+			StringBuilder text;
+
+		}
+
+		private LinkedList<Frame> stack = new LinkedList<Frame>();
+
+		private String documentBase;
+
+		/** Depth inside a parseType="Literal" property, 0 if outside */
+		private int literalDepth = 0;
+
+		private int blankNodes = 0;
+
+		RDFHandler(String base) {
+			this.documentBase = base;
+		}
+
+		public void startElement(String namespace, String localName, String qName, Attributes attributes) {
+			if (literalDepth > 0) {
+				literalDepth++;
+				return;
+			}
+
+			Frame parent = stack.isEmpty() ? null : stack.getLast();
+			String language = attributes.getValue(XML, "lang");
+			if (language == null && parent != null) {
+				language = parent.language;
+			}
+			String base = attributes.getValue(XML, "base");
+			if (base == null) {
+				base = (parent != null) ? parent.base : documentBase;
+			} else {
+				base = resolve(parent != null ? parent.base : documentBase, base);
+			}
+			String name = namespace + localName;
+
+			Frame frame = new Frame();
+			frame.language = language;
+			frame.base = base;
+
+			if (RDF.equals(namespace) && "RDF".equals(localName)) {
+				// the root element is treated as a property without subject
+				frame.node = false;
+				stack.add(frame);
+				return;
+			}
+
+			boolean expectNode = (parent == null) || (!parent.node && !parent.resourceType);
+
+			if (expectNode) {
+				frame.node = true;
+				frame.subject = getSubject(attributes, base);
+				addPropertyAttributes(frame.subject, attributes, language);
+				if (parent != null && parent.predicate != null) {
+					parent.object = frame.subject;
+				}
+			} else {
+				String subject = parent.node ? parent.subject : parent.object;
+				frame.node = false;
+				frame.subject = subject;
+				if (RDF.equals(namespace) && "li".equals(localName)) {
+					parent.members++;
+					frame.predicate = RDF + "_" + parent.members;
+				} else {
+					frame.predicate = name;
+				}
+
+				String resource = attributes.getValue(RDF, "resource");
+				String nodeID = attributes.getValue(RDF, "nodeID");
+				String parseType = attributes.getValue(RDF, "parseType");
+
+				if (resource != null) {
+					frame.object = resolve(base, resource);
+				} else if (nodeID != null) {
+					frame.object = "_:" + nodeID;
+				}
+
+				if ("Resource".equals(parseType)) {
+					frame.object = newBlankNode();
+					frame.resourceType = true;
+				} else if ("Literal".equals(parseType)) {
+					literalDepth = 1;
+					frame.text = new StringBuilder();
+				} else if (hasPropertyAttributes(attributes)) {
+					if (frame.object == null) {
+						frame.object = newBlankNode();
+					}
+					addPropertyAttributes(frame.object, attributes, language);
+				} else if (frame.object == null) {
+					frame.text = new StringBuilder();
+				}
+			}
+
+			stack.add(frame);
+		}
+
+		public void endElement(String namespace, String localName, String qName) {
+			if (literalDepth > 1) {
+				literalDepth--;
+				return;
+			}
+			literalDepth = 0;
+
+			Frame frame = stack.removeLast();
+			if (frame.node || frame.predicate == null) {
+				return;
+			}
+
+			if (frame.object != null) {
+				addStatement(frame.subject, frame.predicate, frame.object, null, false);
+			} else if (frame.text != null) {
+				addStatement(frame.subject, frame.predicate, frame.text.toString(), frame.language, true);
+			}
+		}
+
+		public void characters(char[] ch, int start, int length) {
+			if (stack.isEmpty()) {
+				return;
+			}
+			Frame frame = stack.getLast();
+			if (!frame.node && frame.text != null && frame.object == null) {
+				frame.text.append(ch, start, length);
+			}
+		}
+
+		private String getSubject(Attributes attributes, String base) {
+			String about = attributes.getValue(RDF, "about");
+			if (about != null) {
+				return resolve(base, about);
+			}
+			String id = attributes.getValue(RDF, "ID");
+			if (id != null) {
+				int hash = base.indexOf('#');
+				return ((hash == -1) ? base : base.substring(0, hash)) + "#" + id;
+			}
+			String nodeID = attributes.getValue(RDF, "nodeID");
+			if (nodeID != null) {
+				return "_:" + nodeID;
+			}
+			return newBlankNode();
+		}
+
+		private boolean hasPropertyAttributes(Attributes attributes) {
+			for (int i = 0; i < attributes.getLength(); i++) {
+				if (isPropertyAttribute(attributes.getURI(i), attributes.getLocalName(i))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void addPropertyAttributes(String subject, Attributes attributes, String language) {
+			for (int i = 0; i < attributes.getLength(); i++) {
+				String namespace = attributes.getURI(i);
+				String localName = attributes.getLocalName(i);
+				if (isPropertyAttribute(namespace, localName)) {
+					addStatement(subject, namespace + localName, attributes.getValue(i), language, true);
+				}
+			}
+		}
+
+		private boolean isPropertyAttribute(String namespace, String localName) {
+			if (namespace == null || namespace.length() == 0 || XML.equals(namespace)) {
+				return false;
+			}
+			if (RDF.equals(namespace)) {
+				return !("about".equals(localName) || "ID".equals(localName) || "nodeID".equals(localName)
+						|| "resource".equals(localName) || "parseType".equals(localName)
+						|| "datatype".equals(localName) || "type".equals(localName));
+			}
+			return true;
+		}
+
+		private String newBlankNode() {
+			return "_:b" + (blankNodes++);
+		}
+
+		private String resolve(String base, String reference) {
+			if (base == null) {
+				return reference;
+			}
+			if (reference.length() == 0) {
+				// java.net.URI does not resolve same-document references correctly
+				int hash = base.indexOf('#');
+				return (hash == -1) ? base : base.substring(0, hash);
+			}
+			try {
+				return new URI(base).resolve(reference).toString();
+			} catch (Exception e) {
+				return reference;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,330 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.ldap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSet;
+
+/**
+ * Cache of historical revisions. Revisions other than 0 are read-only (see
+ * CollaborillaObject.isEditable()) and never change, so they are kept without
+ * expiration: in memory up to a maximum number of revisions, and optionally
+ * in a local directory which survives restarts.
+ * <p>
+ * The aligned locations of a revision without own locations are resolved
+ * from the parent URIs when the revision is read the first time and are not
+ * updated afterwards.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public class RevisionCache {
+
+	/**
+	 * A cached revision.
+	 */
+	public static class Entry {
+
+		private CollaborillaDataSet dataSet;
+
+		private String xml;
+
+		Entry(CollaborillaDataSet dataSet, String xml) {
+			this.dataSet = dataSet;
+			this.xml = xml;
+		}
+
+		/**
+		 * @return The dataset of the revision; it is shared and must not be
+		 *         modified.
+		 */
+		public CollaborillaDataSet getDataSet() {
+			return dataSet;
+		}
+
+		/**
+		 * @return The dataset encoded as XML, see CollaborillaDataSet.toXML().
+		 */
+		public synchronized String getXML() {
+			if (xml == null) {
+				xml = dataSet.toXML();
+			}
+			return xml;
+		}
+
+	}
+
+	/**
+	 * Default number of revisions kept in memory.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 5000;
+
+	private static Map<String, RevisionCache> instances = new HashMap<String, RevisionCache>();
+
+	private static int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	private static File directory;
+
+	private Map<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, RevisionCache.Entry> eldest) {
+			return size() > getMaxEntries();
+		}
+	};
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * Returns the cache for a specific directory tree.
+	 *
+	 * @param serverDN
+	 *            Server Distinctive Name (DN)
+	 * @return Shared cache instance
+	 */
+	public static synchronized RevisionCache getInstance(String serverDN) {
+		RevisionCache cache = instances.get(serverDN);
+		if (cache == null) {
+			cache = new RevisionCache();
+			instances.put(serverDN, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Sets the number of revisions kept in memory.
+	 *
+	 * @param max
+	 *            Maximum number of revisions, 0 or less disables the memory
+	 *            cache.
+	 */
+	public static synchronized void setMaxEntries(int max) {
+		maxEntries = max;
+	}
+
+	private static synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Sets the directory in which revisions are stored additionally. The
+	 * directory is created if necessary.
+	 *
+	 * @param dir
+	 *            Directory, or null to keep revisions only in memory.
+	 */
+	public static synchronized void setDirectory(File dir) {
+		if (dir != null && !dir.isDirectory()) {
+			dir.mkdirs();
+		}
+		directory = dir;
+	}
+
+	private static synchronized File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns a cached revision.
+	 *
+	 * @param uri
+	 *            URI
+	 * @param revision
+	 *            Revision number, must be greater than 0
+	 * @return The cached revision or null.
+	 */
+	public Entry get(String uri, int revision) {
+		if (revision <= 0) {
+			return null;
+		}
+
+		String key = key(uri, revision);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hits++;
+				return entry;
+			}
+		}
+
+		Entry entry = readFile(uri, revision);
+		synchronized (this) {
+			if (entry != null) {
+				hits++;
+				if (getMaxEntries() > 0) {
+					entries.put(key, entry);
+				}
+			} else {
+				misses++;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Remembers a revision which has been read from the directory.
+	 *
+	 * @param uri
+	 *            URI
+	 * @param revision
+	 *            Revision number, revision 0 is not cached
+	 * @param dataSet
+	 *            Dataset of the revision
+	 * @return The cache entry of the revision, or a new entry which is not
+	 *         cached if the revision is 0.
+	 */
+	public Entry put(String uri, int revision, CollaborillaDataSet dataSet) {
+		Entry entry = new Entry(dataSet, null);
+		if (revision <= 0) {
+			return entry;
+		}
+
+		synchronized (this) {
+			if (getMaxEntries() > 0) {
+				entries.put(key(uri, revision), entry);
+			}
+		}
+		writeFile(uri, revision, entry);
+		return entry;
+	}
+
+	/**
+	 * Removes all revisions from memory. Stored files are kept.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/* Internal */
+
+	private static String key(String uri, int revision) {
+		return revision + " " + uri;
+	}
+
+	private static File getFile(String uri, int revision) {
+		File dir = getDirectory();
+		if (dir == null) {
+			return null;
+		}
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(uri.getBytes("UTF-8"));
+			StringBuffer name = new StringBuffer();
+			for (int i = 0; i < hash.length; i++) {
+				String hex = Integer.toHexString(hash[i] & 0xff);
+				if (hex.length() == 1) {
+					name.append('0');
+				}
+				name.append(hex);
+			}
+			name.append('-').append(revision).append(".xml");
+			return new File(dir, name.toString());
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	private static Entry readFile(String uri, int revision) {
+		File file = getFile(uri, revision);
+		if (file == null || !file.isFile()) {
+			return null;
+		}
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte[] content = new byte[(int) file.length()];
+			int offset = 0;
+			int read;
+			while (offset < content.length && (read = in.read(content, offset, content.length - offset)) != -1) {
+				offset += read;
+			}
+			String xml = new String(content, 0, offset, "UTF-8");
+			CollaborillaDataSet dataSet = CollaborillaDataSet.decodeXML(xml);
+
+			// the file name is a hash, make sure we got the right URI
+			if (dataSet == null || !uri.equals(dataSet.getIdentifier())) {
+				return null;
+			}
+			return new Entry(dataSet, xml);
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// broken file, it is overwritten after the next read
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	private static void writeFile(String uri, int revision, Entry entry) {
+		File file = getFile(uri, revision);
+		if (file == null) {
+			return;
+		}
+
+		File tmp = null;
+		OutputStream out = null;
+		try {
+			tmp = File.createTempFile("revision", ".tmp", file.getParentFile());
+			out = new FileOutputStream(tmp);
+			out.write(entry.getXML().getBytes("UTF-8"));
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				tmp.renameTo(file);
+			}
+		} catch (IOException e) {
+			if (tmp != null) {
+				tmp.delete();
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+}
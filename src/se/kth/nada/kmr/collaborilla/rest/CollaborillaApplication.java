@@ -1,5 +1,9 @@
 package se.kth.nada.kmr.collaborilla.rest;
 
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.restlet.Application;
@@ -10,11 +14,22 @@ import org.restlet.Route;
 import org.restlet.Router;
 import org.restlet.data.Protocol;
 
+import se.kth.nada.kmr.collaborilla.ldap.ContainerReferenceIndex;
+import se.kth.nada.kmr.collaborilla.ldap.EntryBloomFilter;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPConnectionPool;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPReplicaSet;
+import se.kth.nada.kmr.collaborilla.ldap.LocationIndex;
+import se.kth.nada.kmr.collaborilla.ldap.RevisionCache;
+import se.kth.nada.kmr.collaborilla.rest.resource.ConglomerateResource;
 import se.kth.nada.kmr.collaborilla.rest.resource.ContainerResource;
 import se.kth.nada.kmr.collaborilla.rest.resource.DatasetResource;
 import se.kth.nada.kmr.collaborilla.rest.resource.DefaultResource;
+import se.kth.nada.kmr.collaborilla.rest.resource.ElementsResource;
+import se.kth.nada.kmr.collaborilla.rest.resource.LocationResource;
 import se.kth.nada.kmr.collaborilla.rest.resource.MetadataResource;
 import se.kth.nada.kmr.collaborilla.rest.resource.PublishedMapsFeedResource;
+import se.kth.nada.kmr.collaborilla.rest.resource.ReferrersResource;
+import se.kth.nada.kmr.collaborilla.rest.resource.StatusResource;
 import se.kth.nada.kmr.collaborilla.util.Configuration;
 
 public class CollaborillaApplication extends Application {
@@ -32,12 +47,97 @@ public class CollaborillaApplication extends Application {
 	private static String ldapPassword;
 
 	private static int listenPort;
+
+	private static String ldapReplicas;
+
+	private static int ldapReplicaHealthCheck;
+
+	private static int ldapReplicaStickiness;
+
+	private static int ldapPoolMin;
+
+	private static int ldapPoolMax;
+
+	private static int ldapPoolTimeout;
+
+	private static int ldapPoolIdleTimeout;
+
+	private static LDAPReplicaSet ldapReplicaSet;
+
+	private static LDAPConnectionPool ldapPool;
+
+	private static int feedSize;
+
+	private static int feedRefreshInterval;
+
+	private static int feedFullRefreshInterval;
+
+	private static int validatorTimeToLive;
+
+	private static int datasetCacheSize;
+
+	private static int datasetCacheTimeToLive;
+
+	private static int bulkConcurrency;
+
+	private static int referenceIndexRefresh;
+
+	private static boolean entryFilterEnabled;
+
+	private static int entryFilterRefresh;
+
+	private static int entryFilterRebuild;
+
+	private static List<ModificationListener> modificationListeners = new CopyOnWriteArrayList<ModificationListener>();
 	
     public CollaborillaApplication(Context parentContext) {
         super(parentContext);
         log.info("Created CollaborillaApplication");
     }
     
+    /**
+     * Opens the LDAP connection pool which is shared by all resources.
+     */
+    @Override
+    public synchronized void start() throws Exception {
+        if (ldapPool == null) {
+            if (ldapReplicas != null && ldapReplicas.length() > 0) {
+                ldapReplicaSet = new LDAPReplicaSet(ldapReplicas.split("\\s*,\\s*"), ldapLoginDN, ldapPassword,
+                        ldapPoolMin, ldapPoolMax, ldapPoolTimeout, ldapPoolIdleTimeout, ldapReplicaHealthCheck,
+                        ldapReplicaStickiness);
+            }
+            ldapPool = new LDAPConnectionPool(ldapHostname, ldapLoginDN, ldapPassword, ldapPoolMin, ldapPoolMax,
+                    ldapPoolTimeout, ldapPoolIdleTimeout);
+            ldapPool.setReplicaSet(ldapReplicaSet);
+            log.info("Opened LDAP connection pool");
+        }
+        ContainerReferenceIndex.getInstance(ldapServerDN).start(ldapPool, referenceIndexRefresh);
+        if (entryFilterEnabled) {
+            EntryBloomFilter.getInstance(ldapServerDN).start(ldapPool, entryFilterRefresh, entryFilterRebuild);
+        }
+        super.start();
+    }
+
+    /**
+     * Closes the LDAP connection pool.
+     */
+    @Override
+    public synchronized void stop() throws Exception {
+        super.stop();
+        DatasetFetcher.shutdown();
+        ContainerReferenceIndex.getInstance(ldapServerDN).stop();
+        EntryBloomFilter.getInstance(ldapServerDN).stop();
+        if (ldapPool != null) {
+            ldapPool.close();
+            ldapPool = null;
+        }
+        if (ldapReplicaSet != null) {
+            ldapReplicaSet.close();
+            ldapReplicaSet = null;
+        }
+        log.info("Closed LDAP connection pool");
+    }
+    
     @Override
     public synchronized Restlet createRoot() {
         Router router = new Router(getContext());
@@ -54,14 +154,26 @@ public class CollaborillaApplication extends Application {
         router.attach("/rest/v1/container?{uri}", ContainerResource.class);			// redirect to RDF file
         element.extractQuery("uri", "uri", true);
         
-        // router.attach("/rest/v1/conglomerate/{uri}", MetadataResource.class);	// dependencies (JSON)
-        // router.attach("/rest/v1/location/{uri}", MetadataResource.class);		// URI -> URL resolution (JSON)
+        router.attach("/rest/v1/elements", ElementsResource.class);				// several datasets (JSON, POST)
+        
+        Route referrers = router.attach("/rest/v1/referrers?{uri}", ReferrersResource.class);	// reverse dependencies (JSON)
+        referrers.extractQuery("uri", "uri", true);
+        
+        Route conglomerate = router.attach("/rest/v1/conglomerate?{uri}", ConglomerateResource.class);	// dependencies (JSON)
+        conglomerate.extractQuery("uri", "uri", true);
+        
+        Route location = router.attach("/rest/v1/location?{uri}", LocationResource.class);		// URI -> URL resolution (JSON)
+        location.extractQuery("uri", "uri", true);
+        
+        router.attach("/rest/v1/locations", LocationResource.class);				// several URIs (JSON, POST)
         
         // router.attach("/rest/feed/{scope}", PublishedMapsFeedResource.class);
         // router.attach("/rest/feed/{scope}/{format}", PublishedMapsFeedResource.class);
         router.attach("/rest/feed/contextmaps", PublishedMapsFeedResource.class);
         router.attach("/rest/feed/contextmaps/{format}", PublishedMapsFeedResource.class);
         
+        router.attach("/rest/v1/status", StatusResource.class);
+        
         router.attachDefault(DefaultResource.class);
         
         log.info("Attached resources to locations");
@@ -90,6 +202,52 @@ public class CollaborillaApplication extends Application {
 			
 			ldapPassword = conf.getProperty("ldap.password");
 			log.info("ldap.password: *********");
+
+			ldapPoolMin = Integer.parseInt(conf.getProperty("ldap.pool.min", "2"));
+			ldapPoolMax = Integer.parseInt(conf.getProperty("ldap.pool.max", "20"));
+			ldapPoolTimeout = Integer.parseInt(conf.getProperty("ldap.pool.timeout", "10")) * 1000;
+			ldapPoolIdleTimeout = Integer.parseInt(conf.getProperty("ldap.pool.idletimeout", "300")) * 1000;
+			log.info("ldap.pool.max: " + ldapPoolMax);
+
+			ldapReplicas = conf.getProperty("ldap.replicas", "").trim();
+			ldapReplicaHealthCheck = Integer.parseInt(conf.getProperty("ldap.replicas.healthcheck", "10")) * 1000;
+			ldapReplicaStickiness = Integer.parseInt(conf.getProperty("ldap.replicas.stickiness", "5")) * 1000;
+			if (ldapReplicas.length() > 0) {
+				log.info("ldap.replicas: " + ldapReplicas);
+			}
+
+			feedSize = Integer.parseInt(conf.getProperty("rest.feed.size", "50"));
+			feedRefreshInterval = Integer.parseInt(conf.getProperty("rest.feed.refresh", "60")) * 1000;
+			feedFullRefreshInterval = Integer.parseInt(conf.getProperty("rest.feed.fullrefresh", "900")) * 1000;
+			log.info("rest.feed.size: " + feedSize);
+
+			validatorTimeToLive = Integer.parseInt(conf.getProperty("rest.validator.ttl", "10")) * 1000;
+
+			datasetCacheSize = Integer.parseInt(conf.getProperty("rest.cache.size", "1000"));
+			datasetCacheTimeToLive = Integer.parseInt(conf.getProperty("rest.cache.ttl", "30")) * 1000;
+			log.info("rest.cache.size: " + datasetCacheSize);
+
+			bulkConcurrency = Integer.parseInt(conf.getProperty("rest.bulk.concurrency", "8"));
+			log.info("rest.bulk.concurrency: " + bulkConcurrency);
+
+			referenceIndexRefresh = Integer.parseInt(conf.getProperty("ldap.referenceindex.refresh", "3600")) * 1000;
+
+			entryFilterEnabled = Boolean.valueOf(conf.getProperty("ldap.entryfilter.enabled", "false")).booleanValue();
+			EntryBloomFilter.setSize(Long.parseLong(conf.getProperty("ldap.entryfilter.entries", "1000000")), Double
+					.parseDouble(conf.getProperty("ldap.entryfilter.fpp", "0.01")), Long.parseLong(conf.getProperty(
+					"ldap.entryfilter.maxsize", "16")) * 1024 * 1024);
+			entryFilterRefresh = Integer.parseInt(conf.getProperty("ldap.entryfilter.refresh", "10")) * 1000;
+			entryFilterRebuild = Integer.parseInt(conf.getProperty("ldap.entryfilter.rebuild", "86400")) * 1000;
+			log.info("ldap.entryfilter.enabled: " + entryFilterEnabled);
+
+			LocationIndex.setTimeToLive(Integer.parseInt(conf.getProperty("ldap.locationcache.ttl", "60")) * 1000L);
+
+			RevisionCache.setMaxEntries(Integer.parseInt(conf.getProperty("ldap.revisioncache.size", "5000")));
+			String revisionCacheDir = conf.getProperty("ldap.revisioncache.dir", "").trim();
+			if (revisionCacheDir.length() > 0) {
+				RevisionCache.setDirectory(new File(revisionCacheDir));
+				log.info("ldap.revisioncache.dir: " + revisionCacheDir);
+			}
 		} catch (Exception e) {
 			log.error(e.getMessage());
 			result = false;
@@ -119,7 +277,7 @@ public class CollaborillaApplication extends Application {
 		int port = Integer.valueOf(config.getProperty("server.listenport", "8182"));
 		Component component = new Component();
 		component.getServers().add(Protocol.HTTP, port);
-		component.getDefaultHost().attach(new CollaborillaApplication(component.getContext()).createRoot());
+		component.getDefaultHost().attach(new CollaborillaApplication(component.getContext()));
 		
 		try {
 			component.start();
@@ -152,4 +310,68 @@ public class CollaborillaApplication extends Application {
 		return listenPort;
 	}
 
+	public static LDAPReplicaSet getLdapReplicaSet() {
+		return ldapReplicaSet;
+	}
+
+	/**
+	 * @return The shared LDAP connection pool, or null if the application has
+	 *         not been started.
+	 */
+	public static LDAPConnectionPool getLdapPool() {
+		return ldapPool;
+	}
+
+	public static int getFeedSize() {
+		return feedSize;
+	}
+
+	public static int getFeedRefreshInterval() {
+		return feedRefreshInterval;
+	}
+
+	public static int getFeedFullRefreshInterval() {
+		return feedFullRefreshInterval;
+	}
+
+	public static int getValidatorTimeToLive() {
+		return validatorTimeToLive;
+	}
+
+	public static int getDatasetCacheSize() {
+		return datasetCacheSize;
+	}
+
+	public static int getDatasetCacheTimeToLive() {
+		return datasetCacheTimeToLive;
+	}
+
+	public static int getBulkConcurrency() {
+		return bulkConcurrency;
+	}
+
+	/**
+	 * Registers a listener which is notified about entries modified through
+	 * the REST interface.
+	 */
+	public static void addModificationListener(ModificationListener listener) {
+		modificationListeners.add(listener);
+	}
+
+	public static void removeModificationListener(ModificationListener listener) {
+		modificationListeners.remove(listener);
+	}
+
+	/**
+	 * Has to be called by resources after an entry has been written.
+	 * 
+	 * @param uri
+	 *            URI of the modified entry
+	 */
+	public static void fireEntryModified(String uri) {
+		for (ModificationListener listener : modificationListeners) {
+			listener.entryModified(uri);
+		}
+	}
+
 }
\ No newline at end of file
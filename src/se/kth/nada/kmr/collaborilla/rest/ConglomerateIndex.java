@@ -0,0 +1,320 @@
+package se.kth.nada.kmr.collaborilla.rest;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSet;
+
+/**
+ * Computes and caches conglomerates, i.e. the transitive closure of an
+ * element over its required (and optionally its optional) containers.
+ * <p>
+ * The closure is computed level by level, all elements of a level are read
+ * in parallel through the DatasetFetcher. Elements which have been seen
+ * before are not followed again, so cycles terminate. The depth and the
+ * number of elements are capped. A cached closure is dropped as soon as one
+ * of its members (including members which did not exist) is modified through
+ * the REST interface, and after the time to live of the dataset cache.
+ *
+ * @author Hannes Ebner
+ */
+public class ConglomerateIndex implements ModificationListener {
+
+	/**
+	 * An element of a conglomerate.
+	 */
+	public static class Member {
+
+		private String uri;
+
+		private int depth;
+
+		private int status;
+
+		private CollaborillaDataSet dataset;
+
+		Member(String uri, int depth, int status, CollaborillaDataSet dataset) {
+			this.uri = uri;
+			this.depth = depth;
+			this.status = status;
+			this.dataset = dataset;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		/**
+		 * @return Distance from the start element, which has depth 0.
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+		/**
+		 * @return HTTP status code of reading the element.
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return The dataset, null if the status is not 200.
+		 */
+		public CollaborillaDataSet getDataset() {
+			return dataset;
+		}
+
+	}
+
+	/**
+	 * A computed conglomerate.
+	 */
+	public static class Conglomerate {
+
+		private List<Member> members;
+
+		private Set<String> memberURIs;
+
+		private boolean complete;
+
+		private long expires;
+
+		Conglomerate(List<Member> members, boolean complete, long expires) {
+			this.members = Collections.unmodifiableList(members);
+			this.complete = complete;
+			this.expires = expires;
+			this.memberURIs = new HashSet<String>();
+			for (Member member : members) {
+				memberURIs.add(member.getUri());
+			}
+		}
+
+		/**
+		 * @return The members in breadth-first order, starting with the
+		 *         element itself.
+		 */
+		public List<Member> getMembers() {
+			return members;
+		}
+
+		/**
+		 * @return False if the depth or size cap has been reached before the
+		 *         closure was complete.
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+
+	}
+
+	static Log log = LogFactory.getLog(ConglomerateIndex.class);
+
+	/**
+	 * Default and maximum depth of a conglomerate.
+	 */
+	public static final int MAX_DEPTH = 20;
+
+	/**
+	 * Maximum number of elements in a conglomerate.
+	 */
+	public static final int MAX_SIZE = 1000;
+
+	private static final int MAX_ENTRIES = 1000;
+
+	private static ConglomerateIndex instance;
+
+	private long timeToLive;
+
+	private Map<String, Conglomerate> conglomerates;
+
+	// incremented with every invalidation, guarded by "this"
+	private long generation = 0;
+
+	/**
+	 * @param timeToLive
+	 *            Time in milliseconds after which a conglomerate is computed
+	 *            again
+	 */
+	public ConglomerateIndex(long timeToLive) {
+		this.timeToLive = timeToLive;
+		this.conglomerates = new LinkedHashMap<String, Conglomerate>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Conglomerate> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+	}
+
+	/**
+	 * Returns the shared index, which is registered as modification listener
+	 * of the application.
+	 */
+	public static synchronized ConglomerateIndex getInstance() {
+		if (instance == null) {
+			instance = new ConglomerateIndex(CollaborillaApplication.getDatasetCacheTimeToLive());
+			CollaborillaApplication.addModificationListener(instance);
+		}
+		return instance;
+	}
+
+	public synchronized void entryModified(String uri) {
+		generation++;
+		Iterator<Conglomerate> it = conglomerates.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().memberURIs.contains(uri)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the conglomerate of an element.
+	 *
+	 * @param uri
+	 *            URI of the start element
+	 * @param includeOptional
+	 *            Whether optional containers are followed too
+	 * @param maxDepth
+	 *            Depth up to which containers are followed, at most MAX_DEPTH
+	 * @return The (possibly cached) conglomerate.
+	 * @throws ResourceException
+	 *             If the start element cannot be read.
+	 */
+	public Conglomerate getConglomerate(URI uri, boolean includeOptional, int maxDepth) throws ResourceException {
+		maxDepth = Math.max(0, Math.min(maxDepth, MAX_DEPTH));
+		String key = uri.toASCIIString() + " " + includeOptional + " " + maxDepth;
+
+		long startGeneration;
+		synchronized (this) {
+			Conglomerate cached = conglomerates.get(key);
+			if (cached != null) {
+				if (cached.expires >= System.currentTimeMillis()) {
+					return cached;
+				}
+				conglomerates.remove(key);
+			}
+			startGeneration = generation;
+		}
+
+		Conglomerate result = compute(uri, includeOptional, maxDepth);
+
+		synchronized (this) {
+			// do not store what might have been read before a modification
+			if (generation == startGeneration) {
+				conglomerates.put(key, result);
+			}
+		}
+		return result;
+	}
+
+	private Conglomerate compute(URI uri, boolean includeOptional, int maxDepth) throws ResourceException {
+		DatasetFetcher fetcher = DatasetFetcher.getInstance();
+		List<Member> members = new ArrayList<Member>();
+		Set<String> seen = new HashSet<String>();
+		boolean complete = true;
+
+		List<URI> level = new ArrayList<URI>();
+		level.add(uri);
+		seen.add(uri.toASCIIString());
+
+		for (int depth = 0; !level.isEmpty(); depth++) {
+			// the whole level is read in parallel
+			List<Future<CollaborillaDataSet>> pending = new ArrayList<Future<CollaborillaDataSet>>(level.size());
+			for (URI member : level) {
+				pending.add(fetcher.fetchAsync(member, 0));
+			}
+
+			List<URI> nextLevel = new ArrayList<URI>();
+			for (int i = 0; i < level.size(); i++) {
+				String memberURI = level.get(i).toASCIIString();
+				CollaborillaDataSet dataset = null;
+				int status = Status.SUCCESS_OK.getCode();
+				try {
+					dataset = pending.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, e.getMessage());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof ResourceException) {
+						status = ((ResourceException) e.getCause()).getStatus().getCode();
+					} else {
+						log.error(e.getCause().getMessage());
+						status = Status.SERVER_ERROR_INTERNAL.getCode();
+					}
+				}
+
+				// without the start element there is no conglomerate
+				if (depth == 0 && dataset == null) {
+					throw new ResourceException(Status.valueOf(status));
+				}
+
+				members.add(new Member(memberURI, depth, status, dataset));
+
+				if (dataset == null) {
+					continue;
+				}
+				if (depth >= maxDepth) {
+					if (hasUnseenContainers(dataset, includeOptional, seen)) {
+						complete = false;
+					}
+					continue;
+				}
+
+				List<String> containers = new ArrayList<String>();
+				if (dataset.getRequiredContainers() != null) {
+					containers.addAll(dataset.getRequiredContainers());
+				}
+				if (includeOptional && dataset.getOptionalContainers() != null) {
+					containers.addAll(dataset.getOptionalContainers());
+				}
+				for (String container : containers) {
+					if (seen.contains(container)) {
+						continue;
+					}
+					if (seen.size() >= MAX_SIZE) {
+						complete = false;
+						break;
+					}
+					try {
+						nextLevel.add(new URI(container));
+						seen.add(container);
+					} catch (URISyntaxException e) {
+						log.warn("Invalid container URI in " + memberURI + ": " + container);
+					}
+				}
+			}
+			level = nextLevel;
+		}
+
+		return new Conglomerate(members, complete, System.currentTimeMillis() + timeToLive);
+	}
+
+	private boolean hasUnseenContainers(CollaborillaDataSet dataset, boolean includeOptional, Set<String> seen) {
+		if (dataset.getRequiredContainers() != null && !seen.containsAll(dataset.getRequiredContainers())) {
+			return true;
+		}
+		if (includeOptional && dataset.getOptionalContainers() != null
+				&& !seen.containsAll(dataset.getOptionalContainers())) {
+			return true;
+		}
+		return false;
+	}
+
+}
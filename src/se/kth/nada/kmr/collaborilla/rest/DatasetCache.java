@@ -0,0 +1,227 @@
+package se.kth.nada.kmr.collaborilla.rest;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSet;
+
+/**
+ * Keeps recently read datasets in memory, keyed by URI and revision.
+ * <p>
+ * The cache is bounded and evicts the least recently used dataset, entries
+ * expire after the time to live to pick up modifications done through the
+ * Collaborilla service. Concurrent misses for the same key are collapsed into
+ * one read of the directory. Modifications through the REST interface remove
+ * all cached revisions of an entry.
+ * <p>
+ * Returned datasets are shared and must not be modified.
+ *
+ * @author Hannes Ebner
+ */
+public class DatasetCache implements ModificationListener {
+
+	/**
+	 * Reads a dataset from the directory on a cache miss.
+	 */
+	public interface Loader {
+
+		CollaborillaDataSet load() throws ResourceException;
+
+	}
+
+	private static class CachedDataSet {
+
+		String uri;
+
+		CollaborillaDataSet dataset;
+
+		long expires;
+
+		CachedDataSet(String uri, CollaborillaDataSet dataset, long expires) {
+			this.uri = uri;
+			this.dataset = dataset;
+			this.expires = expires;
+		}
+
+	}
+
+	static Log log = LogFactory.getLog(DatasetCache.class);
+
+	private static DatasetCache instance;
+
+	private int maxEntries;
+
+	private long timeToLive;
+
+	private Map<String, CachedDataSet> datasets;
+
+	private Map<String, FutureTask<CollaborillaDataSet>> loading = new ConcurrentHashMap<String, FutureTask<CollaborillaDataSet>>();
+
+	// incremented with every invalidation, guarded by "this"
+	private long generation = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * @param maxEntries
+	 *            Maximum number of datasets kept in memory
+	 * @param timeToLive
+	 *            Time in milliseconds after which a dataset is read again
+	 */
+	public DatasetCache(final int maxEntries, long timeToLive) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.timeToLive = timeToLive;
+		this.datasets = new LinkedHashMap<String, CachedDataSet>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, CachedDataSet> eldest) {
+				return size() > DatasetCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the shared cache, which is registered as modification listener
+	 * of the application.
+	 */
+	public static synchronized DatasetCache getInstance() {
+		if (instance == null) {
+			instance = new DatasetCache(CollaborillaApplication.getDatasetCacheSize(), CollaborillaApplication
+					.getDatasetCacheTimeToLive());
+			CollaborillaApplication.addModificationListener(instance);
+		}
+		return instance;
+	}
+
+	private static String key(String uri, int revision) {
+		return revision + " " + uri;
+	}
+
+	/**
+	 * Returns the cached dataset or loads it. If another thread is already
+	 * loading the same dataset, its result is awaited instead.
+	 *
+	 * @param uri
+	 *            URI of the entry
+	 * @param revision
+	 *            Revision number, 0 for the current revision
+	 * @param loader
+	 *            Reads the dataset on a miss
+	 * @return The dataset, may be null if the loader returned null.
+	 * @throws ResourceException
+	 *             The exception of the loader.
+	 */
+	public CollaborillaDataSet get(final String uri, int revision, final Loader loader) throws ResourceException {
+		final String key = key(uri, revision);
+		final long startGeneration;
+
+		synchronized (this) {
+			CachedDataSet cached = datasets.get(key);
+			if (cached != null) {
+				if (cached.expires >= System.currentTimeMillis()) {
+					hits++;
+					return cached.dataset;
+				}
+				datasets.remove(key);
+			}
+			misses++;
+			startGeneration = generation;
+		}
+
+		FutureTask<CollaborillaDataSet> task = null;
+		boolean owner = false;
+		synchronized (loading) {
+			task = loading.get(key);
+			if (task == null) {
+				task = new FutureTask<CollaborillaDataSet>(new Callable<CollaborillaDataSet>() {
+					public CollaborillaDataSet call() throws Exception {
+						return loader.load();
+					}
+				});
+				loading.put(key, task);
+				owner = true;
+			}
+		}
+
+		if (owner) {
+			try {
+				task.run();
+			} finally {
+				loading.remove(key);
+			}
+		}
+
+		CollaborillaDataSet dataset = null;
+		try {
+			dataset = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, e.getMessage());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ResourceException) {
+				throw (ResourceException) cause;
+			}
+			log.error(cause.getMessage());
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, cause.getMessage());
+		}
+
+		if (owner && dataset != null) {
+			synchronized (this) {
+				// do not store what might have been read before a modification
+				if (generation == startGeneration) {
+					datasets.put(key, new CachedDataSet(uri, dataset, System.currentTimeMillis() + timeToLive));
+				}
+			}
+		}
+
+		return dataset;
+	}
+
+	/**
+	 * Removes all cached revisions of an entry.
+	 */
+	public synchronized void invalidate(String uri) {
+		generation++;
+		Iterator<CachedDataSet> it = datasets.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().uri.equals(uri)) {
+				it.remove();
+			}
+		}
+	}
+
+	public void entryModified(String uri) {
+		invalidate(uri);
+	}
+
+	public synchronized void clear() {
+		generation++;
+		datasets.clear();
+	}
+
+	public synchronized int size() {
+		return datasets.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+}
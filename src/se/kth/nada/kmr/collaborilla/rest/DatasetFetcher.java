@@ -0,0 +1,146 @@
+package se.kth.nada.kmr.collaborilla.rest;
+
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSet;
+import se.kth.nada.kmr.collaborilla.ldap.CollaborillaObject;
+import se.kth.nada.kmr.collaborilla.ldap.RevisionCache;
+
+import com.novell.ldap.LDAPException;
+
+/**
+ * Reads datasets through the caches: the current revision through the
+ * DatasetCache, historical revisions through the RevisionCache.
+ * <p>
+ * Several datasets can be read in parallel. The number of concurrent reads is
+ * limited for the whole application, each read borrows its own connection
+ * from the pool.
+ *
+ * @author Hannes Ebner
+ */
+public class DatasetFetcher {
+
+	static Log log = LogFactory.getLog(DatasetFetcher.class);
+
+	private static DatasetFetcher instance;
+
+	private ExecutorService executor;
+
+	/**
+	 * @param concurrency
+	 *            Maximum number of datasets which are read in parallel
+	 */
+	public DatasetFetcher(int concurrency) {
+		concurrency = Math.max(1, concurrency);
+		executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "DatasetFetcher-" + (++count));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public static synchronized DatasetFetcher getInstance() {
+		if (instance == null) {
+			instance = new DatasetFetcher(CollaborillaApplication.getBulkConcurrency());
+		}
+		return instance;
+	}
+
+	/**
+	 * Stops the threads of the shared fetcher.
+	 */
+	public static synchronized void shutdown() {
+		if (instance != null) {
+			instance.executor.shutdownNow();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Reads a dataset with the connection of the current request.
+	 *
+	 * @param ldapC
+	 *            Communicator of the current request
+	 * @param uri
+	 *            URI of the entry
+	 * @param revision
+	 *            Revision number, 0 for the current revision
+	 * @return The dataset; it is shared and must not be modified.
+	 * @throws ResourceException
+	 *             404 if the entry or revision does not exist.
+	 */
+	public CollaborillaDataSet fetch(final LDAPCommunicator ldapC, final URI uri, final int revision)
+			throws ResourceException {
+		if (revision <= 0) {
+			return DatasetCache.getInstance().get(uri.toASCIIString(), 0, new DatasetCache.Loader() {
+				public CollaborillaDataSet load() throws ResourceException {
+					return read(ldapC, uri, 0);
+				}
+			});
+		}
+
+		RevisionCache cache = RevisionCache.getInstance(ldapC.getBaseDN());
+		RevisionCache.Entry entry = cache.get(uri.toASCIIString(), revision);
+		if (entry == null) {
+			entry = cache.put(uri.toASCIIString(), revision, read(ldapC, uri, revision));
+		}
+		return entry.getDataSet();
+	}
+
+	/**
+	 * Reads a dataset in the background with its own connection.
+	 *
+	 * @param uri
+	 *            URI of the entry
+	 * @param revision
+	 *            Revision number, 0 for the current revision
+	 * @return The pending dataset, get() throws an ExecutionException with the
+	 *         ResourceException of fetch() as cause.
+	 */
+	public Future<CollaborillaDataSet> fetchAsync(final URI uri, final int revision) {
+		return executor.submit(new Callable<CollaborillaDataSet>() {
+			public CollaborillaDataSet call() throws ResourceException {
+				LDAPCommunicator ldapC = new LDAPCommunicator();
+				try {
+					return fetch(ldapC, uri, revision);
+				} finally {
+					ldapC.close();
+				}
+			}
+		});
+	}
+
+	private CollaborillaDataSet read(LDAPCommunicator ldapC, URI uri, int revision) throws ResourceException {
+		CollaborillaObject co = ldapC.getCollaborillaObject(uri, false);
+		try {
+			if (revision > 0) {
+				co.setRevision(revision);
+			}
+			return co.getDataSet();
+		} catch (LDAPException e) {
+			if (e.getResultCode() == LDAPException.NO_SUCH_OBJECT) {
+				throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, e.getMessage());
+			}
+			log.error(e.getMessage());
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+		}
+	}
+
+}
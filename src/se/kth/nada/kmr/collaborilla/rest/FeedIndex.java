@@ -0,0 +1,614 @@
+package se.kth.nada.kmr.collaborilla.rest;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.restlet.data.MediaType;
+import org.restlet.data.Tag;
+
+import se.kth.nada.kmr.collaborilla.ldap.CollaborillaObjectConstants;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPAccess;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPObject;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPStringHelper;
+import se.kth.nada.kmr.collaborilla.ldap.SearchResultEntry;
+import se.kth.nada.kmr.collaborilla.util.Configuration;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPControl;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
+import com.novell.ldap.controls.LDAPSortControl;
+import com.novell.ldap.controls.LDAPSortKey;
+import com.novell.ldap.controls.LDAPVirtualListControl;
+import com.sun.syndication.feed.synd.SyndContent;
+import com.sun.syndication.feed.synd.SyndContentImpl;
+import com.sun.syndication.feed.synd.SyndEntry;
+import com.sun.syndication.feed.synd.SyndEntryImpl;
+import com.sun.syndication.feed.synd.SyndFeed;
+import com.sun.syndication.feed.synd.SyndFeedImpl;
+import com.sun.syndication.io.FeedException;
+import com.sun.syndication.io.SyndFeedOutput;
+
+/**
+ * Keeps the latest published context maps in memory and caches the rendered
+ * feeds per feed type.
+ * <p>
+ * The list is loaded completely once and after that only updated with the
+ * entries whose modifyTimestamp is newer than the newest timestamp seen so
+ * far. Such a delta search is done when an entry has been modified through
+ * the REST interface, or after the refresh interval to pick up modifications
+ * done through the Collaborilla service. A full reload is done periodically
+ * and whenever an entry of the list is not a context map anymore.
+ *
+ * @author Hannes Ebner
+ */
+public class FeedIndex implements ModificationListener {
+
+	/**
+	 * A feed rendered in one format, with the values needed for conditional
+	 * requests.
+	 */
+	public static class RenderedFeed {
+
+		private String content;
+
+		private Tag tag;
+
+		private Date modificationDate;
+
+		RenderedFeed(String content, Tag tag, Date modificationDate) {
+			this.content = content;
+			this.tag = tag;
+			this.modificationDate = modificationDate;
+		}
+
+		public String getContent() {
+			return content;
+		}
+
+		public Tag getTag() {
+			return tag;
+		}
+
+		public Date getModificationDate() {
+			return modificationDate;
+		}
+
+	}
+
+	/**
+	 * Entry which competes for a place in the feed, ordered by date with the
+	 * oldest first.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+
+		String dn;
+
+		SearchResultEntry entry;
+
+		Date date;
+
+		Candidate(String dn, SearchResultEntry entry) {
+			this.dn = dn;
+			this.entry = entry;
+			this.date = (entry.getModificationDate() != null) ? entry.getModificationDate() : entry.getCreationDate();
+		}
+
+		public int compareTo(Candidate c) {
+			return date.compareTo(c.date);
+		}
+
+	}
+
+	static Log log = LogFactory.getLog(FeedIndex.class);
+
+	private static final String CONTEXTMAP_FILTER = "(&(cn=collaborillaData)(collaborillaEntryType=CONTEXTMAP))";
+
+	private static final String SORT_CONTROL_OID = "1.2.840.113556.1.4.473";
+
+	private static final String VLV_CONTROL_OID = "2.16.840.1.113730.3.4.9";
+
+	private static final String[] FEED_ATTRIBUTES = new String[] {
+			CollaborillaObjectConstants.URI,
+			CollaborillaObjectConstants.DATEMODIFIED,
+			CollaborillaObjectConstants.DATECREATED,
+			CollaborillaObjectConstants.METADATA
+			};
+
+	private static FeedIndex instance;
+
+	private int size;
+
+	private long refreshInterval;
+
+	private long fullRefreshInterval;
+
+	// the following fields are guarded by "this"
+
+	private List<SearchResultEntry> latest = new ArrayList<SearchResultEntry>();
+
+	private String newestTimestamp;
+
+	private String scanTimestamp;
+
+	private long lastRefresh = 0;
+
+	private long lastFullRefresh = 0;
+
+	private boolean dirty = false;
+
+	private Set<String> modifiedURIs = new HashSet<String>();
+
+	// time at which the content of the list changed last
+	private Date listModified;
+
+	private Map<String, RenderedFeed> rendered = new HashMap<String, RenderedFeed>();
+
+	private Boolean sortedSearchSupported;
+
+	private boolean virtualListSupported;
+
+	/**
+	 * @param size
+	 *            Number of entries in the feed
+	 * @param refreshInterval
+	 *            Time in milliseconds after which modified entries are fetched
+	 * @param fullRefreshInterval
+	 *            Time in milliseconds after which the whole list is reloaded
+	 */
+	public FeedIndex(int size, long refreshInterval, long fullRefreshInterval) {
+		this.size = Math.max(1, size);
+		this.refreshInterval = refreshInterval;
+		this.fullRefreshInterval = fullRefreshInterval;
+	}
+
+	/**
+	 * Returns the shared index, which is registered as modification listener
+	 * of the application.
+	 */
+	public static synchronized FeedIndex getInstance() {
+		if (instance == null) {
+			instance = new FeedIndex(CollaborillaApplication.getFeedSize(), CollaborillaApplication
+					.getFeedRefreshInterval(), CollaborillaApplication.getFeedFullRefreshInterval());
+			CollaborillaApplication.addModificationListener(instance);
+		}
+		return instance;
+	}
+
+	public synchronized void entryModified(String uri) {
+		dirty = true;
+		modifiedURIs.add(uri);
+	}
+
+	/**
+	 * @return The latest context maps, newest first.
+	 */
+	public synchronized List<SearchResultEntry> getLatestEntries() {
+		refreshIfNecessary();
+		return new ArrayList<SearchResultEntry>(latest);
+	}
+
+	/**
+	 * Returns the feed in the requested format. The feed is only rendered
+	 * again if the list has changed.
+	 *
+	 * @param feedType
+	 *            ROME feed type, e.g. "atom_1.0"
+	 */
+	public synchronized RenderedFeed getFeed(String feedType) throws FeedException {
+		refreshIfNecessary();
+		RenderedFeed feed = rendered.get(feedType);
+		if (feed == null) {
+			feed = render(feedType);
+			rendered.put(feedType, feed);
+		}
+		return feed;
+	}
+
+	private void refreshIfNecessary() {
+		long now = System.currentTimeMillis();
+		if (!dirty && (now - lastRefresh < refreshInterval)) {
+			return;
+		}
+		lastRefresh = now;
+		dirty = false;
+
+		LDAPCommunicator ldapC = new LDAPCommunicator();
+		try {
+			LDAPAccess la = ldapC.getLDAPConnection();
+			if ((newestTimestamp == null) || (now - lastFullRefresh >= fullRefreshInterval)) {
+				fullRefresh(la, ldapC.getBaseDN());
+			} else {
+				deltaRefresh(la, ldapC.getBaseDN());
+			}
+		} catch (LDAPException e) {
+			log.error(e.getMessage());
+		} finally {
+			ldapC.close();
+		}
+	}
+
+	private void fullRefresh(LDAPAccess la, String baseDN) throws LDAPException {
+		List<SearchResultEntry> maps = null;
+		scanTimestamp = null;
+
+		if (isSortedSearchSupported(la)) {
+			try {
+				maps = getLatestContextMapsSorted(la, baseDN);
+			} catch (LDAPException e) {
+				if (!isControlFailure(e)) {
+					throw e;
+				}
+				log.info("Server-side sorting failed, selecting the latest maps locally: " + e.getMessage());
+				sortedSearchSupported = Boolean.FALSE;
+			}
+		}
+		if (maps == null) {
+			maps = getLatestContextMapsSelected(la, baseDN);
+		}
+
+		newestTimestamp = scanTimestamp;
+		lastFullRefresh = System.currentTimeMillis();
+		modifiedURIs.clear();
+		update(maps);
+		log.debug("Feed index reloaded with " + latest.size() + " entries");
+	}
+
+	private void deltaRefresh(LDAPAccess la, String baseDN) throws LDAPException {
+		String filter = "(&" + CONTEXTMAP_FILTER + "(" + CollaborillaObjectConstants.DATEMODIFIED + ">="
+				+ newestTimestamp + "))";
+		LDAPSearchConstraints constraints = new LDAPSearchConstraints();
+		constraints.setMaxResults(0);
+		LDAPSearchResults searchResults = la.search(baseDN, LDAPConnection.SCOPE_SUB, filter, FEED_ATTRIBUTES, false,
+				constraints);
+
+		scanTimestamp = newestTimestamp;
+		Map<String, SearchResultEntry> changed = new LinkedHashMap<String, SearchResultEntry>();
+		while (searchResults.hasMore()) {
+			LDAPEntry entry = nextEntry(searchResults);
+			if (entry == null) {
+				break;
+			}
+			SearchResultEntry sre = toSearchResultEntry(entry, LDAPObject.getAttributeValue(entry,
+					CollaborillaObjectConstants.METADATA));
+			if (sre.getUri() != null && sre.getModificationDate() != null) {
+				changed.put(sre.getUri(), sre);
+			}
+		}
+
+		// an entry of the feed which was modified but not found by the delta
+		// search is not a context map anymore, it has to be replaced by an
+		// older one which we don't know
+		for (Iterator<SearchResultEntry> it = latest.iterator(); it.hasNext();) {
+			String uri = it.next().getUri();
+			if (modifiedURIs.contains(uri) && !changed.containsKey(uri)) {
+				fullRefresh(la, baseDN);
+				return;
+			}
+		}
+		modifiedURIs.clear();
+		newestTimestamp = scanTimestamp;
+
+		if (changed.isEmpty()) {
+			return;
+		}
+
+		List<SearchResultEntry> merged = new ArrayList<SearchResultEntry>(latest.size() + changed.size());
+		for (Iterator<SearchResultEntry> it = latest.iterator(); it.hasNext();) {
+			SearchResultEntry sre = it.next();
+			if (!changed.containsKey(sre.getUri())) {
+				merged.add(sre);
+			}
+		}
+		merged.addAll(changed.values());
+		update(merged);
+	}
+
+	/**
+	 * Sorts and truncates the new list and drops the rendered feeds if the
+	 * content has changed.
+	 */
+	private void update(List<SearchResultEntry> maps) {
+		Collections.sort(maps);
+		if (maps.size() > size) {
+			maps = new ArrayList<SearchResultEntry>(maps.subList(0, size));
+		}
+
+		if (listModified == null || !sameEntries(latest, maps)) {
+			latest = maps;
+			listModified = new Date();
+			rendered.clear();
+		}
+	}
+
+	private static boolean sameEntries(List<SearchResultEntry> a, List<SearchResultEntry> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			SearchResultEntry x = a.get(i);
+			SearchResultEntry y = b.get(i);
+			if (!equal(x.getUri(), y.getUri()) || !equal(x.getModificationDate(), y.getModificationDate())
+					|| !equal(x.getMetadata(), y.getMetadata())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	private RenderedFeed render(String feedType) throws FeedException {
+		SyndFeed feed = new SyndFeedImpl();
+		feed.setFeedType(feedType);
+		feed.setAuthor("Collaborilla " + Configuration.APPVERSION);
+		feed.setTitle("Published Conzilla Context-Maps");
+		// derived from the list only, so that the rendered feed is the same
+		// on every instance
+		feed.setPublishedDate(latest.isEmpty() ? null : latest.get(0).getModificationDate());
+		feed.setDescription("This feed contains the latest published and updated Conzilla Context-maps.");
+		feed.setLink("http://conzilla.org");
+
+		List<SyndEntry> entries = new ArrayList<SyndEntry>();
+
+		for (SearchResultEntry searchEntry : latest) {
+			SyndEntry entry;
+			SyndContent rdf;
+			SyndContent description;
+			entry = new SyndEntryImpl();
+			entry.setTitle(searchEntry.getTitle());
+			entry.setLink(searchEntry.getUri());
+			entry.setPublishedDate(searchEntry.getCreationDate());
+			entry.setUpdatedDate(searchEntry.getModificationDate());
+			entry.setAuthor(searchEntry.getAuthorName());
+
+			rdf = new SyndContentImpl();
+			rdf.setType(MediaType.APPLICATION_RDF_XML.toString());
+			rdf.setValue(searchEntry.getMetadata());
+
+			description = new SyndContentImpl();
+			description.setValue(searchEntry.getDescription());
+
+			List<SyndContent> contents = new ArrayList<SyndContent>();
+			contents.add(rdf);
+
+			entry.setContents(contents);
+			entry.setDescription(description);
+
+			entries.add(entry);
+		}
+
+		feed.setEntries(entries);
+
+		return new RenderedFeed(new SyndFeedOutput().outputString(feed), createTag(feedType), listModified);
+	}
+
+	/**
+	 * Creates the entity tag of a feed from a digest of the listed entries.
+	 * The tag only depends on the content, so it is the same after a restart
+	 * and on every instance which lists the same entries.
+	 */
+	private Tag createTag(String feedType) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update((Configuration.APPVERSION + "\n" + feedType + "\n").getBytes("UTF-8"));
+			for (SearchResultEntry entry : latest) {
+				long modified = (entry.getModificationDate() != null) ? entry.getModificationDate().getTime() : 0;
+				digest.update((entry.getUri() + "\n" + modified + "\n").getBytes("UTF-8"));
+				if (entry.getMetadata() != null) {
+					digest.update(entry.getMetadata().getBytes("UTF-8"));
+				}
+				digest.update((byte) 0);
+			}
+			byte[] hash = digest.digest();
+			StringBuffer value = new StringBuffer();
+			for (int i = 0; i < hash.length; i++) {
+				String hex = Integer.toHexString(hash[i] & 0xff);
+				if (hex.length() == 1) {
+					value.append('0');
+				}
+				value.append(hex);
+			}
+			return new Tag(value.toString(), false);
+		} catch (NoSuchAlgorithmException e) {
+			log.error(e.getMessage());
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			log.error(e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Checks once whether the directory supports server-side sorting, and
+	 * whether it supports virtual list views to return only a window of the
+	 * sorted result.
+	 */
+	private boolean isSortedSearchSupported(LDAPAccess ldapAccess) throws LDAPException {
+		if (sortedSearchSupported == null) {
+			boolean sort = false;
+			boolean vlv = false;
+			LDAPEntry rootDSE = ldapAccess.read("", new String[] { "supportedControl" });
+			String[] controls = LDAPObject.getAttributeValues(rootDSE, "supportedControl");
+			if (controls != null) {
+				for (int i = 0; i < controls.length; i++) {
+					if (SORT_CONTROL_OID.equals(controls[i])) {
+						sort = true;
+					} else if (VLV_CONTROL_OID.equals(controls[i])) {
+						vlv = true;
+					}
+				}
+			}
+			virtualListSupported = vlv;
+			sortedSearchSupported = Boolean.valueOf(sort);
+		}
+		return sortedSearchSupported.booleanValue();
+	}
+
+	private static boolean isControlFailure(LDAPException e) {
+		switch (e.getResultCode()) {
+		case LDAPException.UNAVAILABLE_CRITICAL_EXTENSION:
+		case LDAPException.UNWILLING_TO_PERFORM:
+		case LDAPException.INAPPROPRIATE_MATCHING:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Lets the directory sort the context maps by modification date and
+	 * return only the latest ones, including their metadata.
+	 */
+	private List<SearchResultEntry> getLatestContextMapsSorted(LDAPAccess ldapAccess, String baseDN) throws LDAPException {
+		List<SearchResultEntry> result = new ArrayList<SearchResultEntry>();
+		LDAPSearchConstraints constraints = new LDAPSearchConstraints();
+		LDAPControl sort = new LDAPSortControl(new LDAPSortKey(CollaborillaObjectConstants.DATEMODIFIED, true), true);
+		if (virtualListSupported) {
+			constraints.setControls(new LDAPControl[] { sort, new LDAPVirtualListControl(1, 0, size - 1, 0) });
+		} else {
+			constraints.setControls(sort);
+			constraints.setMaxResults(size);
+		}
+		LDAPSearchResults searchResults = ldapAccess.search(
+				baseDN,
+				LDAPConnection.SCOPE_SUB,
+				CONTEXTMAP_FILTER,
+				FEED_ATTRIBUTES,
+				false,
+				constraints);
+		while (searchResults.hasMore() && result.size() < size) {
+			LDAPEntry entry = null;
+			try {
+				entry = searchResults.next();
+			} catch (LDAPException e) {
+				if (e.getResultCode() == LDAPException.SIZE_LIMIT_EXCEEDED) {
+					break;
+				} else if (isControlFailure(e)) {
+					throw e;
+				} else if (e.getResultCode() == LDAPException.LDAP_TIMEOUT ||
+						e.getResultCode() == LDAPException.CONNECT_ERROR) {
+					break;
+				} else {
+					continue;
+				}
+			}
+			result.add(toSearchResultEntry(entry, LDAPObject.getAttributeValue(entry, CollaborillaObjectConstants.METADATA)));
+		}
+		return result;
+	}
+
+	/**
+	 * Selects the latest context maps locally. Only the dates are fetched
+	 * with the search and only the latest entries are kept in a bounded heap;
+	 * the metadata is read afterwards for these entries only.
+	 */
+	private List<SearchResultEntry> getLatestContextMapsSelected(LDAPAccess ldapAccess, String baseDN) throws LDAPException {
+		LDAPSearchConstraints constraints = new LDAPSearchConstraints();
+		constraints.setMaxResults(0); // 0 means unlimited
+		String[] attributes = new String[] {
+				CollaborillaObjectConstants.URI,
+				CollaborillaObjectConstants.DATEMODIFIED,
+				CollaborillaObjectConstants.DATECREATED
+				};
+		LDAPSearchResults searchResults = ldapAccess.search(
+				baseDN,
+				LDAPConnection.SCOPE_SUB,
+				CONTEXTMAP_FILTER,
+				attributes,
+				false,
+				constraints);
+
+		// the oldest of the kept entries is at the head of the heap
+		PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>(size + 1);
+		while (searchResults.hasMore()) {
+			LDAPEntry entry = nextEntry(searchResults);
+			if (entry == null) {
+				break;
+			}
+			Candidate candidate = new Candidate(entry.getDN(), toSearchResultEntry(entry, null));
+			if (candidate.date == null) {
+				continue;
+			}
+			if (candidates.size() < size) {
+				candidates.add(candidate);
+			} else if (candidate.date.after(candidates.peek().date)) {
+				candidates.poll();
+				candidates.add(candidate);
+			}
+		}
+
+		List<SearchResultEntry> result = new ArrayList<SearchResultEntry>(candidates.size());
+		String[] metadataAttribute = new String[] { CollaborillaObjectConstants.METADATA };
+		for (Candidate candidate : candidates) {
+			String metadata;
+			try {
+				metadata = LDAPObject.getAttributeValue(ldapAccess.read(candidate.dn, metadataAttribute),
+						CollaborillaObjectConstants.METADATA);
+			} catch (LDAPException e) {
+				if (e.getResultCode() == LDAPException.NO_SUCH_OBJECT) {
+					continue;
+				}
+				throw e;
+			}
+			SearchResultEntry sre = candidate.entry;
+			result.add(new SearchResultEntry(sre.getUri(), metadata, sre.getCreationDate(), sre.getModificationDate()));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the next entry of a search, skips entries which cannot be read.
+	 *
+	 * @return The entry or null if the search has to be aborted.
+	 */
+	private static LDAPEntry nextEntry(LDAPSearchResults searchResults) {
+		while (searchResults.hasMore()) {
+			try {
+				return searchResults.next();
+			} catch (LDAPException e) {
+				if(e.getResultCode() == LDAPException.LDAP_TIMEOUT ||
+						e.getResultCode() == LDAPException.CONNECT_ERROR)	{
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Converts a search result and remembers the newest modification
+	 * timestamp, which is the starting point of the next delta search.
+	 */
+	private SearchResultEntry toSearchResultEntry(LDAPEntry entry, String metadata) {
+		String modified = LDAPObject.getAttributeValue(entry, CollaborillaObjectConstants.DATEMODIFIED);
+		String created = LDAPObject.getAttributeValue(entry, CollaborillaObjectConstants.DATECREATED);
+		if (modified != null && (scanTimestamp == null || modified.compareTo(scanTimestamp) > 0)) {
+			scanTimestamp = modified;
+		}
+		return new SearchResultEntry(
+				LDAPObject.getAttributeValue(entry, CollaborillaObjectConstants.URI),
+				metadata,
+				(created != null) ? LDAPStringHelper.parseTimestamp(created) : null,
+				(modified != null) ? LDAPStringHelper.parseTimestamp(modified) : null);
+	}
+
+}
@@ -0,0 +1,110 @@
+package se.kth.nada.kmr.collaborilla.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.restlet.data.MediaType;
+import org.restlet.resource.OutputRepresentation;
+import org.restlet.resource.Representation;
+
+import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSet;
+
+/**
+ * JSON representation which is written by Jackson directly to the output
+ * stream of the response, without building an intermediate object tree.
+ * <p>
+ * The CouchDB specific names of the Jackson annotations of CollaborillaDataSet
+ * ("_id", "_rev") are overridden, so the property names are the same as in
+ * the previous org.json based representation. Null properties are omitted.
+ *
+ * @author Hannes Ebner
+ */
+public class JacksonRepresentation<T> extends OutputRepresentation {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	static {
+		// the connector closes the response stream
+		mapper.getJsonFactory().configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+		mapper.configure(SerializationConfig.Feature.AUTO_DETECT_FIELDS, false);
+		mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		mapper.getSerializationConfig().addMixInAnnotations(CollaborillaDataSet.class, DataSetNames.class);
+		mapper.getDeserializationConfig().addMixInAnnotations(CollaborillaDataSet.class, DataSetNames.class);
+	}
+
+	/**
+	 * Overrides the CouchDB specific property names of CollaborillaDataSet.
+	 */
+	private static abstract class DataSetNames {
+
+		@JsonProperty("identifier")
+		String identifier;
+
+		@JsonProperty("revision")
+		String revision;
+
+		@JsonProperty("identifier")
+		abstract String getIdentifier();
+
+		@JsonProperty("identifier")
+		abstract void setIdentifier(String identifier);
+
+		@JsonProperty("revision")
+		abstract String getRevision();
+
+		@JsonProperty("revision")
+		abstract void setRevision(String revision);
+
+	}
+
+	private T object;
+
+	/**
+	 * @return The shared and configured mapper, e.g. for streaming several
+	 *         objects with one generator.
+	 */
+	public static ObjectMapper getMapper() {
+		return mapper;
+	}
+
+	public JacksonRepresentation(T object) {
+		super(MediaType.APPLICATION_JSON);
+		this.object = object;
+	}
+
+	@Override
+	public void write(OutputStream outputStream) throws IOException {
+		mapper.writeValue(outputStream, object);
+	}
+
+	public T getObject() {
+		return object;
+	}
+
+	/**
+	 * Reads an object from a JSON representation, e.g. the entity of a PUT.
+	 *
+	 * @param representation
+	 *            JSON representation
+	 * @param type
+	 *            Class of the object
+	 * @return The parsed object.
+	 * @throws IOException
+	 *             If the JSON is not well-formed or does not match the class.
+	 */
+	public static <T> T read(Representation representation, Class<T> type) throws IOException {
+		InputStream in = representation.getStream();
+		try {
+			return mapper.readValue(in, type);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -9,45 +9,134 @@ import org.restlet.resource.ResourceException;
 
 import se.kth.nada.kmr.collaborilla.ldap.CollaborillaObject;
 import se.kth.nada.kmr.collaborilla.ldap.LDAPAccess;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPConnectionPool;
+import se.kth.nada.kmr.collaborilla.ldap.LocationIndex;
 
 import com.novell.ldap.LDAPException;
 
+/**
+ * Gives resources access to the directory. An instance is meant to be used
+ * for one request: the first call which needs a connection borrows it from the
+ * pool of the application, and close() has to be called in a finally block to
+ * give it back.
+ *
+ * @author Hannes Ebner
+ */
 public class LDAPCommunicator {
-	
+
 	Log log = LogFactory.getLog(LDAPCommunicator.class);
-	
+
 	private String ldapServerDN;
-	
+
 	private String ldapHostname;
-	
+
 	private String ldapLoginDN;
-	
+
 	private String ldapPassword;
-	
+
+	private LDAPConnectionPool ldapPool;
+
+	private LDAPAccess connection;
+
 	public LDAPCommunicator() {
 		this.ldapHostname = CollaborillaApplication.getLdapHostname();
 		this.ldapServerDN = CollaborillaApplication.getLdapServerDN();
 		this.ldapLoginDN = CollaborillaApplication.getLdapLoginDN();
 		this.ldapPassword = CollaborillaApplication.getLdapPassword();
+		this.ldapPool = CollaborillaApplication.getLdapPool();
 	}
-	
-	public LDAPAccess getLDAPConnection() {
-		return new LDAPAccess(ldapHostname, ldapLoginDN, ldapPassword);
+
+	/**
+	 * Returns the connection of this request, borrows it if necessary. If the
+	 * application has not been started (and has no pool) a new connection is
+	 * opened.
+	 *
+	 * @return LDAP connection, only valid until close() is called.
+	 * @throws LDAPException
+	 *             BUSY if no connection is available.
+	 */
+	public LDAPAccess getLDAPConnection() throws LDAPException {
+		if (connection == null) {
+			if (ldapPool != null) {
+				connection = ldapPool.borrow();
+			} else {
+				connection = new LDAPAccess(ldapHostname, ldapLoginDN, ldapPassword);
+				connection.setReplicaSet(CollaborillaApplication.getLdapReplicaSet());
+			}
+		}
+		return connection;
 	}
-	
+
 	public CollaborillaObject getCollaborillaObject(URI uri, boolean create) throws ResourceException {
+		LDAPAccess ldapAccess;
+		try {
+			ldapAccess = getLDAPConnection();
+		} catch (LDAPException e) {
+			log.warn(e.getMessage());
+			throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, e.getMessage());
+		}
+
 		CollaborillaObject co = null;
 		try {
-			co = new CollaborillaObject(getLDAPConnection(), ldapServerDN, uri.toASCIIString(), create);
+			co = new CollaborillaObject(ldapAccess, ldapServerDN, uri.toASCIIString(), create);
 		} catch (LDAPException e) {
 			log.info(e.getMessage());
 			throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, e.getMessage());
 		}
 		return co;
 	}
-	
+
+	/**
+	 * Resolves a URI to its URLs through the shared location index, the
+	 * directory is only asked for URIs which are not indexed.
+	 * 
+	 * @param uri
+	 *            URI of the entry
+	 * @param aligned
+	 *            Construct URLs from the parent URIs if the entry has no
+	 *            location
+	 * @return Array of URLs or null if there are none.
+	 * @throws ResourceException
+	 *             503 if no connection is available.
+	 */
+	public String[] resolveLocation(URI uri, boolean aligned) throws ResourceException {
+		// most lookups are answered by the index, without borrowing a connection
+		LocationIndex.Entry cached = LocationIndex.getInstance(ldapServerDN).get(uri.toASCIIString());
+		if (cached != null && (cached.hasLocations() || !aligned)) {
+			return cached.getLocations();
+		}
+
+		try {
+			return CollaborillaObject.resolveLocation(getLDAPConnection(), ldapServerDN, uri.toASCIIString(), aligned);
+		} catch (LDAPException e) {
+			log.warn(e.getMessage());
+			throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, e.getMessage());
+		}
+	}
+
+	/**
+	 * Gives the connection back to the pool. Objects obtained through this
+	 * communicator must not be used afterwards.
+	 */
+	public void close() {
+		if (connection == null) {
+			return;
+		}
+
+		if (ldapPool != null) {
+			ldapPool.release(connection);
+		} else {
+			try {
+				connection.disconnect();
+			} catch (LDAPException e) {
+				log.warn(e.getMessage());
+			}
+		}
+		connection = null;
+	}
+
 	public String getBaseDN() {
 		return ldapServerDN;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,19 @@
+package se.kth.nada.kmr.collaborilla.rest;
+
+/**
+ * Is notified whenever an entry has been modified through the REST interface.
+ *
+ * @author Hannes Ebner
+ * @see CollaborillaApplication#addModificationListener(ModificationListener)
+ */
+public interface ModificationListener {
+
+	/**
+	 * Called after an entry has been written.
+	 *
+	 * @param uri
+	 *            URI of the modified entry
+	 */
+	void entryModified(String uri);
+
+}
@@ -0,0 +1,264 @@
+package se.kth.nada.kmr.collaborilla.rest;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.restlet.data.Conditions;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.restlet.resource.Representation;
+
+/**
+ * Remembers the validators (entity tag and modification date) of the
+ * representations which have been served, so that conditional requests
+ * (If-None-Match, If-Modified-Since) can be answered with a 304 without
+ * reading the entry.
+ * <p>
+ * The entity tag is a digest of the content, the modifyTimestamp alone is not
+ * sufficient as it only has a resolution of seconds. Validators are dropped
+ * when an entry is modified through the REST interface. Modifications done
+ * through the Collaborilla service are picked up after the time to live.
+ *
+ * @author Hannes Ebner
+ */
+public class ValidatorCache implements ModificationListener {
+
+	static Log log = LogFactory.getLog(ValidatorCache.class);
+
+	/**
+	 * Resource serving the dataset of an entry.
+	 */
+	public static final String ELEMENT = "element";
+
+	/**
+	 * Resource serving the metadata of an entry.
+	 */
+	public static final String METADATA = "metadata";
+
+	private static final String[] RESOURCES = { ELEMENT, METADATA };
+
+	private static final int MAX_ENTRIES = 10000;
+
+	private static ValidatorCache instance;
+
+	private long timeToLive;
+
+	private Map<String, CachedValidators> validators;
+
+	/**
+	 * Validators of the representations of one resource of an entry, per
+	 * media type.
+	 */
+	private static class CachedValidators {
+
+		Date modified;
+
+		Map<String, Tag> tags = new HashMap<String, Tag>();
+
+		long expires;
+
+		CachedValidators(Date modified, long expires) {
+			this.modified = modified;
+			this.expires = expires;
+		}
+
+	}
+
+	/**
+	 * @param timeToLive
+	 *            Time in milliseconds after which the validators of an entry
+	 *            are not used anymore
+	 */
+	public ValidatorCache(long timeToLive) {
+		this.timeToLive = timeToLive;
+		this.validators = new LinkedHashMap<String, CachedValidators>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, CachedValidators> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+	}
+
+	/**
+	 * Returns the shared cache, which is registered as modification listener
+	 * of the application.
+	 */
+	public static synchronized ValidatorCache getInstance() {
+		if (instance == null) {
+			instance = new ValidatorCache(CollaborillaApplication.getValidatorTimeToLive());
+			CollaborillaApplication.addModificationListener(instance);
+		}
+		return instance;
+	}
+
+	public synchronized void entryModified(String uri) {
+		for (int i = 0; i < RESOURCES.length; i++) {
+			validators.remove(key(RESOURCES[i], uri));
+		}
+	}
+
+	private static String key(String resource, String uri) {
+		return resource + " " + uri;
+	}
+
+	/**
+	 * Remembers the validators of a representation which has just been
+	 * created from a complete read of the entry.
+	 *
+	 * @param resource
+	 *            ELEMENT or METADATA
+	 */
+	public synchronized void put(String resource, URI uri, MediaType mediaType, Date modified, Tag tag) {
+		String key = key(resource, uri.toASCIIString());
+		if (modified == null || tag == null) {
+			validators.remove(key);
+			return;
+		}
+		String subType = mediaType.getSubType();
+		CachedValidators cached = validators.get(key);
+		// the tags of other media types are dropped if the content has changed
+		if (cached == null || !modified.equals(cached.modified) || cached.expires < System.currentTimeMillis()
+				|| (cached.tags.containsKey(subType) && !tag.equals(cached.tags.get(subType)))) {
+			cached = new CachedValidators(modified, System.currentTimeMillis() + timeToLive);
+			validators.put(key, cached);
+		}
+		cached.tags.put(subType, tag);
+	}
+
+	private synchronized CachedValidators get(String key) {
+		CachedValidators cached = validators.get(key);
+		if (cached == null) {
+			return null;
+		}
+		if (cached.expires < System.currentTimeMillis()) {
+			validators.remove(key);
+			return null;
+		}
+		return cached;
+	}
+
+	/**
+	 * Checks the conditions of a request against the cached validators of a
+	 * representation.
+	 *
+	 * @param resource
+	 *            ELEMENT or METADATA
+	 * @return An empty representation carrying the validators if the request
+	 *         can be answered without a body (e.g. 304), null if the
+	 *         validators are not known or the representation has changed.
+	 */
+	public Representation evaluateCached(Request request, String resource, URI uri, MediaType mediaType) {
+		if (!request.getConditions().hasSome()) {
+			return null;
+		}
+		Date modified;
+		Tag tag;
+		synchronized (this) {
+			CachedValidators cached = get(key(resource, uri.toASCIIString()));
+			if (cached == null) {
+				return null;
+			}
+			modified = cached.modified;
+			tag = cached.tags.get(mediaType.getSubType());
+		}
+		if (tag == null) {
+			return null;
+		}
+		return evaluateConditions(request, modified, tag);
+	}
+
+	/**
+	 * Creates a strong entity tag from a digest of the content. The media
+	 * type is part of the digest, as the representations of different media
+	 * types are not byte-identical.
+	 *
+	 * @param content
+	 *            Content from which the representation is created
+	 *            deterministically
+	 * @param mediaType
+	 *            Media type of the representation
+	 */
+	public static Tag createTag(byte[] content, MediaType mediaType) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(content);
+			digest.update(mediaType.getSubType().getBytes("UTF-8"));
+			byte[] hash = digest.digest();
+			StringBuffer value = new StringBuffer();
+			for (int i = 0; i < hash.length; i++) {
+				String hex = Integer.toHexString(hash[i] & 0xff);
+				if (hex.length() == 1) {
+					value.append('0');
+				}
+				value.append(hex);
+			}
+			return new Tag(value.toString(), false);
+		} catch (NoSuchAlgorithmException e) {
+			log.error(e.getMessage());
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			log.error(e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @see #createTag(byte[], MediaType)
+	 */
+	public static Tag createTag(String content, MediaType mediaType) {
+		try {
+			return createTag(content.getBytes("UTF-8"), mediaType);
+		} catch (UnsupportedEncodingException e) {
+			log.error(e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Checks the conditions of a request against the validators of a
+	 * representation. If-Modified-Since is ignored if the request carries
+	 * If-None-Match, as the modification date has a resolution of seconds
+	 * only.
+	 *
+	 * @return An empty representation carrying the validators if the request
+	 *         can be answered without a body (e.g. 304), otherwise null.
+	 */
+	public static Representation evaluateConditions(Request request, Date modified, Tag tag) {
+		Conditions conditions = request.getConditions();
+		if ((modified == null && tag == null) || !conditions.hasSome()) {
+			return null;
+		}
+
+		List<Tag> noneMatch = conditions.getNoneMatch();
+		if (noneMatch != null && !noneMatch.isEmpty() && conditions.getModifiedSince() != null) {
+			Conditions tagConditions = new Conditions();
+			tagConditions.setMatch(conditions.getMatch());
+			tagConditions.setNoneMatch(noneMatch);
+			tagConditions.setUnmodifiedSince(conditions.getUnmodifiedSince());
+			conditions = tagConditions;
+		}
+
+		Representation empty = Representation.createEmpty();
+		empty.setTag(tag);
+		empty.setModificationDate(modified);
+
+		Status status = conditions.getStatus(request.getMethod(), empty);
+		if (status != null) {
+			return empty;
+		}
+		return null;
+	}
+
+}
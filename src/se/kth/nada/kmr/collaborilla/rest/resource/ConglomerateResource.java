@@ -0,0 +1,108 @@
+package se.kth.nada.kmr.collaborilla.rest.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.restlet.Context;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.OutputRepresentation;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Resource;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+
+import se.kth.nada.kmr.collaborilla.rest.ConglomerateIndex;
+import se.kth.nada.kmr.collaborilla.rest.JacksonRepresentation;
+import se.kth.nada.kmr.collaborilla.util.URIHelper;
+
+/**
+ * Returns an element together with all elements it depends on, i.e. the
+ * transitive closure over its required containers.
+ * <p>
+ * Query parameters: "optional=true" follows the optional containers too,
+ * "depth" limits the number of levels (at most ConglomerateIndex.MAX_DEPTH).
+ * The result is a JSON object with "uri", "complete" and "elements", every
+ * element has "uri", "depth", "status" and, if the status is 200, "dataset".
+ *
+ * @author Hannes Ebner
+ */
+public class ConglomerateResource extends Resource {
+
+	Log log = LogFactory.getLog(ConglomerateResource.class);
+
+	private URI uri;
+
+	private boolean includeOptional = false;
+
+	private int depth = ConglomerateIndex.MAX_DEPTH;
+
+	public ConglomerateResource(Context context, Request request, Response response) {
+		super(context, request, response);
+		try {
+			uri = URIHelper.extractURI(request);
+		} catch (ResourceException e) {
+			response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return;
+		}
+		Form query = request.getResourceRef().getQueryAsForm();
+		includeOptional = "true".equalsIgnoreCase(query.getFirstValue("optional"));
+		String depthParam = query.getFirstValue("depth");
+		if (depthParam != null) {
+			try {
+				depth = Integer.parseInt(depthParam);
+			} catch (NumberFormatException e) {
+				response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+				return;
+			}
+		}
+		getVariants().add(new Variant(MediaType.APPLICATION_JSON));
+	}
+
+	@Override
+	public Representation represent(Variant variant) throws ResourceException {
+		final ConglomerateIndex.Conglomerate conglomerate = ConglomerateIndex.getInstance().getConglomerate(uri,
+				includeOptional, depth);
+
+		return new OutputRepresentation(MediaType.APPLICATION_JSON) {
+			@Override
+			public void write(OutputStream outputStream) throws IOException {
+				writeConglomerate(conglomerate, outputStream);
+			}
+		};
+	}
+
+	private void writeConglomerate(ConglomerateIndex.Conglomerate conglomerate, OutputStream outputStream)
+			throws IOException {
+		JsonGenerator gen = JacksonRepresentation.getMapper().getJsonFactory().createJsonGenerator(outputStream,
+				JsonEncoding.UTF8);
+		gen.writeStartObject();
+		gen.writeStringField("uri", uri.toString());
+		gen.writeBooleanField("complete", conglomerate.isComplete());
+		gen.writeArrayFieldStart("elements");
+
+		for (ConglomerateIndex.Member member : conglomerate.getMembers()) {
+			gen.writeStartObject();
+			gen.writeStringField("uri", member.getUri());
+			gen.writeNumberField("depth", member.getDepth());
+			gen.writeNumberField("status", member.getStatus());
+			if (member.getDataset() != null) {
+				gen.writeObjectField("dataset", member.getDataset());
+			}
+			gen.writeEndObject();
+		}
+
+		gen.writeEndArray();
+		gen.writeEndObject();
+		gen.flush();
+	}
+
+}
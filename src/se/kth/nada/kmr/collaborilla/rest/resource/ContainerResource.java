@@ -11,12 +11,9 @@ import org.restlet.data.Status;
 import org.restlet.resource.Resource;
 import org.restlet.resource.ResourceException;
 
-import se.kth.nada.kmr.collaborilla.ldap.CollaborillaObject;
 import se.kth.nada.kmr.collaborilla.rest.LDAPCommunicator;
 import se.kth.nada.kmr.collaborilla.util.URIHelper;
 
-import com.novell.ldap.LDAPException;
-
 public class ContainerResource extends Resource {
 
 	Log log = LogFactory.getLog(ContainerResource.class);
@@ -41,22 +38,14 @@ public class ContainerResource extends Resource {
 	}
 
 	private String getLocation(URI uri) {
+		String[] loc = null;
 		LDAPCommunicator ldapC = new LDAPCommunicator();
-		CollaborillaObject co;
 		try {
-			co = ldapC.getCollaborillaObject(uri, false);
+			loc = ldapC.resolveLocation(uri, false);
 		} catch (ResourceException e) {
 			log.info(e.getMessage());
-			return null;
-		}
-		
-		String[] loc = null;
-		if (co != null) {
-			try {
-				loc = co.getLocation();
-			} catch (LDAPException e) {
-				log.info(e.getMessage());
-			}
+		} finally {
+			ldapC.close();
 		}
 		
 		if ((loc != null) && (loc.length > 0)) {
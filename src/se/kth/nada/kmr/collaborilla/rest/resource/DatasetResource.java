@@ -1,16 +1,21 @@
 package se.kth.nada.kmr.collaborilla.rest.resource;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.Date;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.restlet.Context;
+import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
 import org.restlet.data.Status;
-import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.data.Tag;
+import org.restlet.resource.InputRepresentation;
 import org.restlet.resource.ObjectRepresentation;
 import org.restlet.resource.Representation;
 import org.restlet.resource.Resource;
@@ -18,8 +23,13 @@ import org.restlet.resource.ResourceException;
 import org.restlet.resource.Variant;
 
 import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSet;
+import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSetCodec;
 import se.kth.nada.kmr.collaborilla.ldap.CollaborillaObject;
+import se.kth.nada.kmr.collaborilla.rest.CollaborillaApplication;
+import se.kth.nada.kmr.collaborilla.rest.DatasetFetcher;
+import se.kth.nada.kmr.collaborilla.rest.JacksonRepresentation;
 import se.kth.nada.kmr.collaborilla.rest.LDAPCommunicator;
+import se.kth.nada.kmr.collaborilla.rest.ValidatorCache;
 import se.kth.nada.kmr.collaborilla.util.URIHelper;
 
 import com.novell.ldap.LDAPException;
@@ -28,8 +38,20 @@ public class DatasetResource extends Resource {
 	
 	Log log = LogFactory.getLog(DatasetResource.class);
 
+	/**
+	 * Revisions never change, clients and proxies may keep them for a year.
+	 */
+	private static final int REVISION_MAX_AGE = 365 * 24 * 60 * 60;
+
+	/**
+	 * Compact binary encoding, see CollaborillaDataSetCodec.
+	 */
+	public static final MediaType APPLICATION_COLLABORILLA_DATASET = new MediaType(CollaborillaDataSetCodec.MEDIA_TYPE);
+
 	private URI uri;
 
+	private int revision = 0;
+
 	public DatasetResource(Context context, Request request, Response response) {
 		super(context, request, response);
 		try {
@@ -38,26 +60,113 @@ public class DatasetResource extends Resource {
 			response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
 			return;
 		}
+		String rev = request.getResourceRef().getQueryAsForm().getFirstValue("rev");
+		if (rev != null) {
+			try {
+				revision = Integer.parseInt(rev);
+			} catch (NumberFormatException e) {
+				response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+				return;
+			}
+		}
 		getVariants().add(new Variant(MediaType.APPLICATION_JSON));
 		getVariants().add(new Variant(MediaType.APPLICATION_JAVA_OBJECT));
+		getVariants().add(new Variant(APPLICATION_COLLABORILLA_DATASET));
 	}
 
 	/**
-	 * Returns a full representation for a given variant.
+	 * Returns a full representation for a given variant. Conditional requests
+	 * are answered with an empty representation if the validators match; if
+	 * they are cached the dataset is not read in that case.
 	 */
 	@Override
 	public Representation represent(Variant variant) throws ResourceException {
+		if (revision > 0) {
+			return representRevision(variant);
+		}
+
 		Representation result = null;
-		CollaborillaDataSet dataset = getCollaborillaDataSet();
+		CollaborillaDataSet dataset = null;
 		
-		if (variant.getMediaType().equals(MediaType.APPLICATION_JAVA_OBJECT)) {
+		LDAPCommunicator ldapC = new LDAPCommunicator();
+		try {
+			Representation notModified = ValidatorCache.getInstance().evaluateCached(getRequest(),
+					ValidatorCache.ELEMENT, uri, variant.getMediaType());
+			if (notModified != null) {
+				return notModified;
+			}
+			dataset = DatasetFetcher.getInstance().fetch(ldapC, uri, 0);
+		} finally {
+			ldapC.close();
+		}
+
+		Date modified = null;
+		Tag tag = null;
+		if (dataset != null) {
+			modified = dataset.getTimestampModified();
+			tag = ValidatorCache.createTag(CollaborillaDataSetCodec.encode(dataset), variant.getMediaType());
+		}
+		ValidatorCache.getInstance().put(ValidatorCache.ELEMENT, uri, variant.getMediaType(), modified, tag);
+
+		// the validators are known now, the request may still be conditional
+		Representation notModified = ValidatorCache.evaluateConditions(getRequest(), modified, tag);
+		if (notModified != null) {
+			return notModified;
+		}
+
+		result = createRepresentation(dataset, variant);
+		result.setTag(tag);
+		result.setModificationDate(modified);
+
+		return result;
+	}
+	
+	/**
+	 * Returns a historical revision. Revisions are immutable, after the first
+	 * read they are served from the RevisionCache without asking the
+	 * directory.
+	 */
+	private Representation representRevision(Variant variant) throws ResourceException {
+		CollaborillaDataSet dataset = null;
+		LDAPCommunicator ldapC = new LDAPCommunicator();
+		try {
+			dataset = DatasetFetcher.getInstance().fetch(ldapC, uri, revision);
+		} finally {
+			ldapC.close();
+		}
+
+		Date modified = dataset.getTimestampModified();
+		Tag tag = ValidatorCache.createTag(CollaborillaDataSetCodec.encode(dataset), variant.getMediaType());
+		Representation result = ValidatorCache.evaluateConditions(getRequest(), modified, tag);
+		if (result == null) {
+			result = createRepresentation(dataset, variant);
+			result.setTag(tag);
+			result.setModificationDate(modified);
+		}
+
+		result.setExpirationDate(new Date(System.currentTimeMillis() + REVISION_MAX_AGE * 1000L));
+		Form headers = (Form) getResponse().getAttributes().get("org.restlet.http.headers");
+		if (headers == null) {
+			headers = new Form();
+			getResponse().getAttributes().put("org.restlet.http.headers", headers);
+		}
+		headers.add("Cache-Control", "public, max-age=" + REVISION_MAX_AGE + ", immutable");
+
+		return result;
+	}
+
+	private Representation createRepresentation(CollaborillaDataSet dataset, Variant variant) {
+		Representation result = null;
+		if (variant.getMediaType().equals(APPLICATION_COLLABORILLA_DATASET)) {
+			byte[] encoded = CollaborillaDataSetCodec.encode(dataset);
+			result = new InputRepresentation(new ByteArrayInputStream(encoded), APPLICATION_COLLABORILLA_DATASET,
+					encoded.length);
+		} else if (variant.getMediaType().equals(MediaType.APPLICATION_JAVA_OBJECT)) {
 			result = new ObjectRepresentation<CollaborillaDataSet>(dataset);
 			result.setMediaType(MediaType.APPLICATION_JAVA_OBJECT);
 		} else {
-			result = new JsonRepresentation(dataset);
-			result.setMediaType(MediaType.APPLICATION_JSON);
+			result = new JacksonRepresentation<CollaborillaDataSet>(dataset);
 		}
-
 		return result;
 	}
 	
@@ -68,7 +177,37 @@ public class DatasetResource extends Resource {
 	
 	@Override
 	public void storeRepresentation(Representation representation) throws ResourceException {
-		if (representation.getMediaType().equals(MediaType.APPLICATION_JAVA_OBJECT)) {
+		if (revision > 0) {
+			// historical revisions are read-only
+			throw new ResourceException(Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
+		}
+		if (representation.getMediaType().equals(APPLICATION_COLLABORILLA_DATASET)) {
+			CollaborillaDataSet dataset = null;
+			try {
+				InputStream in = representation.getStream();
+				try {
+					dataset = CollaborillaDataSetCodec.decode(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				log.info(e.getMessage());
+				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+			}
+			setCollaborillaDataSet(dataset);
+		} else if (representation.getMediaType().equals(MediaType.APPLICATION_JSON)) {
+			CollaborillaDataSet dataset = null;
+			try {
+				dataset = JacksonRepresentation.read(representation, CollaborillaDataSet.class);
+			} catch (IOException e) {
+				log.info(e.getMessage());
+				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+			}
+			if (dataset == null) {
+				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST);
+			}
+			setCollaborillaDataSet(dataset);
+		} else if (representation.getMediaType().equals(MediaType.APPLICATION_JAVA_OBJECT)) {
 			ObjectRepresentation or = null;
 			try {
 				or = new ObjectRepresentation<CollaborillaDataSet>(representation);
@@ -102,35 +241,24 @@ public class DatasetResource extends Resource {
 		}
 	}
 
-	private CollaborillaDataSet getCollaborillaDataSet() throws ResourceException {
-		LDAPCommunicator ldapC = new LDAPCommunicator();
-		CollaborillaObject co = ldapC.getCollaborillaObject(uri, false);
-		CollaborillaDataSet ds = null;
-		if (co != null) {
-			try {
-				ds = co.getDataSet();
-			} catch (LDAPException e) {
-				log.error(e.getMessage());
-				throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
-			}
-		}
-
-		return ds;
-	}
-	
 	private void setCollaborillaDataSet(CollaborillaDataSet dataset) throws ResourceException {
 		LDAPCommunicator ldapC = new LDAPCommunicator();
-		CollaborillaObject co = ldapC.getCollaborillaObject(uri, true);
-		if (co != null) {
-			try {
-				co.setDataSet(dataset);
-			} catch (LDAPException e) {
-				log.error(e.getMessage());
-				throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
-			} catch (IllegalArgumentException iae) {
-				log.info(iae.getMessage());
-				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, iae.getMessage());
+		try {
+			CollaborillaObject co = ldapC.getCollaborillaObject(uri, true);
+			if (co != null) {
+				try {
+					co.setDataSet(dataset);
+					CollaborillaApplication.fireEntryModified(co.getAccessUri());
+				} catch (LDAPException e) {
+					log.error(e.getMessage());
+					throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+				} catch (IllegalArgumentException iae) {
+					log.info(iae.getMessage());
+					throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, iae.getMessage());
+				}
 			}
+		} finally {
+			ldapC.close();
 		}
 	}
 
@@ -0,0 +1,193 @@
+package se.kth.nada.kmr.collaborilla.rest.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.OutputRepresentation;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Resource;
+import org.restlet.resource.ResourceException;
+
+import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSet;
+import se.kth.nada.kmr.collaborilla.rest.DatasetFetcher;
+import se.kth.nada.kmr.collaborilla.rest.JacksonRepresentation;
+
+/**
+ * Returns the datasets of several elements with one request.
+ * <p>
+ * The POST body is a JSON array of URIs or of objects with "uri" and an
+ * optional "rev", e.g. <code>["urn:a", {"uri": "urn:b", "rev": 3}]</code>.
+ * The datasets are read in parallel and streamed back as a JSON array in the
+ * same order, every element has "uri", "rev", "status" and, if the status is
+ * 200, "dataset".
+ *
+ * @author Hannes Ebner
+ */
+public class ElementsResource extends Resource {
+
+	Log log = LogFactory.getLog(ElementsResource.class);
+
+	/**
+	 * Maximum number of elements per request.
+	 */
+	private static final int MAX_ELEMENTS = 500;
+
+	private static class Element {
+
+		URI uri;
+
+		int revision;
+
+		Future<CollaborillaDataSet> dataset;
+
+		Element(URI uri, int revision) {
+			this.uri = uri;
+			this.revision = revision;
+		}
+
+	}
+
+	public ElementsResource(Context context, Request request, Response response) {
+		super(context, request, response);
+		setReadable(false);
+	}
+
+	@Override
+	public boolean allowPost() {
+		return true;
+	}
+
+	@Override
+	public void acceptRepresentation(Representation entity) throws ResourceException {
+		if (entity == null || !MediaType.APPLICATION_JSON.equals(entity.getMediaType(), true)) {
+			throw new ResourceException(Status.CLIENT_ERROR_UNSUPPORTED_MEDIA_TYPE);
+		}
+
+		final List<Element> elements = parseElements(entity);
+
+		// all reads are started before the first byte is written
+		DatasetFetcher fetcher = DatasetFetcher.getInstance();
+		for (Element element : elements) {
+			element.dataset = fetcher.fetchAsync(element.uri, element.revision);
+		}
+
+		getResponse().setEntity(new OutputRepresentation(MediaType.APPLICATION_JSON) {
+			@Override
+			public void write(OutputStream outputStream) throws IOException {
+				writeElements(elements, outputStream);
+			}
+		});
+		getResponse().setStatus(Status.SUCCESS_OK);
+	}
+
+	private List<Element> parseElements(Representation entity) throws ResourceException {
+		JsonNode root = null;
+		try {
+			InputStream in = entity.getStream();
+			try {
+				root = JacksonRepresentation.getMapper().readTree(in);
+			} finally {
+				in.close();
+			}
+		} catch (JsonProcessingException e) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+		} catch (IOException e) {
+			log.info(e.getMessage());
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+		}
+
+		if (root == null || !root.isArray()) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Expected a JSON array");
+		}
+		if (root.size() > MAX_ELEMENTS) {
+			throw new ResourceException(Status.CLIENT_ERROR_REQUEST_ENTITY_TOO_LARGE, "At most " + MAX_ELEMENTS
+					+ " elements per request");
+		}
+
+		List<Element> elements = new ArrayList<Element>(root.size());
+		Iterator<JsonNode> it = root.getElements();
+		while (it.hasNext()) {
+			JsonNode node = it.next();
+			String uri = null;
+			int revision = 0;
+			if (node.isTextual()) {
+				uri = node.getTextValue();
+			} else if (node.isObject() && node.get("uri") != null) {
+				uri = node.get("uri").getTextValue();
+				if (node.get("rev") != null) {
+					revision = node.get("rev").getValueAsInt(-1);
+				}
+			}
+			if (uri == null || revision < 0) {
+				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid element: " + node);
+			}
+			try {
+				elements.add(new Element(new URI(uri), revision));
+			} catch (URISyntaxException e) {
+				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+			}
+		}
+
+		return elements;
+	}
+
+	private void writeElements(List<Element> elements, OutputStream outputStream) throws IOException {
+		JsonGenerator gen = JacksonRepresentation.getMapper().getJsonFactory().createJsonGenerator(outputStream,
+				JsonEncoding.UTF8);
+		gen.writeStartArray();
+
+		for (Element element : elements) {
+			gen.writeStartObject();
+			gen.writeStringField("uri", element.uri.toString());
+			gen.writeNumberField("rev", element.revision);
+
+			CollaborillaDataSet dataset = null;
+			int status = Status.SUCCESS_OK.getCode();
+			try {
+				dataset = element.dataset.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				status = Status.SERVER_ERROR_SERVICE_UNAVAILABLE.getCode();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof ResourceException) {
+					status = ((ResourceException) e.getCause()).getStatus().getCode();
+				} else {
+					log.error(e.getCause().getMessage());
+					status = Status.SERVER_ERROR_INTERNAL.getCode();
+				}
+			}
+
+			gen.writeNumberField("status", status);
+			if (dataset != null) {
+				gen.writeObjectField("dataset", dataset);
+			}
+			gen.writeEndObject();
+
+			// the client can start processing while we wait for the next one
+			gen.flush();
+		}
+
+		gen.writeEndArray();
+		gen.flush();
+	}
+
+}
@@ -0,0 +1,200 @@
+package se.kth.nada.kmr.collaborilla.rest.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.OutputRepresentation;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Resource;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+
+import se.kth.nada.kmr.collaborilla.rest.JacksonRepresentation;
+import se.kth.nada.kmr.collaborilla.rest.LDAPCommunicator;
+import se.kth.nada.kmr.collaborilla.util.URIHelper;
+
+/**
+ * Resolves URIs to URLs. If an entry has no location of its own, the URLs are
+ * constructed from the locations of its parent URIs, unless the query
+ * parameter "aligned=false" is given.
+ * <p>
+ * GET with a "uri" query parameter resolves one URI. A POST of a JSON array of
+ * URIs resolves all of them with one request. The answer is a JSON array in
+ * the same order, every element has "uri" and "locations", which is null if
+ * the URI could not be resolved.
+ *
+ * @author Hannes Ebner
+ */
+public class LocationResource extends Resource {
+
+	Log log = LogFactory.getLog(LocationResource.class);
+
+	/**
+	 * Maximum number of URIs per request.
+	 */
+	private static final int MAX_URIS = 1000;
+
+	private URI uri;
+
+	private boolean aligned = true;
+
+	public LocationResource(Context context, Request request, Response response) {
+		super(context, request, response);
+		aligned = !"false".equalsIgnoreCase(request.getResourceRef().getQueryAsForm().getFirstValue("aligned"));
+		if (request.getAttributes().get("uri") == null) {
+			// batch resolution
+			setReadable(false);
+			return;
+		}
+		try {
+			uri = URIHelper.extractURI(request);
+		} catch (ResourceException e) {
+			response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return;
+		}
+		getVariants().add(new Variant(MediaType.APPLICATION_JSON));
+	}
+
+	@Override
+	public Representation represent(Variant variant) throws ResourceException {
+		List<URI> uris = new ArrayList<URI>(1);
+		uris.add(uri);
+		final List<String[]> locations = resolve(uris);
+		if (locations.get(0) == null) {
+			throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND);
+		}
+
+		return new OutputRepresentation(MediaType.APPLICATION_JSON) {
+			@Override
+			public void write(OutputStream outputStream) throws IOException {
+				JsonGenerator gen = createGenerator(outputStream);
+				writeLocation(gen, uri, locations.get(0));
+				gen.flush();
+			}
+		};
+	}
+
+	@Override
+	public boolean allowPost() {
+		return uri == null;
+	}
+
+	@Override
+	public void acceptRepresentation(Representation entity) throws ResourceException {
+		if (entity == null || !MediaType.APPLICATION_JSON.equals(entity.getMediaType(), true)) {
+			throw new ResourceException(Status.CLIENT_ERROR_UNSUPPORTED_MEDIA_TYPE);
+		}
+
+		final List<URI> uris = parseURIs(entity);
+		final List<String[]> locations = resolve(uris);
+
+		getResponse().setEntity(new OutputRepresentation(MediaType.APPLICATION_JSON) {
+			@Override
+			public void write(OutputStream outputStream) throws IOException {
+				JsonGenerator gen = createGenerator(outputStream);
+				gen.writeStartArray();
+				for (int i = 0; i < uris.size(); i++) {
+					writeLocation(gen, uris.get(i), locations.get(i));
+				}
+				gen.writeEndArray();
+				gen.flush();
+			}
+		});
+		getResponse().setStatus(Status.SUCCESS_OK);
+	}
+
+	/**
+	 * Resolves all URIs with one connection, which is only borrowed if a URI
+	 * is not in the location index.
+	 */
+	private List<String[]> resolve(List<URI> uris) throws ResourceException {
+		List<String[]> result = new ArrayList<String[]>(uris.size());
+		LDAPCommunicator ldapC = new LDAPCommunicator();
+		try {
+			for (URI u : uris) {
+				result.add(ldapC.resolveLocation(u, aligned));
+			}
+		} finally {
+			ldapC.close();
+		}
+		return result;
+	}
+
+	private List<URI> parseURIs(Representation entity) throws ResourceException {
+		JsonNode root = null;
+		try {
+			InputStream in = entity.getStream();
+			try {
+				root = JacksonRepresentation.getMapper().readTree(in);
+			} finally {
+				in.close();
+			}
+		} catch (JsonProcessingException e) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+		} catch (IOException e) {
+			log.info(e.getMessage());
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+		}
+
+		if (root == null || !root.isArray()) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Expected a JSON array");
+		}
+		if (root.size() > MAX_URIS) {
+			throw new ResourceException(Status.CLIENT_ERROR_REQUEST_ENTITY_TOO_LARGE, "At most " + MAX_URIS
+					+ " URIs per request");
+		}
+
+		List<URI> uris = new ArrayList<URI>(root.size());
+		Iterator<JsonNode> it = root.getElements();
+		while (it.hasNext()) {
+			JsonNode node = it.next();
+			if (!node.isTextual()) {
+				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid URI: " + node);
+			}
+			try {
+				uris.add(new URI(node.getTextValue()));
+			} catch (URISyntaxException e) {
+				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+			}
+		}
+
+		return uris;
+	}
+
+	private JsonGenerator createGenerator(OutputStream outputStream) throws IOException {
+		return JacksonRepresentation.getMapper().getJsonFactory().createJsonGenerator(outputStream, JsonEncoding.UTF8);
+	}
+
+	private void writeLocation(JsonGenerator gen, URI u, String[] locations) throws IOException {
+		gen.writeStartObject();
+		gen.writeStringField("uri", u.toString());
+		if (locations == null) {
+			gen.writeNullField("locations");
+		} else {
+			gen.writeArrayFieldStart("locations");
+			for (String location : locations) {
+				gen.writeString(location);
+			}
+			gen.writeEndArray();
+		}
+		gen.writeEndObject();
+	}
+
+}
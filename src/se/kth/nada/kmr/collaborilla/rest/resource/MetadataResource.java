@@ -2,6 +2,7 @@ package se.kth.nada.kmr.collaborilla.rest.resource;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.Date;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -10,6 +11,7 @@ import org.restlet.data.MediaType;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.resource.Representation;
 import org.restlet.resource.Resource;
 import org.restlet.resource.ResourceException;
@@ -17,15 +19,24 @@ import org.restlet.resource.StringRepresentation;
 import org.restlet.resource.Variant;
 
 import se.kth.nada.kmr.collaborilla.ldap.CollaborillaObject;
+import se.kth.nada.kmr.collaborilla.ldap.CollaborillaObjectConstants;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPObject;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPStringHelper;
+import se.kth.nada.kmr.collaborilla.rest.CollaborillaApplication;
 import se.kth.nada.kmr.collaborilla.rest.LDAPCommunicator;
+import se.kth.nada.kmr.collaborilla.rest.ValidatorCache;
 import se.kth.nada.kmr.collaborilla.util.URIHelper;
 
+import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
 
 public class MetadataResource extends Resource {
 
 	Log log = LogFactory.getLog(MetadataResource.class);
 
+	private static final String[] METADATA_ATTRIBUTES = { CollaborillaObjectConstants.METADATA,
+			CollaborillaObjectConstants.DATEMODIFIED };
+
 	private URI uri;
 
 	public MetadataResource(Context context, Request request, Response response) {
@@ -40,14 +51,50 @@ public class MetadataResource extends Resource {
 		getVariants().add(new Variant(MediaType.APPLICATION_JSON));
 	}
 
+	/**
+	 * Conditional requests are answered with an empty representation if the
+	 * validators match; if they are cached the metadata is not read in that
+	 * case.
+	 */
 	@Override
 	public Representation represent(Variant variant) throws ResourceException {
 		Representation result = null;
-		String rdfMetadata = getMetadata();
+		LDAPEntry entry = null;
+
+		LDAPCommunicator ldapC = new LDAPCommunicator();
+		try {
+			Representation notModified = ValidatorCache.getInstance().evaluateCached(getRequest(),
+					ValidatorCache.METADATA, uri, variant.getMediaType());
+			if (notModified != null) {
+				return notModified;
+			}
+			entry = getMetadataEntry(ldapC);
+		} finally {
+			ldapC.close();
+		}
+
+		String rdfMetadata = null;
+		if (entry != null) {
+			rdfMetadata = LDAPObject.getAttributeValue(entry, CollaborillaObjectConstants.METADATA);
+		}
 		if (rdfMetadata == null) {
 			throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND);
 		}
 		
+		Date modified = null;
+		String timestamp = LDAPObject.getAttributeValue(entry, CollaborillaObjectConstants.DATEMODIFIED);
+		if (timestamp != null) {
+			modified = LDAPStringHelper.parseTimestamp(timestamp);
+		}
+		Tag tag = ValidatorCache.createTag(rdfMetadata, variant.getMediaType());
+		ValidatorCache.getInstance().put(ValidatorCache.METADATA, uri, variant.getMediaType(), modified, tag);
+
+		// the validators are known now, the request may still be conditional
+		Representation notModified = ValidatorCache.evaluateConditions(getRequest(), modified, tag);
+		if (notModified != null) {
+			return notModified;
+		}
+
 		if (variant.getMediaType().equals(MediaType.APPLICATION_RDF_XML)) {
 			result = new StringRepresentation(rdfMetadata, MediaType.APPLICATION_RDF_XML);
 		} else {
@@ -55,6 +102,9 @@ public class MetadataResource extends Resource {
 			//result = Representation.createEmpty();
 			result = new StringRepresentation("{\"json\":\"not supported yet\"}", MediaType.APPLICATION_JSON);
 		}
+
+		result.setTag(tag);
+		result.setModificationDate(modified);
 		
 		return result;
 	}
@@ -82,13 +132,15 @@ public class MetadataResource extends Resource {
 		}
 	}
 
-	private String getMetadata() throws ResourceException {
-		LDAPCommunicator ldapC = new LDAPCommunicator();
+	/**
+	 * Reads the metadata and the modification timestamp with one request.
+	 */
+	private LDAPEntry getMetadataEntry(LDAPCommunicator ldapC) throws ResourceException {
 		CollaborillaObject co = ldapC.getCollaborillaObject(uri, false);
 
 		if (co != null) {
 			try {
-				return co.getMetaData();
+				return co.readEntry(co.getBaseDN(), METADATA_ATTRIBUTES);
 			} catch (LDAPException e) {
 				log.error(e.getMessage());
 			}
@@ -99,15 +151,20 @@ public class MetadataResource extends Resource {
 	
 	private void setMetadata(String rdfMetadata) throws ResourceException {
 		LDAPCommunicator ldapC = new LDAPCommunicator();
-		CollaborillaObject co = ldapC.getCollaborillaObject(uri, true);
+		try {
+			CollaborillaObject co = ldapC.getCollaborillaObject(uri, true);
 
-		if (co != null) {
-			try {
-				co.setMetaData(rdfMetadata);
-			} catch (LDAPException e) {
-				log.error(e.getMessage());
-				throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+			if (co != null) {
+				try {
+					co.setMetaData(rdfMetadata);
+					CollaborillaApplication.fireEntryModified(co.getAccessUri());
+				} catch (LDAPException e) {
+					log.error(e.getMessage());
+					throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+				}
 			}
+		} finally {
+			ldapC.close();
 		}
 	}
 	
@@ -0,0 +1,76 @@
+package se.kth.nada.kmr.collaborilla.rest.resource;
+
+import java.net.URI;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Resource;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+
+import se.kth.nada.kmr.collaborilla.ldap.ContainerReferenceIndex;
+import se.kth.nada.kmr.collaborilla.rest.CollaborillaApplication;
+import se.kth.nada.kmr.collaborilla.util.URIHelper;
+
+/**
+ * Returns the elements which reference a container, i.e. which would be
+ * affected by a modification of the container. With "optional=true" elements
+ * which reference it as optional container are included.
+ *
+ * @author Hannes Ebner
+ */
+public class ReferrersResource extends Resource {
+
+	Log log = LogFactory.getLog(ReferrersResource.class);
+
+	private URI uri;
+
+	private boolean includeOptional = false;
+
+	public ReferrersResource(Context context, Request request, Response response) {
+		super(context, request, response);
+		try {
+			uri = URIHelper.extractURI(request);
+		} catch (ResourceException e) {
+			response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return;
+		}
+		includeOptional = "true".equalsIgnoreCase(request.getResourceRef().getQueryAsForm().getFirstValue("optional"));
+		getVariants().add(new Variant(MediaType.APPLICATION_JSON));
+	}
+
+	@Override
+	public Representation represent(Variant variant) throws ResourceException {
+		ContainerReferenceIndex index = ContainerReferenceIndex.getInstance(CollaborillaApplication.getLdapServerDN());
+		Set<String> referrers = index.getReferrers(uri.toString(), includeOptional);
+		if (referrers == null) {
+			// the initial scan has not finished yet
+			throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "Index is being built");
+		}
+
+		JSONObject result = new JSONObject();
+		try {
+			result.put("uri", uri.toString());
+			result.put("referrers", new JSONArray(referrers));
+		} catch (JSONException e) {
+			log.error(e.getMessage());
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL);
+		}
+
+		Representation rep = new JsonRepresentation(result);
+		rep.setMediaType(MediaType.APPLICATION_JSON);
+		return rep;
+	}
+
+}
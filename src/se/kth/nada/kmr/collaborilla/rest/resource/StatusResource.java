@@ -0,0 +1,93 @@
+package se.kth.nada.kmr.collaborilla.rest.resource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Resource;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+
+import se.kth.nada.kmr.collaborilla.ldap.EntryBloomFilter;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPConnectionPool;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPReplicaSet;
+import se.kth.nada.kmr.collaborilla.rest.CollaborillaApplication;
+import se.kth.nada.kmr.collaborilla.rest.DatasetCache;
+import se.kth.nada.kmr.collaborilla.util.Configuration;
+
+/**
+ * Returns runtime metrics of the REST service, e.g. the state of the LDAP
+ * connection pool.
+ *
+ * @author Hannes Ebner
+ */
+public class StatusResource extends Resource {
+
+	Log log = LogFactory.getLog(StatusResource.class);
+
+	public StatusResource(Context context, Request request, Response response) {
+		super(context, request, response);
+		getVariants().add(new Variant(MediaType.APPLICATION_JSON));
+	}
+
+	@Override
+	public Representation represent(Variant variant) throws ResourceException {
+		JSONObject status = new JSONObject();
+		try {
+			status.put("version", Configuration.APPVERSION);
+
+			LDAPConnectionPool pool = CollaborillaApplication.getLdapPool();
+			if (pool != null) {
+				JSONObject poolStatus = new JSONObject();
+				poolStatus.put("active", pool.getActiveCount());
+				poolStatus.put("idle", pool.getIdleCount());
+				poolStatus.put("waiting", pool.getWaitingCount());
+				poolStatus.put("max", pool.getMaxSize());
+				status.put("ldapPool", poolStatus);
+			}
+
+			DatasetCache cache = DatasetCache.getInstance();
+			JSONObject cacheStatus = new JSONObject();
+			cacheStatus.put("size", cache.size());
+			cacheStatus.put("hits", cache.getHitCount());
+			cacheStatus.put("misses", cache.getMissCount());
+			status.put("datasetCache", cacheStatus);
+
+			EntryBloomFilter filter = EntryBloomFilter.getInstance(CollaborillaApplication.getLdapServerDN());
+			if (filter.isLoaded()) {
+				JSONObject filterStatus = new JSONObject();
+				filterStatus.put("entries", filter.getEntryCount());
+				filterStatus.put("bytes", filter.getSizeInBytes());
+				filterStatus.put("hashFunctions", filter.getHashFunctionCount());
+				filterStatus.put("expectedFalsePositiveRate", filter.getExpectedFalsePositiveRate());
+				filterStatus.put("lookups", filter.getLookupCount());
+				filterStatus.put("negatives", filter.getNegativeCount());
+				filterStatus.put("falsePositives", filter.getFalsePositiveCount());
+				status.put("entryFilter", filterStatus);
+			}
+
+			LDAPReplicaSet replicas = CollaborillaApplication.getLdapReplicaSet();
+			if (replicas != null) {
+				JSONObject replicaStatus = new JSONObject();
+				replicaStatus.put("total", replicas.size());
+				replicaStatus.put("healthy", replicas.getHealthyCount());
+				status.put("ldapReplicas", replicaStatus);
+			}
+		} catch (JSONException e) {
+			log.error(e.getMessage());
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL);
+		}
+
+		Representation result = new JsonRepresentation(status);
+		result.setMediaType(MediaType.APPLICATION_JSON);
+		return result;
+	}
+
+}
@@ -0,0 +1,153 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.service;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrently served clients. Clients which exceed the
+ * limit wait in a bounded queue for a free slot; if the queue is full or the
+ * wait times out the client is rejected and should be answered with
+ * Status.SC_SERVICE_UNAVAILABLE.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public class AdmissionController {
+
+	private Semaphore permits;
+
+	private int maxActive;
+
+	private int queueCapacity;
+
+	private long queueTimeout;
+
+	private AtomicInteger queueDepth = new AtomicInteger();
+
+	private AtomicLong admittedCount = new AtomicLong();
+
+	private AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * @param maxActive
+	 *            Maximum number of concurrently served clients, 0 or less
+	 *            means unlimited
+	 * @param queueCapacity
+	 *            Maximum number of clients waiting for a free slot
+	 * @param queueTimeout
+	 *            Maximum time in milliseconds a client waits in the queue
+	 */
+	public AdmissionController(int maxActive, int queueCapacity, long queueTimeout) {
+		this.maxActive = maxActive;
+		this.queueCapacity = Math.max(0, queueCapacity);
+		this.queueTimeout = queueTimeout;
+		if (maxActive > 0) {
+			this.permits = new Semaphore(maxActive, true);
+		}
+	}
+
+	/**
+	 * Admits a client, waits in the queue if necessary.
+	 *
+	 * @return True if the client may be served, false if it has to be
+	 *         rejected. A successful call has to be followed by release().
+	 */
+	public boolean admit() {
+		if (permits == null || permits.tryAcquire()) {
+			admittedCount.incrementAndGet();
+			return true;
+		}
+
+		if (queueDepth.incrementAndGet() > queueCapacity) {
+			queueDepth.decrementAndGet();
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+
+		boolean acquired = false;
+		try {
+			acquired = permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			queueDepth.decrementAndGet();
+		}
+
+		if (acquired) {
+			admittedCount.incrementAndGet();
+		} else {
+			rejectedCount.incrementAndGet();
+		}
+
+		return acquired;
+	}
+
+	/**
+	 * Admits a client only if a slot is free right now, never waits.
+	 *
+	 * @return True if the client may be served. A successful call has to be
+	 *         followed by release().
+	 */
+	public boolean tryAdmit() {
+		if (permits == null || permits.tryAcquire()) {
+			admittedCount.incrementAndGet();
+			return true;
+		}
+
+		rejectedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Frees the slot of a client which has been admitted before.
+	 */
+	public void release() {
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return Maximum number of concurrently served clients, 0 if unlimited.
+	 */
+	public int getMaxActive() {
+		return (permits == null) ? 0 : maxActive;
+	}
+
+	/**
+	 * @return Number of clients currently being served.
+	 */
+	public int getActiveCount() {
+		return (permits == null) ? 0 : maxActive - permits.availablePermits();
+	}
+
+	/**
+	 * @return Number of clients currently waiting for a free slot.
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/**
+	 * @return Total number of admitted clients.
+	 */
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	/**
+	 * @return Total number of rejected clients.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+}
@@ -15,12 +15,10 @@ import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 
-import se.kth.nada.kmr.collaborilla.ldap.LDAPAccess;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPConnectionPool;
 import se.kth.nada.kmr.collaborilla.util.Configuration;
 import se.kth.nada.kmr.collaborilla.util.InfoMessage;
 
-import com.novell.ldap.LDAPException;
-
 /**
  * Implements the thread for the server/client communication in
  * CollaborillaService. Calls CommandHandler to fulfill the requests of the
@@ -35,7 +33,9 @@ public class ClientConnector implements Runnable {
 
 	private static InfoMessage log = InfoMessage.getInstance();
 
-	private LDAPAccess ldapConnection;
+	private LDAPConnectionPool ldapPool;
+
+	private AdmissionController admission;
 
 	private String serverDN;
 
@@ -53,38 +53,34 @@ public class ClientConnector implements Runnable {
 	}
 
 	/**
-	 * Initializes the object and creates a new LDAP connection.
+	 * Initializes the object.
 	 * 
 	 * @param server
 	 *            Socket to communicate with the client
 	 * @param serverDN
 	 *            Server DN for the LDAP connection
-	 * @param ldapHostname
-	 *            Hostname for the LDAP connection
-	 * @param ldapLoginDN
-	 *            Login DN for the LDAP connection
-	 * @param ldapPassword
-	 *            Password for the LDAP connection
+	 * @param ldapPool
+	 *            Pool of LDAP connections, shared by all clients
+	 * @param admission
+	 *            Decides whether the client is served or rejected
 	 * @param verbose
 	 *            Do verbose logging.
 	 */
-	ClientConnector(Socket server, String serverDN, String ldapHostname, String ldapLoginDN, String ldapPassword,
+	ClientConnector(Socket server, String serverDN, LDAPConnectionPool ldapPool, AdmissionController admission,
 			boolean verbose) {
 		this.serverSocket = server;
 		this.serverDN = serverDN;
+		this.ldapPool = ldapPool;
+		this.admission = admission;
 		this.verbose = verbose;
 
 		clientIP = serverSocket.getInetAddress().getHostAddress();
 		
+		int clients = incClientCount();
 		if (verbose) {
 			log.writeLog(clientIP, "Client connected");
-			log.writeLog("CollaborillaService", "Active clients: " + incClientCount());
+			log.writeLog("CollaborillaService", "Active clients: " + clients);
 		}
-
-		// Non-shared connection:
-		// We create a new connection with the LDAP server.
-		// TODO replace this with a connection manager/connection pool.
-		this.ldapConnection = new LDAPAccess(ldapHostname, ldapLoginDN, ldapPassword);
 	}
 
 	/**
@@ -100,17 +96,20 @@ public class ClientConnector implements Runnable {
 		OutputStreamWriter writer = null;
 		BufferedWriter out = null;
 
+		// wait for a free slot, reject the client if the server is overloaded
+		if (!admission.admit()) {
+			reject();
+			return;
+		}
+
 		try {
 			// setup reader and writer
 			in = new BufferedReader(new InputStreamReader(new BufferedInputStream(serverSocket.getInputStream())));
 			writer = new OutputStreamWriter(serverSocket.getOutputStream(), "UTF-8");
 			out = new BufferedWriter(writer);
 
-			// create protocol handler
-			CommandHandler protocol = new CommandHandler(ldapConnection, serverDN);
-
-			// connect to the LDAP server
-			ldapConnection.bind();
+			// create protocol handler, it borrows an LDAP connection per command
+			CommandHandler protocol = new CommandHandler(ldapPool, serverDN);
 
 			// Get input from the client
 			while ((request = in.readLine()) != null) {
@@ -140,7 +139,11 @@ public class ClientConnector implements Runnable {
 
 				// write the status message
 				out.write(statusMessage + Configuration.LINEFEED);
-				out.flush();
+
+				// flush only after the last of several pipelined requests
+				if (!in.ready()) {
+					out.flush();
+				}
 
 				if (verbose) {
 					log.writeLog(clientIP, "< " + statusMessage);
@@ -176,20 +179,44 @@ public class ClientConnector implements Runnable {
 				log.writeLog(clientIP, ioe.getMessage());
 			}
 
-			try {
-				// close connection to the LDAP server
-				ldapConnection.disconnect();
-			} catch (LDAPException ldape) {
-				log.writeLog(clientIP, ldape.getMessage());
-			}
+			admission.release();
 
+			int clients = decClientCount();
 			if (verbose) {
 				log.writeLog(clientIP, "Client disconnected");
-				log.writeLog("CollaborillaService", "Active clients: " + decClientCount());
+				log.writeLog("CollaborillaService", "Active clients: " + clients);
 			}
 		}
 	}
 
+	/**
+	 * Tells the client that the server is overloaded and closes the
+	 * connection.
+	 */
+	private void reject() {
+		try {
+			OutputStreamWriter writer = new OutputStreamWriter(serverSocket.getOutputStream(), "UTF-8");
+			writer.write(Status.getMessage(Status.SC_SERVICE_UNAVAILABLE) + Configuration.LINEFEED);
+			writer.flush();
+		} catch (IOException e) {
+			log.writeLog(clientIP, e.getMessage());
+		} finally {
+			try {
+				serverSocket.close();
+			} catch (IOException ioe) {
+				log.writeLog(clientIP, ioe.getMessage());
+			}
+		}
+
+		log.writeLog(clientIP, "Client rejected, server overloaded (rejected: " + admission.getRejectedCount()
+				+ ", queued: " + admission.getQueueDepth() + ")");
+
+		int clients = decClientCount();
+		if (verbose) {
+			log.writeLog("CollaborillaService", "Active clients: " + clients);
+		}
+	}
+
 	/**
 	 * @return Returns the current amount of connected clients.
 	 */
@@ -202,7 +229,7 @@ public class ClientConnector implements Runnable {
 	 *
 	 * @return Amount of connected clients.
 	 */
-	private static int incClientCount() {
+	static int incClientCount() {
 		synchronized (mutex) {
 			return ++clientCount;
 		}
@@ -213,7 +240,7 @@ public class ClientConnector implements Runnable {
 	 * 
 	 * @return Amount of connected clients.
 	 */
-	private static int decClientCount() {
+	static int decClientCount() {
 		synchronized (mutex) {
 			return --clientCount;
 		}
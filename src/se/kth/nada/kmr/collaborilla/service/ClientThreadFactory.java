@@ -0,0 +1,95 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import se.kth.nada.kmr.collaborilla.util.InfoMessage;
+
+/**
+ * Creates the threads which run the ClientConnector sessions. Supports
+ * platform threads and, if the JVM provides them (Java 21 and later), virtual
+ * threads. Virtual threads are looked up via reflection so that the code
+ * still compiles and runs on older JVMs; if they are not available we fall
+ * back to platform threads.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public class ClientThreadFactory implements ThreadFactory {
+
+	/**
+	 * One platform thread per client.
+	 */
+	public static final String MODE_PLATFORM = "platform";
+
+	/**
+	 * One virtual thread per client.
+	 */
+	public static final String MODE_VIRTUAL = "virtual";
+
+	private static InfoMessage log = InfoMessage.getInstance();
+
+	private ThreadFactory virtualFactory;
+
+	/**
+	 * Initializes the factory.
+	 *
+	 * @param mode
+	 *            Execution mode, either MODE_PLATFORM or MODE_VIRTUAL.
+	 */
+	public ClientThreadFactory(String mode) {
+		if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+			virtualFactory = createVirtualThreadFactory();
+			if (virtualFactory == null) {
+				log.writeLog(CollaborillaService.applicationName,
+						"Virtual threads are not supported by this JVM, using platform threads");
+			}
+		}
+	}
+
+	/**
+	 * @return True if virtual threads are used.
+	 */
+	public boolean isVirtual() {
+		return virtualFactory != null;
+	}
+
+	/**
+	 * Creates a new (not yet started) thread for the given client session.
+	 * Platform threads are created as daemon threads; virtual threads are
+	 * always daemon threads.
+	 *
+	 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+	 */
+	public Thread newThread(Runnable r) {
+		if (virtualFactory != null) {
+			return virtualFactory.newThread(r);
+		}
+
+		Thread thread = new Thread(r);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Calls Thread.ofVirtual().factory() via reflection.
+	 *
+	 * @return A factory for virtual threads, or null if not supported.
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+}
@@ -6,12 +6,21 @@
 
 package se.kth.nada.kmr.collaborilla.service;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.net.ssl.SSLServerSocketFactory;
 
+import se.kth.nada.kmr.collaborilla.ldap.ContainerReferenceIndex;
+import se.kth.nada.kmr.collaborilla.ldap.EntryBloomFilter;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPConnectionPool;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPReplicaSet;
+import se.kth.nada.kmr.collaborilla.ldap.LocationIndex;
+import se.kth.nada.kmr.collaborilla.ldap.RevisionCache;
 import se.kth.nada.kmr.collaborilla.util.Configuration;
 import se.kth.nada.kmr.collaborilla.util.InfoMessage;
 
@@ -49,6 +58,11 @@ public class CollaborillaService {
 
 	private static int maxConnections = 0;
 
+	// Clients waiting for a free connection slot before they are rejected
+	private static int admissionQueue;
+
+	private static int admissionTimeout;
+
 	// Use SSL
 	private static boolean sslSocket;
 
@@ -63,8 +77,52 @@ public class CollaborillaService {
 
 	private static String ldapPassword;
 
+	// LDAP connection pool settings
+	private static int ldapPoolMin;
+
+	private static int ldapPoolMax;
+
+	private static int ldapPoolTimeout;
+
+	private static int ldapPoolIdleTimeout;
+
+	// Read replicas of the LDAP server
+	private static String[] ldapReplicas;
+
+	private static int ldapReplicaHealthCheck;
+
+	private static int ldapReplicaStickiness;
+
+	// Time to live of cached locations of parent URIs
+	private static int locationCacheTTL;
+
+	// Number of historical revisions kept in memory, and a directory to store them
+	private static int revisionCacheSize;
+
+	private static String revisionCacheDir;
+
+	private static int referenceIndexRefresh;
+
+	private static boolean entryFilterEnabled;
+
+	private static int entryFilterRefresh;
+
+	private static int entryFilterRebuild;
+
 	private static boolean verbose;
 
+	// Connection engine: "blocking" (one thread per client) or "nio"
+	private static String serverMode;
+
+	private static int nioSelectors;
+
+	private static int nioWorkers;
+
+	private static int nioWorkerQueue;
+
+	// Thread type of the blocking engine: "platform" or "virtual"
+	private static String executorMode;
+
 	private static InfoMessage log = InfoMessage.getInstance();
 
 	/**
@@ -93,15 +151,70 @@ public class CollaborillaService {
 			// are rejected
 			maxConnections = Integer.parseInt(conf.getProperty("server.maxconnections", "20"));
 
+			// Number of clients which may wait for a free slot if
+			// maxConnections is reached, and how long they wait in seconds
+			admissionQueue = Integer.parseInt(conf.getProperty("server.admission.queue", "50"));
+			admissionTimeout = Integer.parseInt(conf.getProperty("server.admission.timeout", "10")) * 1000;
+
 			// Time to wait during a shutdown before the clients are kicked out
 			shutdownTimeout = Integer.parseInt(conf.getProperty("server.shutdowntimeout", "10")) * 1000;
 
 			sslSocket = Boolean.valueOf(conf.getProperty("server.ssl", "false")).booleanValue();
 			verbose = Boolean.valueOf(conf.getProperty("server.verbose", "false")).booleanValue();
+
+			// Connection engine and its thread settings (NIO only)
+			serverMode = conf.getProperty("server.mode", "blocking");
+			nioSelectors = Integer.parseInt(conf.getProperty("server.nio.selectors", "2"));
+			nioWorkers = Integer.parseInt(conf.getProperty("server.nio.workers", "16"));
+			nioWorkerQueue = Integer.parseInt(conf.getProperty("server.nio.workerqueue", "1024"));
+			executorMode = conf.getProperty("server.executor", ClientThreadFactory.MODE_PLATFORM);
 			ldapServerDN = conf.getProperty("ldap.serverdn");
 			ldapHostname = conf.getProperty("ldap.hostname");
 			ldapLoginDN = conf.getProperty("ldap.logindn");
 			ldapPassword = conf.getProperty("ldap.password");
+
+			// Size of the LDAP connection pool, by default as many connections
+			// as clients
+			String defaultPoolMax = String.valueOf((maxConnections > 0) ? maxConnections : 20);
+			ldapPoolMin = Integer.parseInt(conf.getProperty("ldap.pool.min", "2"));
+			ldapPoolMax = Integer.parseInt(conf.getProperty("ldap.pool.max", defaultPoolMax));
+
+			// Time to wait for a free LDAP connection in seconds
+			ldapPoolTimeout = Integer.parseInt(conf.getProperty("ldap.pool.timeout", "10")) * 1000;
+
+			// Idle LDAP connections are closed after this time in seconds
+			ldapPoolIdleTimeout = Integer.parseInt(conf.getProperty("ldap.pool.idletimeout", "300")) * 1000;
+
+			// Comma separated list of read replicas, reads go to ldap.hostname if empty
+			ldapReplicas = parseHostList(conf.getProperty("ldap.replicas", ""));
+
+			// Interval of the replica health checks in seconds
+			ldapReplicaHealthCheck = Integer.parseInt(conf.getProperty("ldap.replicas.healthcheck", "10")) * 1000;
+
+			// A client reads from the primary server for this time in seconds after a write
+			ldapReplicaStickiness = Integer.parseInt(conf.getProperty("ldap.replicas.stickiness", "5")) * 1000;
+
+			// Cached locations of parent URIs expire after this time in seconds
+			locationCacheTTL = Integer.parseInt(conf.getProperty("ldap.locationcache.ttl", "60")) * 1000;
+
+			// Historical revisions are immutable and cached without expiration
+			revisionCacheSize = Integer.parseInt(conf.getProperty("ldap.revisioncache.size", "5000"));
+			revisionCacheDir = conf.getProperty("ldap.revisioncache.dir", "").trim();
+
+			// The reverse index of container references is rebuilt after this time in seconds
+			referenceIndexRefresh = Integer.parseInt(conf.getProperty("ldap.referenceindex.refresh", "3600")) * 1000;
+
+			// Lookups of URIs which are not in the Bloom filter of existing entries are answered without LDAP
+			entryFilterEnabled = Boolean.valueOf(conf.getProperty("ldap.entryfilter.enabled", "false")).booleanValue();
+			EntryBloomFilter.setSize(Long.parseLong(conf.getProperty("ldap.entryfilter.entries", "1000000")), Double
+					.parseDouble(conf.getProperty("ldap.entryfilter.fpp", "0.01")), Long.parseLong(conf.getProperty(
+					"ldap.entryfilter.maxsize", "16")) * 1024 * 1024);
+
+			// Entries created by other processes are added after this time in seconds
+			entryFilterRefresh = Integer.parseInt(conf.getProperty("ldap.entryfilter.refresh", "10")) * 1000;
+
+			// The filter is rebuilt (dropping removed entries) after this time in seconds
+			entryFilterRebuild = Integer.parseInt(conf.getProperty("ldap.entryfilter.rebuild", "86400")) * 1000;
 		} catch (Exception e) {
 			log.writeLog(applicationName, e.getMessage());
 			result = false;
@@ -110,6 +223,25 @@ public class CollaborillaService {
 		return result;
 	}
 
+	/**
+	 * Splits a comma separated list of hostnames.
+	 * 
+	 * @param hosts
+	 *            Comma separated hostnames
+	 * @return Array of hostnames, empty if the list is empty
+	 */
+	private static String[] parseHostList(String hosts) {
+		List<String> result = new ArrayList<String>();
+		String[] parts = hosts.split(",");
+		for (int i = 0; i < parts.length; i++) {
+			String host = parts[i].trim();
+			if (host.length() > 0) {
+				result.add(host);
+			}
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
 	/**
 	 * Main function. Creates the server socket and creates a thread for each
 	 * client.
@@ -139,6 +271,44 @@ public class CollaborillaService {
 			// Add a shutdown hook
 			Runtime.getRuntime().addShutdownHook(new ShutdownDisposer(shutdownTimeout));
 
+			LocationIndex.setTimeToLive(locationCacheTTL);
+			RevisionCache.setMaxEntries(revisionCacheSize);
+			if (revisionCacheDir.length() > 0) {
+				RevisionCache.setDirectory(new File(revisionCacheDir));
+			}
+
+			// Connections to the LDAP server, shared by all clients
+			LDAPConnectionPool ldapPool = new LDAPConnectionPool(ldapHostname, ldapLoginDN, ldapPassword, ldapPoolMin,
+					ldapPoolMax, ldapPoolTimeout, ldapPoolIdleTimeout);
+
+			// Reads are spread over the replicas, if there are any
+			if (ldapReplicas.length > 0) {
+				ldapPool.setReplicaSet(new LDAPReplicaSet(ldapReplicas, ldapLoginDN, ldapPassword, ldapPoolMin,
+						ldapPoolMax, ldapPoolTimeout, ldapPoolIdleTimeout, ldapReplicaHealthCheck,
+						ldapReplicaStickiness));
+			}
+
+			// Builds the index of container references in the background
+			ContainerReferenceIndex.getInstance(ldapServerDN).start(ldapPool, referenceIndexRefresh);
+			if (entryFilterEnabled) {
+				EntryBloomFilter.getInstance(ldapServerDN).start(ldapPool, entryFilterRefresh, entryFilterRebuild);
+			}
+
+			// Decides which clients are served, queued or rejected
+			AdmissionController admission = new AdmissionController(maxConnections, admissionQueue, admissionTimeout);
+
+			if ("nio".equalsIgnoreCase(serverMode)) {
+				if (sslSocket) {
+					log.writeLog(applicationName, "SSL is not supported by the NIO engine, using blocking mode");
+				} else {
+					log.writeLog(applicationName, "Started. Listening on port " + listenPort + " (NIO)");
+					NioConnectionEngine engine = new NioConnectionEngine(listenPort, clientTimeOut, nioSelectors,
+							nioWorkers, nioWorkerQueue, ldapServerDN, ldapPool, admission, verbose);
+					engine.run();
+					return;
+				}
+			}
+
 			if (sslSocket) {
 				// Create an SSL server socket
 				// UNTESTED
@@ -149,10 +319,17 @@ public class CollaborillaService {
 				listener = new ServerSocket(listenPort);
 			}
 
+			ClientThreadFactory threadFactory = new ClientThreadFactory(executorMode);
+
 			log.writeLog(applicationName, "Started. Listening on port " + listenPort);
 
+			if (threadFactory.isVirtual()) {
+				log.writeLog(applicationName, "Running client sessions on virtual threads");
+			}
+
 			if (maxConnections > 0) {
-				log.writeLog(applicationName, "Allowing a maximum of " + maxConnections + " concurrent connections");
+				log.writeLog(applicationName, "Allowing a maximum of " + maxConnections
+						+ " concurrent connections, queueing up to " + admissionQueue);
 			}
 
 			// Wait for incoming connections
@@ -176,27 +353,12 @@ public class CollaborillaService {
 				}
 
 				// Create a communication object (thread)
-				ClientConnector clientConnection = new ClientConnector(server, ldapServerDN, ldapHostname, ldapLoginDN,
-						ldapPassword, verbose);
+				ClientConnector clientConnection = new ClientConnector(server, ldapServerDN, ldapPool, admission,
+						verbose);
 
 				// Create and start a new thread
-				Thread clientThread = new Thread(clientConnection);
-				clientThread.setDaemon(true);
-
+				Thread clientThread = threadFactory.newThread(clientConnection);
 				clientThread.start();
-
-				if (maxConnections > 0) {
-					/*
-					 * if we already have reached max connections, we wait until
-					 * a client thread finishes
-					 */
-					while (ClientConnector.getClientCount() >= maxConnections) {
-						try {
-							Thread.sleep(1000);
-						} catch (InterruptedException ie) {
-						}
-					}
-				}
 			}
 		} catch (IOException ioe) {
 			log.writeLog(applicationName, ioe.getMessage() + ". Exiting.");
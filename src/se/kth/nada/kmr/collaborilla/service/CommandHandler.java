@@ -9,16 +9,21 @@ package se.kth.nada.kmr.collaborilla.service;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.StringTokenizer;
+import java.util.Set;
 
 import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSet;
+import se.kth.nada.kmr.collaborilla.client.CollaborillaDataSetCodec;
 import se.kth.nada.kmr.collaborilla.ldap.CollaborillaObject;
+import se.kth.nada.kmr.collaborilla.ldap.ContainerReferenceIndex;
 import se.kth.nada.kmr.collaborilla.ldap.LDAPAccess;
+import se.kth.nada.kmr.collaborilla.ldap.LDAPConnectionPool;
 import se.kth.nada.kmr.collaborilla.ldap.LDAPStringHelper;
+import se.kth.nada.kmr.collaborilla.ldap.RevisionCache;
 import se.kth.nada.kmr.collaborilla.util.Configuration;
 import se.kth.nada.kmr.collaborilla.util.InfoMessage;
 
 import com.novell.ldap.LDAPException;
+import com.novell.ldap.util.Base64;
 
 /**
  * Takes client requests and parses them. Requests and transfers data from and
@@ -33,10 +38,21 @@ public class CommandHandler {
 
 	private LDAPAccess ldapConnection;
 
+	private LDAPConnectionPool ldapPool;
+
 	private String serverDN;
 
+	/**
+	 * Reads of this session go to the primary LDAP server until this time, so
+	 * that a client sees its own writes even if replicas are used.
+	 */
+	private long primaryReadsUntil = 0;
+
 	private InfoMessage log = InfoMessage.getInstance();
 
+	// reused for every request of this session
+	private CommandLine commandLine = new CommandLine();
+
 	private String availableCommands = "HLP                                \n"
 			+ "GET <uri> <rev nr> \n"
 			+ "URI <uri>                          \n" + "URI NEW <uri>                      \n\n"
@@ -55,7 +71,9 @@ public class CommandHandler {
 			+ "DEL TYPE                           \n\n"
 			+ "GET CONTAINERREVISION              \n" + "SET CONTAINERREVISION <rev nr>     \n\n"
 			+ "GET LDIF                           \n\n"	+ "GET TIMESTAMPCREATED             \n"
-			+ "GET TIMESTAMPMODIFIED              \n\n" + "GET DATASET";
+			+ "GET TIMESTAMPMODIFIED              \n\n" + "GET DATASET                        \n"
+			+ "GET DATASET BIN                    \n\n" + "GET REFERRERS <uri>                \n"
+			+ "GET REFERRERS <uri> ALL";
 
 	/**
 	 * @param ldapConn LDAPAccess object, contains the connection to specific LDAP server.
@@ -66,6 +84,18 @@ public class CommandHandler {
 		this.serverDN = serverDN;
 	}
 
+	/**
+	 * Creates a handler which borrows an LDAP connection from the pool for
+	 * each command and gives it back afterwards.
+	 * 
+	 * @param ldapPool Pool of connections to a specific LDAP server.
+	 * @param serverDN The context on the LDAP server (server DN).
+	 */
+	public CommandHandler(LDAPConnectionPool ldapPool, String serverDN) {
+		this.ldapPool = ldapPool;
+		this.serverDN = serverDN;
+	}
+
 	/**
 	 * Takes the received string from the client, parses it and delegates the
 	 * command and its parameters to the responsible methods.
@@ -75,20 +105,49 @@ public class CommandHandler {
 	 * @return Response to the client
 	 */
 	public ResponseMessage processRequest(String request) {
-		/* split the string */
-		StringTokenizer requestTokens = new StringTokenizer(request, " ");
-		int paramCount = requestTokens.countTokens();
+		if (ldapPool == null) {
+			return this.dispatchRequest(request);
+		}
+
+		try {
+			ldapConnection = ldapPool.borrow();
+		} catch (LDAPException e) {
+			log.write(e.toString());
+			return new ResponseMessage(Status.SC_SERVICE_UNAVAILABLE);
+		}
 
-		String[] command = new String[paramCount];
-		int i = 0;
+		ldapConnection.setPrimaryReadsUntil(primaryReadsUntil);
+		if (collabObject != null) {
+			collabObject.ldapAccess = ldapConnection;
+		}
 
-		while (requestTokens.hasMoreTokens()) {
-			command[i++] = requestTokens.nextToken();
+		try {
+			return this.dispatchRequest(request);
+		} finally {
+			if (collabObject != null) {
+				collabObject.ldapAccess = null;
+			}
+			primaryReadsUntil = ldapConnection.getPrimaryReadsUntil();
+			ldapPool.release(ldapConnection);
+			ldapConnection = null;
 		}
+	}
+
+	/**
+	 * Parses a request and calls the responsible method.
+	 * 
+	 * @param request
+	 *            Received request from the client
+	 * @return Response to the client
+	 */
+	private ResponseMessage dispatchRequest(String request) {
+		CommandLine line = this.commandLine;
+		line.parse(request);
+		int paramCount = line.count();
 
 		/* if we got just one word there is only one legal command */
 		if (paramCount == 1) {
-			if (command[0].equalsIgnoreCase(ServiceCommands.CMD_HELP)) {
+			if (line.tokenEquals(0, ServiceCommands.CMD_HELP)) {
 				return this.handleHelp();
 			}
 		}
@@ -99,21 +158,24 @@ public class CommandHandler {
 		}
 
 		/* commands which start with URI */
-		if (command[0].equalsIgnoreCase(ServiceCommands.CMD_URI)) {
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.CMD_URI_NEW)) {
-				
-				return this.handleNewUri(encodeURI(command[2]));
+		if (line.tokenEquals(0, ServiceCommands.CMD_URI)) {
+			if ((paramCount >= 3) && line.tokenEquals(1, ServiceCommands.CMD_URI_NEW)) {
+				return this.handleNewUri(encodeURI(line.token(2)));
 			}
 
-			if (paramCount >= 2) {
-				return this.handleUri(encodeURI(command[1]));
-			}
+			return this.handleUri(encodeURI(line.token(1)));
 		}
-		
-		if ((collabObject == null) && command[0].equalsIgnoreCase(ServiceCommands.CMD_GET)) {
-			if (paramCount == 3) {
-				return handelGetUriRevision(encodeURI(command[1]), command[2]);
-			}
+
+		int code = CommandTable.lookup(line);
+
+		/* reverse lookup of container references, independent of the current URI */
+		if (code == CommandTable.GET_REFERRERS) {
+			boolean includeOptional = line.tokenEquals(3, ServiceCommands.PARAM_ALL);
+			return this.handleGetReferrers(encodeURI(line.token(2)), includeOptional);
+		}
+
+		if ((collabObject == null) && (paramCount == 3) && line.tokenEquals(0, ServiceCommands.CMD_GET)) {
+			return handelGetUriRevision(encodeURI(line.token(1)), line.token(2));
 		}
 
 		/*
@@ -124,158 +186,86 @@ public class CommandHandler {
 			return new ResponseMessage(Status.SC_BAD_REQUEST);
 		}
 
+		switch (code) {
 		/* GET commands */
-		if (command[0].equalsIgnoreCase(ServiceCommands.CMD_GET)) {
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_REQUIRED_CONTAINER)) {
-				return this.handleGetRequiredContainers();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_OPTIONAL_CONTAINER)) {
-				return this.handleGetOptionalContainers();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_LOCATION)) {
-				return this.handleGetLocation();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_ALIGNEDLOCATION)) {
-				return this.handleGetAlignedLocation();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_LDIF)) {
-				return this.handleGetLdif();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_DESCRIPTION)) {
-				return this.handleGetDescription();
-			}
-			
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_TYPE)) {
-				return this.handleGetType();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_METADATA)) {
-				return this.handleGetMetaData();
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_REVISION_INFO)) {
-				return this.handleGetRevisionInfo(command[2]);
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_REVISION)) {
-				return this.handleGetRevision();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_CONTAINER_REVISION)) {
-				return this.handleGetContainerRevision();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_REVISION_COUNT)) {
-				return this.handleGetRevisionCount();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_INTERNAL_TIMESTAMP_CREATED)) {
-				return this.handleGetTimestampCreated();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_INTERNAL_TIMESTAMP_MODIFIED)) {
-				return this.handleGetTimestampModified();
-			}
-			
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_DATASET)) {
-				return this.handleGetDataSet();
-			}
-		}
-
-		/* SET commands */
-		if (command[0].equalsIgnoreCase(ServiceCommands.CMD_SET)) {
-			/* we need more than just word, so we concat again ...not the most
-			 * intelligent solution though...
-			 */
-			String setParam = new String();
-			for (int j = 2; j < command.length; j++) {
-				setParam += command[j];
-				if (j < (command.length - 1)) {
-					setParam += " ";
-				}
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_REVISION)) {
-				return this.handleSetRevision(setParam);
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_DESCRIPTION)) {
-				return this.handleSetDescription(setParam);
-			}
-			
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_TYPE)) {
-				return this.handleSetType(setParam);
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_METADATA)) {
-				return this.handleSetMetaData(setParam);
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_CONTAINER_REVISION)) {
-				return this.handleSetContainerRevision(setParam);
-			}
-		}
+		case CommandTable.GET_REQUIRED_CONTAINER:
+			return this.handleGetRequiredContainers();
+		case CommandTable.GET_OPTIONAL_CONTAINER:
+			return this.handleGetOptionalContainers();
+		case CommandTable.GET_LOCATION:
+			return this.handleGetLocation();
+		case CommandTable.GET_ALIGNED_LOCATION:
+			return this.handleGetAlignedLocation();
+		case CommandTable.GET_LDIF:
+			return this.handleGetLdif();
+		case CommandTable.GET_DESCRIPTION:
+			return this.handleGetDescription();
+		case CommandTable.GET_TYPE:
+			return this.handleGetType();
+		case CommandTable.GET_METADATA:
+			return this.handleGetMetaData();
+		case CommandTable.GET_REVISION_INFO:
+			return this.handleGetRevisionInfo(line.token(2));
+		case CommandTable.GET_REVISION:
+			return this.handleGetRevision();
+		case CommandTable.GET_CONTAINER_REVISION:
+			return this.handleGetContainerRevision();
+		case CommandTable.GET_REVISION_COUNT:
+			return this.handleGetRevisionCount();
+		case CommandTable.GET_TIMESTAMP_CREATED:
+			return this.handleGetTimestampCreated();
+		case CommandTable.GET_TIMESTAMP_MODIFIED:
+			return this.handleGetTimestampModified();
+		case CommandTable.GET_DATASET:
+			if (line.tokenEquals(2, ServiceCommands.PARAM_BINARY)) {
+				return this.handleGetDataSetBinary();
+			}
+			return this.handleGetDataSet();
+
+		/* SET commands, the parameter is the rest of the line */
+		case CommandTable.SET_REVISION:
+			return this.handleSetRevision(line.rest(2));
+		case CommandTable.SET_DESCRIPTION:
+			return this.handleSetDescription(line.rest(2));
+		case CommandTable.SET_TYPE:
+			return this.handleSetType(line.rest(2));
+		case CommandTable.SET_METADATA:
+			return this.handleSetMetaData(line.rest(2));
+		case CommandTable.SET_CONTAINER_REVISION:
+			return this.handleSetContainerRevision(line.rest(2));
 
 		/* ADD commands */
-		if (command[0].equalsIgnoreCase(ServiceCommands.CMD_ADD)) {
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_REVISION)) {
-				return this.handleAddRevision();
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_REQUIRED_CONTAINER)) {
-				return this.handleAddRequiredContainer(command[2]);
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_OPTIONAL_CONTAINER)) {
-				return this.handleAddOptionalContainer(command[2]);
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_LOCATION)) {
-				return this.handleAddLocation(command[2]);
-			}
-		}
+		case CommandTable.ADD_REVISION:
+			return this.handleAddRevision();
+		case CommandTable.ADD_REQUIRED_CONTAINER:
+			return this.handleAddRequiredContainer(line.token(2));
+		case CommandTable.ADD_OPTIONAL_CONTAINER:
+			return this.handleAddOptionalContainer(line.token(2));
+		case CommandTable.ADD_LOCATION:
+			return this.handleAddLocation(line.token(2));
 
 		/* DEL commands */
-		if (command[0].equalsIgnoreCase(ServiceCommands.CMD_DEL)) {
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_METADATA)) {
-				return this.handleDelMetaData();
-			}
-
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_DESCRIPTION)) {
-				return this.handleDelDescription();
-			}
-			
-			if (command[1].equalsIgnoreCase(ServiceCommands.ATTR_TYPE)) {
-				return this.handleDelType();
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_REQUIRED_CONTAINER)) {
-				return this.handleDelRequiredContainer(command[2]);
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_OPTIONAL_CONTAINER)) {
-				return this.handleDelOptionalContainer(command[2]);
-			}
-
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_LOCATION)) {
-				return this.handleDelLocation(command[2]);
-			}
-		}
+		case CommandTable.DEL_METADATA:
+			return this.handleDelMetaData();
+		case CommandTable.DEL_DESCRIPTION:
+			return this.handleDelDescription();
+		case CommandTable.DEL_TYPE:
+			return this.handleDelType();
+		case CommandTable.DEL_REQUIRED_CONTAINER:
+			return this.handleDelRequiredContainer(line.token(2));
+		case CommandTable.DEL_OPTIONAL_CONTAINER:
+			return this.handleDelOptionalContainer(line.token(2));
+		case CommandTable.DEL_LOCATION:
+			return this.handleDelLocation(line.token(2));
 
 		/* RESTORE REVISION */
-		if (command[0].equalsIgnoreCase(ServiceCommands.CMD_RESTORE)) {
-			if ((paramCount >= 3) && command[1].equalsIgnoreCase(ServiceCommands.ATTR_REVISION)) {
-				return this.handleRestoreRevision(command[2]);
-			}
-		}
+		case CommandTable.RESTORE_REVISION:
+			return this.handleRestoreRevision(line.token(2));
 
 		/* if nothing matches we got a bad request */
-		return new ResponseMessage(Status.SC_BAD_REQUEST);
+		default:
+			return new ResponseMessage(Status.SC_BAD_REQUEST);
+		}
 	}
 	
 	public boolean hasCollaborillaObject() {
@@ -309,13 +299,21 @@ public class CommandHandler {
 		
 		try {
 			int rev = Integer.parseInt(revision);
+
+			// historical revisions never change, no need to ask the directory
+			RevisionCache revisionCache = RevisionCache.getInstance(serverDN);
+			RevisionCache.Entry cached = revisionCache.get(uri, rev);
+			if (cached != null) {
+				return new ResponseMessage(Status.SC_OK, cached.getXML());
+			}
+
 			collabObject = new CollaborillaObject(ldapConnection, serverDN, uri, false);
 			if (rev > 0) {
 				collabObject.setRevision(rev);
 			}
 			CollaborillaDataSet dataSet = collabObject.getDataSet();
 			collabObject = null; // we don't want this object to persist
-			result = dataSet.toXML();
+			result = revisionCache.put(uri, rev, dataSet).getXML();
 		} catch (NumberFormatException nfe) {
 			return new ResponseMessage(Status.SC_BAD_REQUEST);
 		} catch (LDAPException e) {
@@ -330,6 +328,22 @@ public class CommandHandler {
 		return new ResponseMessage(Status.SC_OK, result);
 	}
 
+	/**
+	 * Returns the URIs of the entries which reference a container, one per
+	 * line, from the ContainerReferenceIndex. No line is returned if there are
+	 * no referrers.
+	 */
+	private ResponseMessage handleGetReferrers(String uri, boolean includeOptional) {
+		Set<String> referrers = ContainerReferenceIndex.getInstance(serverDN).getReferrers(uri, includeOptional);
+
+		if (referrers == null) {
+			// the initial scan has not finished yet
+			return new ResponseMessage(Status.SC_SERVICE_UNAVAILABLE);
+		}
+
+		return new ResponseMessage(Status.SC_OK, referrers.toArray(new String[referrers.size()]));
+	}
+
 	private ResponseMessage handleUri(String uri) {
 		try {
 			collabObject = new CollaborillaObject(ldapConnection, serverDN, uri, false);
@@ -529,6 +543,24 @@ public class CommandHandler {
 		return new ResponseMessage(Status.SC_OK, result);
 	}
 
+	/**
+	 * Returns the dataset in the binary encoding of CollaborillaDataSetCodec,
+	 * Base64 encoded to fit into one response line.
+	 */
+	private ResponseMessage handleGetDataSetBinary() {
+		String result;
+		
+		try {
+			CollaborillaDataSet dataSet = collabObject.getDataSet();
+			result = Base64.encode(CollaborillaDataSetCodec.encode(dataSet));
+		} catch (LDAPException e) {
+			log.write(e.toString());
+			return new ResponseMessage(Status.SC_INTERNAL_ERROR);
+		}
+		
+		return new ResponseMessage(Status.SC_OK, result);
+	}
+
 	private ResponseMessage handleGetMetaData() {
 		String result;
 
@@ -0,0 +1,139 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.service;
+
+/**
+ * Splits a request line into whitespace separated tokens without copying it.
+ * Only the positions of the first tokens are remembered; tokens are extracted
+ * as strings only if a command needs them as parameter. An instance is reused
+ * for all requests of a session.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+final class CommandLine {
+
+	/**
+	 * Number of tokens whose positions are remembered. No command has more
+	 * tokens, except SET whose parameter is the rest of the line.
+	 */
+	static final int MAX_TOKENS = 4;
+
+	private String line;
+
+	private int count;
+
+	private int[] start = new int[MAX_TOKENS];
+
+	private int[] end = new int[MAX_TOKENS];
+
+	// end of the last token of the line
+	private int lastEnd;
+
+	/**
+	 * Tokenizes a new line, tokens are separated by one or more whitespace
+	 * characters, like with StringTokenizer.
+	 */
+	void parse(String line) {
+		this.line = line;
+		this.count = 0;
+		this.lastEnd = 0;
+
+		int length = line.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && isDelimiter(line.charAt(i))) {
+				i++;
+			}
+			if (i == length) {
+				break;
+			}
+			int tokenStart = i;
+			while (i < length && !isDelimiter(line.charAt(i))) {
+				i++;
+			}
+			if (count < MAX_TOKENS) {
+				start[count] = tokenStart;
+				end[count] = i;
+			}
+			count++;
+			lastEnd = i;
+		}
+	}
+
+	/**
+	 * @return True for the default delimiters of StringTokenizer.
+	 */
+	private static boolean isDelimiter(char c) {
+		switch (c) {
+		case ' ':
+		case '\t':
+		case '\n':
+		case '\r':
+		case '\f':
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return Number of tokens of the line.
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 * Compares a token with a string, ignoring case.
+	 */
+	boolean tokenEquals(int index, String s) {
+		if (index >= count || index >= MAX_TOKENS) {
+			return false;
+		}
+		int length = end[index] - start[index];
+		return length == s.length() && line.regionMatches(true, start[index], s, 0, length);
+	}
+
+	/**
+	 * Case-insensitive hash of a token, consistent with hash(String).
+	 */
+	int tokenHash(int index) {
+		int h = 0;
+		for (int i = start[index]; i < end[index]; i++) {
+			h = 31 * h + Character.toUpperCase(line.charAt(i));
+		}
+		return h;
+	}
+
+	/**
+	 * Case-insensitive hash of a string, consistent with tokenHash(int).
+	 */
+	static int hash(String s) {
+		int h = 0;
+		for (int i = 0; i < s.length(); i++) {
+			h = 31 * h + Character.toUpperCase(s.charAt(i));
+		}
+		return h;
+	}
+
+	/**
+	 * @return The token as string.
+	 */
+	String token(int index) {
+		return line.substring(start[index], end[index]);
+	}
+
+	/**
+	 * @return The line from the given token to the end, with the original
+	 *         spacing between the tokens.
+	 */
+	String rest(int index) {
+		return line.substring(start[index], lastEnd);
+	}
+
+}
@@ -0,0 +1,184 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.service;
+
+/**
+ * Maps the first two tokens of a request (verb and attribute) to a command
+ * code. The table is built once; a lookup hashes the tokens in place and
+ * compares them ignoring case, without creating any objects.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+final class CommandTable {
+
+	static final int UNKNOWN = 0;
+
+	static final int GET_REQUIRED_CONTAINER = 1;
+
+	static final int GET_OPTIONAL_CONTAINER = 2;
+
+	static final int GET_LOCATION = 3;
+
+	static final int GET_ALIGNED_LOCATION = 4;
+
+	static final int GET_LDIF = 5;
+
+	static final int GET_DESCRIPTION = 6;
+
+	static final int GET_TYPE = 7;
+
+	static final int GET_METADATA = 8;
+
+	static final int GET_REVISION_INFO = 9;
+
+	static final int GET_REVISION = 10;
+
+	static final int GET_CONTAINER_REVISION = 11;
+
+	static final int GET_REVISION_COUNT = 12;
+
+	static final int GET_TIMESTAMP_CREATED = 13;
+
+	static final int GET_TIMESTAMP_MODIFIED = 14;
+
+	static final int GET_DATASET = 15;
+
+	static final int GET_REFERRERS = 16;
+
+	static final int SET_REVISION = 20;
+
+	static final int SET_DESCRIPTION = 21;
+
+	static final int SET_TYPE = 22;
+
+	static final int SET_METADATA = 23;
+
+	static final int SET_CONTAINER_REVISION = 24;
+
+	static final int ADD_REVISION = 30;
+
+	static final int ADD_REQUIRED_CONTAINER = 31;
+
+	static final int ADD_OPTIONAL_CONTAINER = 32;
+
+	static final int ADD_LOCATION = 33;
+
+	static final int DEL_METADATA = 40;
+
+	static final int DEL_DESCRIPTION = 41;
+
+	static final int DEL_TYPE = 42;
+
+	static final int DEL_REQUIRED_CONTAINER = 43;
+
+	static final int DEL_OPTIONAL_CONTAINER = 44;
+
+	static final int DEL_LOCATION = 45;
+
+	static final int RESTORE_REVISION = 50;
+
+	private static final class Entry {
+
+		final String verb;
+
+		final String attribute;
+
+		final int code;
+
+		final int minTokens;
+
+		Entry(String verb, String attribute, int code, int minTokens) {
+			this.verb = verb;
+			this.attribute = attribute;
+			this.code = code;
+			this.minTokens = minTokens;
+		}
+
+	}
+
+	// open addressing, the size is a power of two and at least twice the
+	// number of entries
+	private static final Entry[] table = new Entry[128];
+
+	static {
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_REQUIRED_CONTAINER, GET_REQUIRED_CONTAINER, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_OPTIONAL_CONTAINER, GET_OPTIONAL_CONTAINER, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_LOCATION, GET_LOCATION, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_ALIGNEDLOCATION, GET_ALIGNED_LOCATION, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_LDIF, GET_LDIF, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_DESCRIPTION, GET_DESCRIPTION, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_TYPE, GET_TYPE, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_METADATA, GET_METADATA, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_REVISION_INFO, GET_REVISION_INFO, 3);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_REVISION, GET_REVISION, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_CONTAINER_REVISION, GET_CONTAINER_REVISION, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_REVISION_COUNT, GET_REVISION_COUNT, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_INTERNAL_TIMESTAMP_CREATED, GET_TIMESTAMP_CREATED, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_INTERNAL_TIMESTAMP_MODIFIED, GET_TIMESTAMP_MODIFIED, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_DATASET, GET_DATASET, 2);
+		add(ServiceCommands.CMD_GET, ServiceCommands.ATTR_REFERRERS, GET_REFERRERS, 3);
+
+		add(ServiceCommands.CMD_SET, ServiceCommands.ATTR_REVISION, SET_REVISION, 3);
+		add(ServiceCommands.CMD_SET, ServiceCommands.ATTR_DESCRIPTION, SET_DESCRIPTION, 3);
+		add(ServiceCommands.CMD_SET, ServiceCommands.ATTR_TYPE, SET_TYPE, 3);
+		add(ServiceCommands.CMD_SET, ServiceCommands.ATTR_METADATA, SET_METADATA, 3);
+		add(ServiceCommands.CMD_SET, ServiceCommands.ATTR_CONTAINER_REVISION, SET_CONTAINER_REVISION, 3);
+
+		add(ServiceCommands.CMD_ADD, ServiceCommands.ATTR_REVISION, ADD_REVISION, 2);
+		add(ServiceCommands.CMD_ADD, ServiceCommands.ATTR_REQUIRED_CONTAINER, ADD_REQUIRED_CONTAINER, 3);
+		add(ServiceCommands.CMD_ADD, ServiceCommands.ATTR_OPTIONAL_CONTAINER, ADD_OPTIONAL_CONTAINER, 3);
+		add(ServiceCommands.CMD_ADD, ServiceCommands.ATTR_LOCATION, ADD_LOCATION, 3);
+
+		add(ServiceCommands.CMD_DEL, ServiceCommands.ATTR_METADATA, DEL_METADATA, 2);
+		add(ServiceCommands.CMD_DEL, ServiceCommands.ATTR_DESCRIPTION, DEL_DESCRIPTION, 2);
+		add(ServiceCommands.CMD_DEL, ServiceCommands.ATTR_TYPE, DEL_TYPE, 2);
+		add(ServiceCommands.CMD_DEL, ServiceCommands.ATTR_REQUIRED_CONTAINER, DEL_REQUIRED_CONTAINER, 3);
+		add(ServiceCommands.CMD_DEL, ServiceCommands.ATTR_OPTIONAL_CONTAINER, DEL_OPTIONAL_CONTAINER, 3);
+		add(ServiceCommands.CMD_DEL, ServiceCommands.ATTR_LOCATION, DEL_LOCATION, 3);
+
+		add(ServiceCommands.CMD_RESTORE, ServiceCommands.ATTR_REVISION, RESTORE_REVISION, 3);
+	}
+
+	private CommandTable() {
+	}
+
+	private static void add(String verb, String attribute, int code, int minTokens) {
+		int i = slot(CommandLine.hash(verb), CommandLine.hash(attribute));
+		while (table[i] != null) {
+			i = (i + 1) & (table.length - 1);
+		}
+		table[i] = new Entry(verb, attribute, code, minTokens);
+	}
+
+	private static int slot(int verbHash, int attributeHash) {
+		int h = verbHash * 31 + attributeHash;
+		h ^= (h >>> 16);
+		return h & (table.length - 1);
+	}
+
+	/**
+	 * Looks up the command of a parsed request line.
+	 *
+	 * @param line
+	 *            Line with at least two tokens
+	 * @return Command code, UNKNOWN if the verb and attribute are unknown or
+	 *         the line has too few tokens for the command.
+	 */
+	static int lookup(CommandLine line) {
+		int i = slot(line.tokenHash(0), line.tokenHash(1));
+		Entry entry;
+		while ((entry = table[i]) != null) {
+			if (line.tokenEquals(0, entry.verb) && line.tokenEquals(1, entry.attribute)) {
+				return (line.count() >= entry.minTokens) ? entry.code : UNKNOWN;
+			}
+			i = (i + 1) & (table.length - 1);
+		}
+		return UNKNOWN;
+	}
+
+}
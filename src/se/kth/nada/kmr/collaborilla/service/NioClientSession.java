@@ -0,0 +1,480 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import se.kth.nada.kmr.collaborilla.ldap.LDAPConnectionPool;
+import se.kth.nada.kmr.collaborilla.util.Configuration;
+import se.kth.nada.kmr.collaborilla.util.InfoMessage;
+
+/**
+ * State of one client connection handled by the NioConnectionEngine. Incoming
+ * bytes are split into request lines by the event loop; the lines are
+ * processed in order by a worker thread, at most one worker per session at a
+ * time. Responses are queued and written back by the event loop.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+class NioClientSession {
+
+	private static InfoMessage log = InfoMessage.getInstance();
+
+	// maximum length of one request line in bytes
+	private static final int MAX_LINE_LENGTH = 4 * 1024 * 1024;
+
+	// stop reading from a client if this many requests are waiting
+	private static final int MAX_PENDING_REQUESTS = 64;
+
+	private SocketChannel channel;
+
+	private SelectionKey key;
+
+	private NioConnectionEngine.EventLoop eventLoop;
+
+	private Executor workers;
+
+	private CommandHandler protocol;
+
+	private AdmissionController admission;
+
+	private boolean verbose;
+
+	private String clientIP;
+
+	private int clientTimeOut;
+
+	private volatile long lastActivity = System.currentTimeMillis();
+
+	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+	private ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+
+	// the following fields are guarded by "this"
+
+	private LinkedList<String> pendingRequests = new LinkedList<String>();
+
+	private LinkedList<ByteBuffer> pendingOutput = new LinkedList<ByteBuffer>();
+
+	private boolean processing = false;
+
+	private boolean closeAfterWrite = false;
+
+	private boolean closed = false;
+
+	/**
+	 * Runs all pending requests of this session in a worker thread.
+	 */
+	private Runnable requestProcessor = new Runnable() {
+		public void run() {
+			processRequests();
+		}
+	};
+
+	/**
+	 * Initializes the session.
+	 */
+	NioClientSession(SocketChannel channel, NioConnectionEngine.EventLoop eventLoop, Executor workers,
+			int clientTimeOut, String serverDN, LDAPConnectionPool ldapPool, AdmissionController admission,
+			boolean verbose) {
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.workers = workers;
+		this.clientTimeOut = clientTimeOut;
+		this.admission = admission;
+		this.verbose = verbose;
+
+		clientIP = channel.socket().getInetAddress().getHostAddress();
+
+		int clients = ClientConnector.incClientCount();
+		if (verbose) {
+			log.writeLog(clientIP, "Client connected");
+			log.writeLog(CollaborillaService.applicationName, "Active clients: " + clients);
+		}
+
+		this.protocol = new CommandHandler(ldapPool, serverDN);
+	}
+
+	/**
+	 * @return IP address of the client.
+	 */
+	String getClientIP() {
+		return clientIP;
+	}
+
+	/**
+	 * Registers the channel with the selector of the event loop. Must be
+	 * called from the event loop thread.
+	 *
+	 * @param selector
+	 *            Selector of the event loop.
+	 * @throws IOException
+	 */
+	void register(Selector selector) throws IOException {
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Recalculates the interest set depending on the current state. Must be
+	 * called from the event loop thread.
+	 */
+	void updateInterest() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+
+		int ops = 0;
+		boolean closeNow = false;
+
+		synchronized (this) {
+			if (!pendingOutput.isEmpty()) {
+				ops |= SelectionKey.OP_WRITE;
+			} else if (closeAfterWrite) {
+				closeNow = true;
+			}
+			if (!closeAfterWrite && pendingRequests.size() < MAX_PENDING_REQUESTS) {
+				ops |= SelectionKey.OP_READ;
+			}
+		}
+
+		if (closeNow) {
+			close();
+		} else {
+			key.interestOps(ops);
+		}
+	}
+
+	/**
+	 * Reads available data from the channel and queues all complete request
+	 * lines. Must be called from the event loop thread.
+	 *
+	 * @throws IOException
+	 */
+	void read() throws IOException {
+		readBuffer.clear();
+		int count = channel.read(readBuffer);
+
+		if (count < 0) {
+			// client closed the connection
+			close();
+			return;
+		}
+
+		lastActivity = System.currentTimeMillis();
+		readBuffer.flip();
+
+		LinkedList<String> lines = null;
+
+		while (readBuffer.hasRemaining()) {
+			byte b = readBuffer.get();
+			if (b == '\n') {
+				if (lines == null) {
+					lines = new LinkedList<String>();
+				}
+				lines.add(decodeLine());
+			} else {
+				lineBuffer.write(b);
+			}
+		}
+
+		if (lineBuffer.size() > MAX_LINE_LENGTH) {
+			log.writeLog(clientIP, "Request line too long, closing connection");
+			close();
+			return;
+		}
+
+		if (lines != null) {
+			enqueueRequests(lines);
+		}
+	}
+
+	/**
+	 * Converts the content of the line buffer to a string and resets the
+	 * buffer. Behaves like BufferedReader.readLine() regarding line
+	 * terminators.
+	 */
+	private String decodeLine() throws UnsupportedEncodingException {
+		byte[] bytes = lineBuffer.toByteArray();
+		lineBuffer.reset();
+
+		int length = bytes.length;
+		if (length > 0 && bytes[length - 1] == '\r') {
+			length--;
+		}
+
+		return new String(bytes, 0, length, "UTF-8");
+	}
+
+	/**
+	 * Adds request lines to the queue and makes sure a worker takes care of
+	 * them.
+	 */
+	private void enqueueRequests(LinkedList<String> lines) {
+		boolean submit = false;
+
+		synchronized (this) {
+			if (closed || closeAfterWrite) {
+				return;
+			}
+			pendingRequests.addAll(lines);
+			if (!processing) {
+				processing = true;
+				submit = true;
+			}
+		}
+
+		if (submit) {
+			try {
+				workers.execute(requestProcessor);
+			} catch (RejectedExecutionException ree) {
+				rejectRequests();
+			}
+		}
+
+		updateInterest();
+	}
+
+	/**
+	 * Answers all pending requests with SC_SERVICE_UNAVAILABLE. Called if the
+	 * worker pool is saturated.
+	 */
+	private void rejectRequests() {
+		StringBuffer out = new StringBuffer();
+
+		synchronized (this) {
+			while (!pendingRequests.isEmpty()) {
+				pendingRequests.removeFirst();
+				out.append(Status.getMessage(Status.SC_SERVICE_UNAVAILABLE) + Configuration.LINEFEED);
+			}
+			processing = false;
+		}
+
+		log.writeLog(clientIP, "Worker pool saturated, request rejected");
+		queueOutput(out.toString(), false);
+	}
+
+	/**
+	 * Processes all pending requests in order and queues the responses. The
+	 * responses of requests which arrived together (pipelined by the client)
+	 * are queued as one buffer. Runs in a worker thread.
+	 */
+	private void processRequests() {
+		StringBuffer out = new StringBuffer();
+
+		while (true) {
+			String request;
+			boolean wasThrottled;
+
+			synchronized (this) {
+				if (closed) {
+					processing = false;
+					return;
+				}
+				if (pendingRequests.isEmpty()) {
+					if (out.length() == 0) {
+						processing = false;
+						return;
+					}
+					request = null;
+					wasThrottled = false;
+				} else {
+					wasThrottled = pendingRequests.size() >= MAX_PENDING_REQUESTS;
+					request = pendingRequests.removeFirst();
+				}
+			}
+
+			if (request == null) {
+				// end of the batch, hand the responses over to the event loop
+				queueOutput(out.toString(), false);
+				out.setLength(0);
+				continue;
+			}
+
+			if (wasThrottled) {
+				// we can read again
+				eventLoop.updateInterest(this);
+			}
+
+			boolean finished = processRequest(request, out);
+
+			if (finished) {
+				queueOutput(out.toString(), true);
+				synchronized (this) {
+					pendingRequests.clear();
+					processing = false;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Executes a single request and writes the response into the buffer.
+	 *
+	 * @return True if the connection should be closed after the response has
+	 *         been written.
+	 */
+	private boolean processRequest(String request, StringBuffer out) {
+		if (verbose) {
+			log.writeLog(clientIP, "> " + request);
+		}
+
+		// check whether client wants to quit the connection
+		if (request.equalsIgnoreCase(ServiceCommands.CMD_QUIT)) {
+			out.append(Status.getMessage(Status.SC_CLIENT_DISCONNECT) + Configuration.LINEFEED);
+			return true;
+		}
+
+		ResponseMessage response;
+		try {
+			response = protocol.processRequest(request);
+		} catch (Exception e) {
+			log.writeLog(CollaborillaService.applicationName, e.getMessage());
+			out.append(Status.getMessage(Status.SC_INTERNAL_ERROR) + Configuration.LINEFEED);
+			return true;
+		}
+
+		if (response.responseData != null) {
+			for (int i = 0; i < response.responseData.length; i++) {
+				if (response.responseData[i] != null) {
+					out.append(response.responseData[i] + Configuration.LINEFEED);
+				}
+			}
+		}
+
+		String statusMessage = Status.getMessage(response.statusCode);
+		out.append(statusMessage + Configuration.LINEFEED);
+
+		if (verbose) {
+			log.writeLog(clientIP, "< " + statusMessage);
+		}
+
+		return !protocol.hasCollaborillaObject();
+	}
+
+	/**
+	 * Queues a response for writing and notifies the event loop.
+	 */
+	private void queueOutput(String data, boolean close) {
+		ByteBuffer buffer;
+		try {
+			buffer = ByteBuffer.wrap(data.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			buffer = ByteBuffer.wrap(data.getBytes());
+		}
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			if (buffer.hasRemaining()) {
+				pendingOutput.add(buffer);
+			}
+			if (close) {
+				closeAfterWrite = true;
+			}
+		}
+
+		eventLoop.updateInterest(this);
+	}
+
+	/**
+	 * Writes as much of the queued output as the socket accepts. Must be
+	 * called from the event loop thread.
+	 *
+	 * @throws IOException
+	 */
+	void write() throws IOException {
+		while (true) {
+			ByteBuffer buffer;
+			synchronized (this) {
+				if (pendingOutput.isEmpty()) {
+					break;
+				}
+				buffer = pendingOutput.getFirst();
+			}
+
+			channel.write(buffer);
+
+			if (buffer.hasRemaining()) {
+				// socket buffer is full, wait for the next OP_WRITE
+				return;
+			}
+
+			synchronized (this) {
+				pendingOutput.removeFirst();
+			}
+		}
+
+		lastActivity = System.currentTimeMillis();
+		updateInterest();
+	}
+
+	/**
+	 * Disconnects an idle client after the timeout has passed. Must be called
+	 * from the event loop thread.
+	 *
+	 * @param now
+	 *            Current time in milliseconds.
+	 */
+	void checkTimeout(long now) {
+		if (clientTimeOut <= 0 || now - lastActivity < clientTimeOut) {
+			return;
+		}
+
+		synchronized (this) {
+			if (processing || closeAfterWrite || closed) {
+				return;
+			}
+		}
+
+		log.writeLog(clientIP, "Client timeout exceeded");
+		queueOutput(Status.getMessage(Status.SC_CLIENT_TIMEOUT) + Configuration.LINEFEED, true);
+	}
+
+	/**
+	 * Closes the connection to the client.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			pendingOutput.clear();
+		}
+
+		if (key != null) {
+			key.cancel();
+		}
+
+		try {
+			channel.close();
+		} catch (IOException ioe) {
+			log.writeLog(clientIP, ioe.getMessage());
+		}
+
+		admission.release();
+
+		int clients = ClientConnector.decClientCount();
+		if (verbose) {
+			log.writeLog(clientIP, "Client disconnected");
+			log.writeLog(CollaborillaService.applicationName, "Active clients: " + clients);
+		}
+	}
+
+}
@@ -0,0 +1,302 @@
+/*  $Id$
+ *
+ *  Copyright (c) 2006, KMR group at KTH (Royal Institute of Technology)
+ *  Licensed under the GNU GPL. For full terms see the file LICENSE.
+ */
+
+package se.kth.nada.kmr.collaborilla.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import se.kth.nada.kmr.collaborilla.ldap.LDAPConnectionPool;
+import se.kth.nada.kmr.collaborilla.util.Configuration;
+import se.kth.nada.kmr.collaborilla.util.InfoMessage;
+
+/**
+ * Selector based connection engine for CollaborillaService. A small number of
+ * event loop threads multiplex all client sockets, complete request lines are
+ * handed over to a bounded pool of worker threads which run the
+ * CommandHandler. Idle or slow clients therefore do not occupy a thread of
+ * their own.
+ *
+ * @author Hannes Ebner
+ * @version $Id$
+ */
+public class NioConnectionEngine {
+
+	private static InfoMessage log = InfoMessage.getInstance();
+
+	private int listenPort;
+
+	private int clientTimeOut;
+
+	private String serverDN;
+
+	private LDAPConnectionPool ldapPool;
+
+	private AdmissionController admission;
+
+	private boolean verbose;
+
+	private EventLoop[] eventLoops;
+
+	private ThreadPoolExecutor workers;
+
+	private int nextEventLoop = 0;
+
+	/**
+	 * Implements one event loop. Each loop owns a selector and takes care of
+	 * reading, writing and timeouts of the sessions registered with it.
+	 */
+	class EventLoop implements Runnable {
+
+		private Selector selector;
+
+		private ConcurrentLinkedQueue<NioClientSession> registrations = new ConcurrentLinkedQueue<NioClientSession>();
+
+		private ConcurrentLinkedQueue<NioClientSession> interestUpdates = new ConcurrentLinkedQueue<NioClientSession>();
+
+		private long lastTimeoutCheck = System.currentTimeMillis();
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Hands a new session over to this event loop. May be called from any
+		 * thread.
+		 */
+		void register(NioClientSession session) {
+			registrations.add(session);
+			selector.wakeup();
+		}
+
+		/**
+		 * Asks the event loop to recalculate the interest set of a session,
+		 * e.g. after output has been queued by a worker. May be called from
+		 * any thread.
+		 */
+		void updateInterest(NioClientSession session) {
+			interestUpdates.add(session);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					selector.select(1000);
+				} catch (IOException ioe) {
+					log.writeLog(CollaborillaService.applicationName, ioe.getMessage());
+					continue;
+				}
+
+				NioClientSession session;
+
+				while ((session = registrations.poll()) != null) {
+					try {
+						session.register(selector);
+					} catch (IOException ioe) {
+						log.writeLog(session.getClientIP(), ioe.getMessage());
+						session.close();
+					}
+				}
+
+				while ((session = interestUpdates.poll()) != null) {
+					session.updateInterest();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					session = (NioClientSession) key.attachment();
+
+					if (!key.isValid()) {
+						session.close();
+						continue;
+					}
+
+					try {
+						if (key.isReadable()) {
+							session.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.write();
+						}
+					} catch (IOException ioe) {
+						log.writeLog(session.getClientIP(), ioe.getMessage());
+						session.close();
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastTimeoutCheck >= 1000) {
+					lastTimeoutCheck = now;
+					Iterator<SelectionKey> allKeys = selector.keys().iterator();
+					while (allKeys.hasNext()) {
+						((NioClientSession) allKeys.next().attachment()).checkTimeout(now);
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Creates daemon threads with a descriptive name.
+	 */
+	static class DaemonThreadFactory implements ThreadFactory {
+
+		private String prefix;
+
+		private int counter = 0;
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + (++counter));
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+	/**
+	 * Initializes the engine.
+	 *
+	 * @param listenPort
+	 *            Port to listen on
+	 * @param clientTimeOut
+	 *            Idle timeout of a client in milliseconds
+	 * @param eventLoopCount
+	 *            Number of selector threads
+	 * @param workerCount
+	 *            Number of threads executing commands
+	 * @param workerQueueSize
+	 *            Maximum number of sessions waiting for a worker
+	 * @param serverDN
+	 *            Server DN for the LDAP connection
+	 * @param ldapPool
+	 *            Pool of LDAP connections
+	 * @param admission
+	 *            Limits the number of concurrent clients
+	 * @param verbose
+	 *            Do verbose logging.
+	 */
+	public NioConnectionEngine(int listenPort, int clientTimeOut, int eventLoopCount, int workerCount,
+			int workerQueueSize, String serverDN, LDAPConnectionPool ldapPool, AdmissionController admission,
+			boolean verbose) {
+		this.listenPort = listenPort;
+		this.clientTimeOut = clientTimeOut;
+		this.serverDN = serverDN;
+		this.ldapPool = ldapPool;
+		this.admission = admission;
+		this.verbose = verbose;
+		this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+		this.workers = new ThreadPoolExecutor(Math.max(1, workerCount), Math.max(1, workerCount), 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, workerQueueSize)), new DaemonThreadFactory("worker"));
+	}
+
+	/**
+	 * Starts the event loops and accepts connections until
+	 * CollaborillaService.allowConnections is set to false.
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i] = new EventLoop();
+			Thread loopThread = new Thread(eventLoops[i], "selector-" + (i + 1));
+			loopThread.setDaemon(true);
+			loopThread.start();
+		}
+
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(listenPort));
+		serverChannel.configureBlocking(false);
+
+		Selector acceptSelector = Selector.open();
+		serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		log.writeLog(CollaborillaService.applicationName, "Using " + eventLoops.length + " event loop(s) and "
+				+ workers.getMaximumPoolSize() + " worker thread(s)");
+
+		try {
+			while (CollaborillaService.allowConnections) {
+				// we wake up regularly to check whether we are shutting down
+				if (acceptSelector.select(1000) == 0) {
+					continue;
+				}
+				acceptSelector.selectedKeys().clear();
+
+				SocketChannel channel;
+				while ((channel = serverChannel.accept()) != null) {
+					if (!CollaborillaService.allowConnections) {
+						channel.close();
+						break;
+					}
+
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+
+					// idle sessions are cheap here, so we don't queue but
+					// reject right away if the limit is reached
+					if (!admission.tryAdmit()) {
+						reject(channel);
+						continue;
+					}
+
+					EventLoop loop = eventLoops[nextEventLoop];
+					nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+					NioClientSession session = new NioClientSession(channel, loop, workers, clientTimeOut, serverDN,
+							ldapPool, admission, verbose);
+					loop.register(session);
+				}
+			}
+		} finally {
+			acceptSelector.close();
+			serverChannel.close();
+		}
+	}
+
+	/**
+	 * Tells the client that the server is overloaded and closes the
+	 * connection. The status line is small enough to fit into the socket
+	 * buffer, so a single non-blocking write is sufficient.
+	 */
+	private void reject(SocketChannel channel) {
+		String clientIP = channel.socket().getInetAddress().getHostAddress();
+
+		try {
+			String message = Status.getMessage(Status.SC_SERVICE_UNAVAILABLE) + Configuration.LINEFEED;
+			channel.write(ByteBuffer.wrap(message.getBytes("UTF-8")));
+		} catch (IOException ioe) {
+			log.writeLog(clientIP, ioe.getMessage());
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				log.writeLog(clientIP, ioe.getMessage());
+			}
+		}
+
+		log.writeLog(clientIP, "Client rejected, server overloaded (rejected: " + admission.getRejectedCount() + ")");
+	}
+
+}
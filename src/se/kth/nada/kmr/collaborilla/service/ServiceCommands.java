@@ -62,4 +62,10 @@ public class ServiceCommands {
 	
 	public static final String ATTR_DATASET = "DATASET";
 
+	public static final String ATTR_REFERRERS = "REFERRERS";
+
+	public static final String PARAM_BINARY = "BIN";
+
+	public static final String PARAM_ALL = "ALL";
+
 }
\ No newline at end of file
@@ -97,6 +97,9 @@ public class Status {
 		case SC_INTERNAL_ERROR:
 			message = "INTERNAL ERROR";
 			break;
+		case SC_SERVICE_UNAVAILABLE:
+			message = "SERVICE UNAVAILABLE";
+			break;
 		case SC_NO_SUCH_ATTRIBUTE:
 			message = "NO SUCH ATTRIBUTE";
 			break;